@@ -22,5 +22,24 @@ public interface BlobStore {
     byte[] getBlob(String hash);    
     
     boolean hasBlob(String hash);
-    
+
+    /**
+     * Returns the number of bytes in the blob, or -1 if the blob does not exist
+     * in this store.
+     *
+     * Implementations which can find the length from metadata (eg an index or
+     * the file system) should override this so that callers which only need
+     * the size don't have to load the whole blob
+     *
+     * @param hash - the hex encoded form of the blob SHA1 hash
+     * @return the blob length in bytes, or -1 if not found
+     */
+    default long getBlobLength(String hash) {
+        byte[] arr = getBlob(hash);
+        if (arr == null) {
+            return -1;
+        }
+        return arr.length;
+    }
+
 }
@@ -71,16 +71,17 @@ public class Combiner {
                     }
 
                     String blobHash = fanout.getHashes().get(currentBlob);
-                    byte[] arr = blobStore.getBlob(blobHash);
-                    if (arr == null) {
+                    // only need the size while seeking, so dont load the blob
+                    long blobLength = blobStore.getBlobLength(blobHash);
+                    if (blobLength < 0) {
                         throw new RuntimeException("Failed to find blob in fanout. Blob hash: " + blobHash);
                     }
-                    if (currentByte + arr.length >= start) { // if end is after beginning of range, then this is the blob we want
+                    if (currentByte + blobLength >= start) { // if end is after beginning of range, then this is the blob we want
                         currentBlobByte = (int) (start - currentByte);
                         currentByte += currentBlobByte;
                         return;
                     } else {
-                        currentByte += arr.length;
+                        currentByte += blobLength;
                     }
                     currentBlob++;
                 }
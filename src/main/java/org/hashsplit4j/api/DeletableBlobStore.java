@@ -0,0 +1,18 @@
+package org.hashsplit4j.api;
+
+/**
+ * Implemented by blob stores which can remove blobs. This is intended for use
+ * by garbage collection, see GarbageCollector. Deleting a blob which is still
+ * referenced by a chunk fanout will corrupt the files which use it
+ *
+ * @author brad
+ */
+public interface DeletableBlobStore extends BlobStore {
+
+    /**
+     *
+     * @param hash
+     * @return true if the blob was present and has been removed
+     */
+    boolean deleteBlob(String hash);
+}
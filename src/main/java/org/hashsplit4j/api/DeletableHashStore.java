@@ -0,0 +1,24 @@
+package org.hashsplit4j.api;
+
+/**
+ * Implemented by hash stores which can remove fanouts. This is intended for
+ * use by garbage collection, see GarbageCollector
+ *
+ * @author brad
+ */
+public interface DeletableHashStore extends HashStore {
+
+    /**
+     *
+     * @param fanoutHash
+     * @return true if the chunk fanout was present and has been removed
+     */
+    boolean deleteChunkFanout(String fanoutHash);
+
+    /**
+     *
+     * @param fileHash
+     * @return true if the file fanout was present and has been removed
+     */
+    boolean deleteFileFanout(String fileHash);
+}
@@ -0,0 +1,28 @@
+package org.hashsplit4j.api;
+
+/**
+ * Implemented by caching blob stores which can report blobs they drop, eg so
+ * they can be moved to a slower cache, see TieredBlobStore. A store must
+ * report every blob it was given but didn't keep, whether it was evicted
+ * later or not admitted at all
+ *
+ * @author brad
+ */
+public interface EvictingBlobStore extends BlobStore {
+
+    interface EvictionListener {
+
+        void onEvicted(String hash, byte[] bytes);
+    }
+
+    void setEvictionListener(EvictionListener evictionListener);
+
+    /**
+     * Remove the blob from this cache only, not from any store it wraps, and
+     * without notifying the eviction listener
+     *
+     * @param hash
+     * @return true if it was cached
+     */
+    boolean invalidate(String hash);
+}
@@ -0,0 +1,31 @@
+package org.hashsplit4j.api;
+
+import java.util.stream.Stream;
+
+/**
+ * The equivalent of KeyEnumerable for HashStore implementations, which have
+ * separate key spaces for chunk fanouts and file fanouts
+ *
+ * See KeyEnumerable for the ordering, resumption and resource handling
+ * contract, which applies to both methods
+ *
+ * @author brad
+ */
+public interface FanoutKeyEnumerable {
+
+    /**
+     *
+     * @param prefix - if not null, only hashes starting with this are returned
+     * @param afterKey - if not null, resume after this hash
+     * @return stream of chunk fanout hashes
+     */
+    Stream<String> chunkKeys(String prefix, String afterKey);
+
+    /**
+     *
+     * @param prefix - if not null, only hashes starting with this are returned
+     * @param afterKey - if not null, resume after this hash
+     * @return stream of file fanout hashes
+     */
+    Stream<String> fileKeys(String prefix, String afterKey);
+}
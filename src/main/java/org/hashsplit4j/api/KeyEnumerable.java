@@ -0,0 +1,31 @@
+package org.hashsplit4j.api;
+
+import java.util.stream.Stream;
+
+/**
+ * Implemented by stores which can list the keys they hold without loading the
+ * associated data. This allows bulk operations like sync, migration, garbage
+ * collection and verification to be written generically
+ *
+ * Keys are returned in an order which is stable for a given store (usually
+ * sorted by key), so a long running job can record the last key it processed
+ * and later resume from that point by passing it as afterKey
+ *
+ * The returned stream may hold open resources such as cursors or file handles,
+ * so callers should close it, eg with try-with-resources. Streams may be made
+ * parallel, although implementations differ in how well they split
+ *
+ * @author brad
+ */
+public interface KeyEnumerable {
+
+    /**
+     *
+     * @param prefix - if not null, only keys starting with this prefix are
+     * returned. Eg a hash prefix like "a1f"
+     * @param afterKey - if not null, enumeration resumes after this key, which
+     * should have been returned by a previous enumeration of this store
+     * @return a stream of keys
+     */
+    Stream<String> keys(String prefix, String afterKey);
+}
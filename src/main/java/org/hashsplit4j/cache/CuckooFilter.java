@@ -0,0 +1,340 @@
+package org.hashsplit4j.cache;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Approximate set membership with deletes. mightContain is never false for a
+ * key which has been put (and not deleted), but can be true for a key which
+ * hasn't, about once in 8000 lookups when full.
+ *
+ * Each key has a 16 bit fingerprint which is stored in one of two buckets of
+ * four, so memory is about 2.3 bytes per key at the maximum load of 90%. When
+ * both buckets are full an existing fingerprint is moved to its other bucket,
+ * and so on. If that fails the filter is overflowed, and from then on
+ * mightContain is always true, so it is still correct but useless, and should
+ * be rebuilt larger.
+ *
+ * Deleting a key which wasn't put can remove the fingerprint of another key,
+ * which would then be reported as missing, so only delete keys which are known
+ * to have been put. Putting a key twice stores two fingerprints, so it is
+ * still present after one delete.
+ *
+ * Reads are lock free (optimistic), writes are serialised
+ *
+ * @author brad
+ */
+public class CuckooFilter {
+
+    private static final HashFunction DIGEST = Hashing.murmur3_128();
+    private static final int SLOTS = 4; // 16 bit fingerprints per bucket, ie per long
+    private static final int MAX_KICKS = 500;
+    private static final double MAX_LOAD = 0.9;
+
+    private static final int SNAPSHOT_MAGIC = 0x434b4f4f; // CKOO
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final long[] buckets;
+    private final int mask;
+    private final StampedLock lock = new StampedLock();
+    private final Random random = new Random();
+    private volatile long count;
+    private volatile boolean overflowed;
+
+    /**
+     *
+     * @param expectedKeys - number of keys it should hold
+     */
+    public CuckooFilter(long expectedKeys) {
+        long wanted = (long) Math.ceil(expectedKeys / (SLOTS * MAX_LOAD));
+        int n = 2;
+        while (n < wanted && n < (1 << 30)) {
+            n <<= 1;
+        }
+        this.buckets = new long[n];
+        this.mask = n - 1;
+    }
+
+    private CuckooFilter(long[] buckets, long count, boolean overflowed) {
+        this.buckets = buckets;
+        this.mask = buckets.length - 1;
+        this.count = count;
+        this.overflowed = overflowed;
+    }
+
+    /**
+     *
+     * @param key
+     * @return false if the key has definitely not been put
+     */
+    public boolean mightContain(String key) {
+        if (overflowed) {
+            return true;
+        }
+        long h = hash(key);
+        int f = fingerprint(h);
+        int i1 = index(h);
+        int i2 = altIndex(i1, f);
+        long stamp = lock.tryOptimisticRead();
+        long b1 = buckets[i1];
+        long b2 = buckets[i2];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                b1 = buckets[i1];
+                b2 = buckets[i2];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return indexOf(b1, f) >= 0 || indexOf(b2, f) >= 0;
+    }
+
+    /**
+     *
+     * @param key
+     * @return false if the filter has overflowed
+     */
+    public boolean put(String key) {
+        long h = hash(key);
+        int f = fingerprint(h);
+        int i1 = index(h);
+        int i2 = altIndex(i1, f);
+        long stamp = lock.writeLock();
+        try {
+            if (overflowed) {
+                return false;
+            }
+            if (insert(i1, f) || insert(i2, f)) {
+                count++;
+                return true;
+            }
+            int i = random.nextBoolean() ? i1 : i2;
+            for (int n = 0; n < MAX_KICKS; n++) {
+                int slot = random.nextInt(SLOTS);
+                int victim = get(buckets[i], slot);
+                buckets[i] = set(buckets[i], slot, f);
+                f = victim;
+                i = altIndex(i, f);
+                if (insert(i, f)) {
+                    count++;
+                    return true;
+                }
+            }
+            // the last victim has nowhere to go, so can only be safe by saying yes to everything
+            overflowed = true;
+            return false;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove one fingerprint of the key. Only call for keys which have been put
+     *
+     * @param key
+     * @return true if a fingerprint was removed
+     */
+    public boolean delete(String key) {
+        long h = hash(key);
+        int f = fingerprint(h);
+        int i1 = index(h);
+        int i2 = altIndex(i1, f);
+        long stamp = lock.writeLock();
+        try {
+            if (remove(i1, f) || remove(i2, f)) {
+                count--;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     *
+     * @return number of fingerprints held
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     *
+     * @return maximum number of fingerprints
+     */
+    public long capacity() {
+        return (long) buckets.length * SLOTS;
+    }
+
+    /**
+     *
+     * @return true if a put has failed, in which case mightContain is always
+     * true
+     */
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * Write the filters to a file, replacing it atomically
+     *
+     * @param file
+     * @param filters
+     * @throws IOException
+     */
+    public static void writeSnapshot(File file, CuckooFilter... filters) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(tmp)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fout, 1024 * 1024), crc));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(filters.length);
+            for (CuckooFilter filter : filters) {
+                filter.writeTo(out);
+            }
+            out.writeLong(crc.getValue());
+            out.flush();
+            fout.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     *
+     * @param file
+     * @param numFilters - the number of filters expected
+     * @return the filters, or null if the file doesn't exist or isn't a valid
+     * snapshot
+     * @throws IOException
+     */
+    public static CuckooFilter[] readSnapshot(File file, int numFilters) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileInputStream fin = new FileInputStream(file)) {
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(fin, 1024 * 1024), crc));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION || in.readInt() != numFilters) {
+                return null;
+            }
+            CuckooFilter[] filters = new CuckooFilter[numFilters];
+            for (int i = 0; i < numFilters; i++) {
+                filters[i] = readFrom(in);
+                if (filters[i] == null) {
+                    return null;
+                }
+            }
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                return null;
+            }
+            return filters;
+        }
+    }
+
+    private void writeTo(DataOutputStream out) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            out.writeInt(buckets.length);
+            out.writeLong(count);
+            out.writeBoolean(overflowed);
+            for (long b : buckets) {
+                out.writeLong(b);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static CuckooFilter readFrom(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 2 || Integer.bitCount(n) != 1) {
+            return null;
+        }
+        long count = in.readLong();
+        boolean overflowed = in.readBoolean();
+        long[] buckets = new long[n];
+        for (int i = 0; i < n; i++) {
+            buckets[i] = in.readLong();
+        }
+        return new CuckooFilter(buckets, count, overflowed);
+    }
+
+    private boolean insert(int i, int f) {
+        int slot = indexOf(buckets[i], 0);
+        if (slot < 0) {
+            return false;
+        }
+        buckets[i] = set(buckets[i], slot, f);
+        return true;
+    }
+
+    private boolean remove(int i, int f) {
+        int slot = indexOf(buckets[i], f);
+        if (slot < 0) {
+            return false;
+        }
+        buckets[i] = set(buckets[i], slot, 0);
+        return true;
+    }
+
+    private static long hash(String key) {
+        return DIGEST.hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * Zero marks an empty slot, so isn't a fingerprint
+     */
+    private static int fingerprint(long h) {
+        int f = (int) (h >>> 48);
+        return f == 0 ? 1 : f;
+    }
+
+    private int index(long h) {
+        return (int) h & mask;
+    }
+
+    /**
+     * The other bucket for the fingerprint, from either of its buckets
+     */
+    private int altIndex(int i, int f) {
+        return (i ^ (f * 0x5bd1e995)) & mask;
+    }
+
+    private static int indexOf(long bucket, int f) {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (get(bucket, slot) == f) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static int get(long bucket, int slot) {
+        return (int) (bucket >>> (slot << 4)) & 0xffff;
+    }
+
+    private static long set(long bucket, int slot, int f) {
+        int shift = slot << 4;
+        return (bucket & ~(0xffffL << shift)) | ((long) f << shift);
+    }
+}
@@ -0,0 +1,311 @@
+package org.hashsplit4j.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.hashsplit4j.api.HashCache;
+import org.hashsplit4j.utils.HashBytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers hashes known to exist in a remote store, so uploads can skip
+ * asking the remote about them. Unlike a bloom or cuckoo filter this is exact,
+ * since a false positive here would mean not uploading something the remote
+ * doesn't have.
+ *
+ * Hashes are held in their binary form (see HashBytes) in an open addressing
+ * table of longs, so a SHA1 costs 24 bytes per slot, about 32 bytes per entry
+ * with the load factor, rather than the ~150 bytes of a String in a HashSet.
+ * Hashes which are too long for a slot aren't remembered, which only costs
+ * a round trip.
+ *
+ * If a file is given the cache is loaded from it on construction and written
+ * by save(). Entries added since the last save are lost if the process stops,
+ * which again only costs round trips.
+ *
+ * Entries are never removed, so if the remote can delete (eg garbage
+ * collection) the cache must be cleared when it does. Reads are lock free
+ * (optimistic), writes are serialised
+ *
+ * @author brad
+ */
+public class DigestHashCache implements HashCache {
+
+    private static final Logger log = LoggerFactory.getLogger(DigestHashCache.class);
+
+    /**
+     * Encoded length of a hex SHA1, see HashBytes
+     */
+    public static final int SHA1_KEY_BYTES = 21;
+
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int SNAPSHOT_MAGIC = 0x48434348; // HCCH
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final int keyBytes;
+    private final int width; // longs per slot
+    private final File file;
+    private final StampedLock lock = new StampedLock();
+    private long[] table;
+    private int size;
+    private int resizeAt;
+
+    /**
+     * In memory only, sized for SHA1 hashes
+     *
+     * @param initialCapacity
+     */
+    public DigestHashCache(int initialCapacity) {
+        this(initialCapacity, SHA1_KEY_BYTES, null);
+    }
+
+    /**
+     *
+     * @param initialCapacity - number of hashes before the table is resized
+     * @param keyBytes - maximum encoded length of a hash, eg SHA1_KEY_BYTES
+     * @param file - to load from and save to, may be null
+     */
+    public DigestHashCache(int initialCapacity, int keyBytes, File file) {
+        this.keyBytes = keyBytes;
+        this.width = (keyBytes + 1 + 7) / 8; // first byte is the length
+        this.file = file;
+        allocate(initialCapacity);
+        if (file != null && file.exists()) {
+            load();
+        }
+    }
+
+    @Override
+    public boolean hasHash(String hash) {
+        long[] key = toSlot(hash);
+        if (key == null) {
+            return false;
+        }
+        long stamp = lock.tryOptimisticRead();
+        boolean found = find(table, key) >= 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = find(table, key) >= 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void setHash(String hash) {
+        long[] key = toSlot(hash);
+        if (key == null) {
+            return;
+        }
+        long stamp = lock.writeLock();
+        try {
+            insert(key);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            allocate(16);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Write all entries to the file, replacing it atomically
+     */
+    public void save() {
+        if (file == null) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        File tmp = new File(file.getPath() + ".tmp");
+        long stamp = lock.readLock();
+        try (FileOutputStream fout = new FileOutputStream(tmp)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fout, 1024 * 1024), crc));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(keyBytes);
+            out.writeInt(size);
+            for (int i = 0; i < table.length; i += width) {
+                if (table[i] != 0) {
+                    for (int j = 0; j < width; j++) {
+                        out.writeLong(table[i + j]);
+                    }
+                }
+            }
+            out.writeLong(crc.getValue());
+            out.flush();
+            fout.getFD().sync();
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldnt save hash cache to " + file.getAbsolutePath(), ex);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldnt save hash cache to " + file.getAbsolutePath(), ex);
+        }
+        log.info("save: wrote {} hashes in {}ms", size, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Called on construction. An unreadable file is ignored, since the cache
+     * can always be rebuilt by asking the remote
+     */
+    private void load() {
+        try (FileInputStream fin = new FileInputStream(file)) {
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(fin, 1024 * 1024), crc));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION || in.readInt() != keyBytes) {
+                log.warn("load: not a hash cache for this key size, ignoring: {}", file.getAbsolutePath());
+                return;
+            }
+            int count = in.readInt();
+            allocate(count);
+            long[] key = new long[width];
+            for (int n = 0; n < count; n++) {
+                for (int j = 0; j < width; j++) {
+                    key[j] = in.readLong();
+                }
+                insert(key);
+            }
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                log.warn("load: checksum failed, ignoring: {}", file.getAbsolutePath());
+                allocate(16);
+                return;
+            }
+            log.info("load: loaded {} hashes from {}", size, file.getAbsolutePath());
+        } catch (IOException | RuntimeException ex) {
+            log.warn("load: couldnt read hash cache, ignoring: " + file.getAbsolutePath(), ex);
+            allocate(16);
+        }
+    }
+
+    private void allocate(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(16, (int) (capacity / LOAD_FACTOR)) - 1) << 1;
+        table = new long[slots * width];
+        size = 0;
+        resizeAt = (int) (slots * LOAD_FACTOR);
+    }
+
+    /**
+     * Must hold the write lock
+     */
+    private void insert(long[] key) {
+        if (find(table, key) >= 0) {
+            return;
+        }
+        if (size >= resizeAt) {
+            resize();
+        }
+        int i = emptySlot(table, key);
+        System.arraycopy(key, 0, table, i, width);
+        size++;
+    }
+
+    private void resize() {
+        long[] old = table;
+        int slots = old.length / width * 2;
+        long[] arr = new long[slots * width];
+        long[] key = new long[width];
+        for (int i = 0; i < old.length; i += width) {
+            if (old[i] != 0) {
+                System.arraycopy(old, i, key, 0, width);
+                System.arraycopy(key, 0, arr, emptySlot(arr, key), width);
+            }
+        }
+        table = arr;
+        resizeAt = (int) (slots * LOAD_FACTOR);
+    }
+
+    /**
+     *
+     * @return index in the table of the key's slot, or -1
+     */
+    private int find(long[] t, long[] key) {
+        int mask = t.length / width - 1;
+        int slot = spread(key) & mask;
+        while (true) {
+            int i = slot * width;
+            if (t[i] == 0) {
+                return -1;
+            }
+            if (matches(t, i, key)) {
+                return i;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int emptySlot(long[] t, long[] key) {
+        int mask = t.length / width - 1;
+        int slot = spread(key) & mask;
+        while (t[slot * width] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot * width;
+    }
+
+    private boolean matches(long[] t, int i, long[] key) {
+        for (int j = 0; j < width; j++) {
+            if (t[i + j] != key[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(long[] key) {
+        long h = 0;
+        for (long l : key) {
+            h = (h ^ l) * 0x9E3779B97F4A7C15L;
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Pack the length and encoded hash into longs, big endian. The length byte
+     * is never zero, so a zero first long marks an empty slot
+     *
+     * @return null if the hash is too long
+     */
+    private long[] toSlot(String hash) {
+        byte[] encoded = HashBytes.encode(hash);
+        if (encoded.length > keyBytes) {
+            return null;
+        }
+        long[] key = new long[width];
+        key[0] = (long) encoded.length << 56;
+        for (int b = 0; b < encoded.length; b++) {
+            int pos = b + 1;
+            key[pos >>> 3] |= (encoded[b] & 0xffL) << (56 - ((pos & 7) << 3));
+        }
+        return key;
+    }
+}
@@ -0,0 +1,151 @@
+package org.hashsplit4j.cache;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate count of how often each key has been seen recently, for
+ * deciding what is worth caching (the TinyLFU admission policy).
+ *
+ * This is a count-min sketch of 4 bit counters, sixteen to a long. Each key
+ * has one counter in each of four rows, and its frequency is the smallest of
+ * them, which can overestimate (when other keys share all four counters) but
+ * never underestimates. Counters saturate at 15.
+ *
+ * So that old popularity fades, once the number of increments reaches the
+ * sample size (twice the expected number of keys) every counter is halved.
+ * Rows have four counters per expected key, so there are few collisions and
+ * frequencies can be compared with a fixed threshold, rather than only with
+ * each other.
+ *
+ * Increments are lock free and may occasionally be lost when racing with the
+ * periodic halving, which doesn't matter for an estimate. Memory is about 8
+ * bytes per expected key
+ *
+ * @author brad
+ */
+public class FrequencySketch {
+
+    private static final HashFunction DIGEST = Hashing.murmur3_128();
+    private static final int DEPTH = 4;
+    public static final int MAX_FREQUENCY = 15;
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final AtomicLongArray table;
+    private final int rowMask; // counters per row - 1
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+    private volatile long resets;
+
+    /**
+     *
+     * @param expectedKeys - roughly the number of distinct keys whose
+     * frequency matters, eg the number of entries the cache can hold
+     */
+    public FrequencySketch(int expectedKeys) {
+        int width = 16;
+        while (width < 4L * expectedKeys && width < (1 << 28)) {
+            width <<= 1;
+        }
+        this.rowMask = width - 1;
+        this.table = new AtomicLongArray(DEPTH * width / 16);
+        this.sampleSize = Math.max(8, width / 2);
+    }
+
+    /**
+     * Record an occurrence of the key
+     *
+     * @param key
+     */
+    public void increment(String key) {
+        long h = DIGEST.hashString(key, StandardCharsets.UTF_8).asLong();
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            added |= incrementAt(counterIndex(h, i));
+        }
+        if (added && additions.incrementAndGet() == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     *
+     * @param key
+     * @return estimated number of recent occurrences of the key, from 0 to
+     * MAX_FREQUENCY
+     */
+    public int frequency(String key) {
+        long h = DIGEST.hashString(key, StandardCharsets.UTF_8).asLong();
+        int min = MAX_FREQUENCY;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counterAt(counterIndex(h, i)));
+        }
+        return min;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     *
+     * @return number of times the counters have been halved
+     */
+    public long getResets() {
+        return resets;
+    }
+
+    /**
+     * The counter of the given row for the key, as an index over all
+     * counters. Rows use different halves of the digest, mixed by the row
+     * number (double hashing)
+     */
+    private int counterIndex(long h, int row) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        int col = (h1 + row * h2) & rowMask;
+        return row * (rowMask + 1) + col;
+    }
+
+    private int counterAt(int counter) {
+        long word = table.get(counter >>> 4);
+        int shift = (counter & 15) << 2;
+        return (int) ((word >>> shift) & 0xf);
+    }
+
+    /**
+     * @return true if the counter was incremented, ie wasn't saturated
+     */
+    private boolean incrementAt(int counter) {
+        int i = counter >>> 4;
+        int shift = (counter & 15) << 2;
+        while (true) {
+            long word = table.get(i);
+            if (((word >>> shift) & 0xf) == MAX_FREQUENCY) {
+                return false;
+            }
+            if (table.compareAndSet(i, word, word + (1L << shift))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Halve every counter, so the sketch reflects recent history
+     */
+    private synchronized void reset() {
+        for (int i = 0; i < table.length(); i++) {
+            while (true) {
+                long word = table.get(i);
+                if (table.compareAndSet(i, word, (word >>> 1) & RESET_MASK)) {
+                    break;
+                }
+            }
+        }
+        additions.addAndGet(-sampleSize / 2);
+        resets++;
+    }
+}
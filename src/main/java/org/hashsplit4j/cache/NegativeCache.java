@@ -0,0 +1,159 @@
+package org.hashsplit4j.cache;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.hashsplit4j.utils.HashBytes;
+
+/**
+ * A bounded, expiring set of hashes known not to exist in some store, so
+ * repeated lookups of a missing hash don't each go to the store, which is
+ * expensive when it is remote.
+ *
+ * Hashes are held in their binary form (see HashBytes), so an entry costs
+ * roughly a third of a String key. When full the least recently used entries
+ * are dropped.
+ *
+ * A missing hash must not be remembered if it was written while it was being
+ * looked up, so a lookup takes a token from beginLookup() before going to the
+ * store and passes it to missing(). Any invalidate since then means the miss
+ * is not remembered, which is conservative but never serves a stale negative.
+ * Writers must call invalidate after the write has completed
+ *
+ * @author brad
+ */
+public class NegativeCache {
+
+    private final ConcurrentLinkedHashMap<Key, Long> map;
+    private final AtomicLong generation = new AtomicLong();
+    private volatile long ttlMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder added = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder invalidated = new LongAdder();
+
+    /**
+     *
+     * @param capacity - maximum number of missing hashes to remember
+     * @param ttlMillis - how long a hash is remembered as missing
+     */
+    public NegativeCache(int capacity, long ttlMillis) {
+        this.map = new ConcurrentLinkedHashMap.Builder<Key, Long>()
+                .maximumWeightedCapacity(capacity)
+                .build();
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     *
+     * @param hash
+     * @return true if the hash was recently found to be missing, and hasn't
+     * been written since
+     */
+    public boolean isMissing(String hash) {
+        Key key = new Key(hash);
+        Long expires = map.get(key);
+        if (expires == null) {
+            return false;
+        }
+        if (expires < System.currentTimeMillis()) {
+            map.remove(key, expires);
+            return false;
+        }
+        hits.increment();
+        return true;
+    }
+
+    /**
+     * Call before looking up a hash in the store
+     *
+     * @return a token to pass to missing
+     */
+    public long beginLookup() {
+        return generation.get();
+    }
+
+    /**
+     * Remember that the hash is missing, unless anything has been invalidated
+     * since the lookup began
+     *
+     * @param hash
+     * @param token - from beginLookup
+     */
+    public void missing(String hash, long token) {
+        Key key = new Key(hash);
+        map.put(key, System.currentTimeMillis() + ttlMillis);
+        if (generation.get() != token) {
+            // a write may have raced with the lookup
+            map.remove(key);
+            discarded.increment();
+        } else {
+            added.increment();
+        }
+    }
+
+    /**
+     * Forget that the hash is missing. Must be called after the hash has been
+     * written
+     *
+     * @param hash
+     */
+    public void invalidate(String hash) {
+        generation.incrementAndGet();
+        if (map.remove(new Key(hash)) != null) {
+            invalidated.increment();
+        }
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        map.clear();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", map.size());
+        stats.put("hits", hits.sum());
+        stats.put("added", added.sum());
+        stats.put("discarded", discarded.sum());
+        stats.put("invalidated", invalidated.sum());
+        return stats;
+    }
+
+    private static class Key {
+
+        private final byte[] bytes;
+        private final int hash;
+
+        Key(String s) {
+            this.bytes = HashBytes.encode(s);
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(bytes, ((Key) obj).bytes);
+        }
+    }
+}
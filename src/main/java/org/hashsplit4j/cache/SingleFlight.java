@@ -0,0 +1,94 @@
+package org.hashsplit4j.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Shares one call among concurrent callers with the same key. The first
+ * caller for a key runs the call, and callers arriving while it is in flight
+ * wait for and get the same result, or the same exception. Once it completes
+ * the next caller runs it again, so nothing is cached
+ *
+ * @author brad
+ * @param <K>
+ * @param <V>
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+
+    /**
+     *
+     * @param key
+     * @param call - only run if there isn't already a call in flight for the
+     * key
+     * @return result of the call
+     */
+    public V run(K key, Supplier<V> call) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            shared.increment();
+            try {
+                return existing.join();
+            } catch (CompletionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw ex;
+            }
+        }
+        calls.increment();
+        try {
+            V v = call.get();
+            future.complete(v);
+            return v;
+        } catch (RuntimeException | Error ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Stop sharing the call in flight for the key, if any, so callers from
+     * now on run a new call. Eg after a write, since a read which started
+     * before the write may return what was there before it. Callers already
+     * waiting still get the old call's result
+     *
+     * @param key
+     */
+    public void forget(K key) {
+        inFlight.remove(key);
+    }
+
+    /**
+     *
+     * @return number of calls actually run
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     *
+     * @return number of callers which shared another's call
+     */
+    public long getShared() {
+        return shared.sum();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+}
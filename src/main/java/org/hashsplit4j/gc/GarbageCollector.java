@@ -0,0 +1,443 @@
+package org.hashsplit4j.gc;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.RateLimiter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.DeletableBlobStore;
+import org.hashsplit4j.api.DeletableHashStore;
+import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.FanoutKeyEnumerable;
+import org.hashsplit4j.api.HashStore;
+import org.hashsplit4j.api.KeyEnumerable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Mark and sweep garbage collector for hash and blob stores.
+ *
+ * Given the hashes of all files which are still in use, the mark phase walks
+ * their file and chunk fanouts and records every reachable hash in a bloom
+ * filter. The sweep phases then enumerate the file fanouts, chunk fanouts and
+ * blobs in the stores and delete any not in the filter. A bloom filter can
+ * give false positives, which just means a small fraction of garbage is kept
+ * until a later run, but never gives false negatives, so live data is never
+ * deleted.
+ *
+ * Sweeping is incremental: each call to sweep() processes at most
+ * maxItemsPerRun keys, and progress (the current phase, last key processed,
+ * and the filter) is saved to the state file so a run can be continued later,
+ * including after a restart. Sweeping can be throttled with
+ * maxItemsPerSecond to limit the impact on other users of the stores.
+ *
+ * Note that files written while a run is in progress might reuse blobs which
+ * were unreachable when marking completed. So anything which creates files
+ * during a run must also call markFile (or markLive) with the new hashes.
+ *
+ * Stores can only be swept if they are enumerable and deletable, ie
+ * FanoutKeyEnumerable and DeletableHashStore for the hash store, and
+ * KeyEnumerable and DeletableBlobStore for the blob store. Otherwise the
+ * phase is skipped
+ *
+ * @author brad
+ */
+public class GarbageCollector {
+
+    private static final Logger log = LoggerFactory.getLogger(GarbageCollector.class);
+
+    private static final Funnel<CharSequence> FUNNEL = Funnels.stringFunnel(StandardCharsets.UTF_8);
+
+    public enum Phase {
+        SWEEP_FILES,
+        SWEEP_CHUNKS,
+        SWEEP_BLOBS,
+        DONE
+    }
+
+    private final HashStore hashStore;
+    private final BlobStore blobStore;
+    private final File stateFile;
+    private final File filterFile;
+
+    private long expectedItems = 10000000;
+    private double falsePositiveRate = 0.01;
+    private long maxItemsPerRun = Long.MAX_VALUE;
+    private double maxItemsPerSecond;
+    private int batchSize = 1000;
+
+    private volatile BloomFilter<CharSequence> filter;
+    private volatile boolean filterDirty; // marked since the filter was last saved
+    private Phase phase;
+    private String lastKey;
+    private final AtomicLong marked = new AtomicLong();
+    private long scanned;
+    private long deleted;
+
+    /**
+     *
+     * @param hashStore
+     * @param blobStore
+     * @param stateFile - where to save progress so that a run can be
+     * resumed. If it exists the previous run is loaded. May be null, in which
+     * case runs can only be continued within this instance
+     */
+    public GarbageCollector(HashStore hashStore, BlobStore blobStore, File stateFile) {
+        this.hashStore = hashStore;
+        this.blobStore = blobStore;
+        this.stateFile = stateFile;
+        this.filterFile = stateFile == null ? null : new File(stateFile.getPath() + ".bloom");
+        loadState();
+    }
+
+    /**
+     * Do a complete run, ie mark from the given roots then sweep until done.
+     * If a run has been started but not finished it is continued instead, and
+     * the roots are ignored
+     *
+     * @param rootFileHashes - hashes of all files which are in use
+     */
+    public synchronized void run(Iterable<String> rootFileHashes) {
+        if (!isInProgress()) {
+            mark(rootFileHashes);
+        }
+        while (!sweep()) {
+            // keep going
+        }
+    }
+
+    /**
+     * Start a new run, by marking everything reachable from the given roots.
+     * Any previous run is discarded
+     *
+     * @param rootFileHashes - hashes of all files which are in use
+     */
+    public synchronized void mark(Iterable<String> rootFileHashes) {
+        log.info("mark: starting, expectedItems={} falsePositiveRate={}", expectedItems, falsePositiveRate);
+        long startTime = System.currentTimeMillis();
+        filter = BloomFilter.create(FUNNEL, expectedItems, falsePositiveRate);
+        phase = null;
+        lastKey = null;
+        marked.set(0);
+        scanned = 0;
+        deleted = 0;
+        for (String fileHash : rootFileHashes) {
+            markFile(fileHash);
+        }
+        phase = Phase.SWEEP_FILES;
+        saveState();
+        log.info("mark: finished, marked={} in {}ms, approx distinct={}", marked.get(), System.currentTimeMillis() - startTime, filter.approximateElementCount());
+    }
+
+    /**
+     * Mark the file, and all chunks and blobs it refers to, as live. Must be
+     * called for any file written while a run is in progress
+     *
+     * @param fileHash
+     */
+    public void markFile(String fileHash) {
+        BloomFilter<CharSequence> f = filter;
+        if (f == null) {
+            return;
+        }
+        f.put(fileHash);
+        filterDirty = true;
+        marked.incrementAndGet();
+        Fanout fileFanout = hashStore.getFileFanout(fileHash);
+        if (fileFanout == null) {
+            log.warn("markFile: file fanout not found {}", fileHash);
+            return;
+        }
+        for (String chunkHash : fileFanout.getHashes()) {
+            // note that chunks must be walked even if the filter says they've
+            // been seen, because that might be a false positive
+            f.put(chunkHash);
+            marked.incrementAndGet();
+            Fanout chunkFanout = hashStore.getChunkFanout(chunkHash);
+            if (chunkFanout == null) {
+                log.warn("markFile: chunk fanout not found {} in file {}", chunkHash, fileHash);
+                continue;
+            }
+            for (String blobHash : chunkFanout.getHashes()) {
+                f.put(blobHash);
+                marked.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Mark a single hash (file, chunk or blob) as live
+     *
+     * @param hash
+     */
+    public void markLive(String hash) {
+        BloomFilter<CharSequence> f = filter;
+        if (f != null) {
+            f.put(hash);
+            filterDirty = true;
+        }
+    }
+
+    /**
+     * Continue sweeping from where the last call finished, processing up to
+     * maxItemsPerRun keys
+     *
+     * @return true if the sweep is complete
+     */
+    public synchronized boolean sweep() {
+        if (!isInProgress()) {
+            return true;
+        }
+        long budget = maxItemsPerRun;
+        RateLimiter rateLimiter = maxItemsPerSecond > 0 ? RateLimiter.create(maxItemsPerSecond) : null;
+        while (budget > 0 && phase != Phase.DONE) {
+            int max = (int) Math.min(batchSize, budget);
+            List<String> batch = nextBatch(max);
+            if (batch == null || batch.isEmpty()) {
+                log.info("sweep: completed phase {} scanned={} deleted={}", phase, scanned, deleted);
+                phase = Phase.values()[phase.ordinal() + 1];
+                lastKey = null;
+                saveState();
+                continue;
+            }
+            for (String key : batch) {
+                if (rateLimiter != null) {
+                    rateLimiter.acquire();
+                }
+                scanned++;
+                if (!filter.mightContain(key)) {
+                    if (delete(key)) {
+                        deleted++;
+                    }
+                }
+                lastKey = key;
+            }
+            budget -= batch.size();
+            saveState();
+        }
+        if (phase == Phase.DONE) {
+            log.info("sweep: finished. scanned={} deleted={}", scanned, deleted);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Keys are read in batches, and the stream closed, before anything is
+     * deleted. This avoids deleting under an open cursor, which some stores
+     * don't allow
+     */
+    private List<String> nextBatch(int max) {
+        Stream<String> keys;
+        switch (phase) {
+            case SWEEP_FILES:
+                if (!(hashStore instanceof FanoutKeyEnumerable && hashStore instanceof DeletableHashStore)) {
+                    log.warn("nextBatch: hash store is not enumerable and deletable, so cant sweep file fanouts: {}", hashStore);
+                    return null;
+                }
+                keys = ((FanoutKeyEnumerable) hashStore).fileKeys(null, lastKey);
+                break;
+            case SWEEP_CHUNKS:
+                if (!(hashStore instanceof FanoutKeyEnumerable && hashStore instanceof DeletableHashStore)) {
+                    log.warn("nextBatch: hash store is not enumerable and deletable, so cant sweep chunk fanouts: {}", hashStore);
+                    return null;
+                }
+                keys = ((FanoutKeyEnumerable) hashStore).chunkKeys(null, lastKey);
+                break;
+            case SWEEP_BLOBS:
+                if (!(blobStore instanceof KeyEnumerable && blobStore instanceof DeletableBlobStore)) {
+                    log.warn("nextBatch: blob store is not enumerable and deletable, so cant sweep blobs: {}", blobStore);
+                    return null;
+                }
+                keys = ((KeyEnumerable) blobStore).keys(null, lastKey);
+                break;
+            default:
+                return null;
+        }
+        try (Stream<String> s = keys) {
+            return s.limit(max).collect(Collectors.toList());
+        }
+    }
+
+    private boolean delete(String key) {
+        switch (phase) {
+            case SWEEP_FILES:
+                return ((DeletableHashStore) hashStore).deleteFileFanout(key);
+            case SWEEP_CHUNKS:
+                return ((DeletableHashStore) hashStore).deleteChunkFanout(key);
+            case SWEEP_BLOBS:
+                return ((DeletableBlobStore) blobStore).deleteBlob(key);
+            default:
+                return false;
+        }
+    }
+
+    private void saveState() {
+        if (stateFile == null) {
+            return;
+        }
+        Properties props = new Properties();
+        props.setProperty("phase", phase.name());
+        if (lastKey != null) {
+            props.setProperty("lastKey", lastKey);
+        }
+        props.setProperty("scanned", Long.toString(scanned));
+        props.setProperty("deleted", Long.toString(deleted));
+        try {
+            // the filter can be large, so only save it if something has been
+            // marked since last time, ie after marking or by markLive/markFile
+            if (filterDirty || !filterFile.exists()) {
+                filterDirty = false;
+                File tmpFilter = new File(filterFile.getPath() + ".tmp");
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFilter))) {
+                    filter.writeTo(out);
+                }
+                replace(tmpFilter, filterFile);
+            }
+            File tmpState = new File(stateFile.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmpState)) {
+                props.store(out, "hashsplit4j garbage collector state");
+            }
+            replace(tmpState, stateFile);
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldnt save garbage collection state to " + stateFile.getAbsolutePath(), ex);
+        }
+    }
+
+    private void loadState() {
+        if (stateFile == null || !stateFile.exists() || !filterFile.exists()) {
+            return;
+        }
+        Properties props = new Properties();
+        try {
+            try (InputStream in = new FileInputStream(stateFile)) {
+                props.load(in);
+            }
+            try (InputStream in = new BufferedInputStream(new FileInputStream(filterFile))) {
+                filter = BloomFilter.readFrom(in, FUNNEL);
+            }
+        } catch (IOException ex) {
+            log.warn("loadState: couldnt load previous state, will start again", ex);
+            filter = null;
+            return;
+        }
+        phase = Phase.valueOf(props.getProperty("phase"));
+        lastKey = props.getProperty("lastKey");
+        scanned = Long.parseLong(props.getProperty("scanned", "0"));
+        deleted = Long.parseLong(props.getProperty("deleted", "0"));
+        log.info("loadState: resuming phase={} lastKey={}", phase, lastKey);
+    }
+
+    private void replace(File source, File dest) throws IOException {
+        if (dest.exists() && !dest.delete()) {
+            throw new IOException("Couldnt delete " + dest.getAbsolutePath());
+        }
+        if (!source.renameTo(dest)) {
+            throw new IOException("Couldnt rename " + source.getAbsolutePath() + " to " + dest.getAbsolutePath());
+        }
+    }
+
+    /**
+     *
+     * @return true if marking has completed but sweeping has not
+     */
+    public synchronized boolean isInProgress() {
+        return filter != null && phase != null && phase != Phase.DONE;
+    }
+
+    public synchronized Phase getPhase() {
+        return phase;
+    }
+
+    public synchronized String getLastKey() {
+        return lastKey;
+    }
+
+    public long getMarked() {
+        return marked.get();
+    }
+
+    public synchronized long getScanned() {
+        return scanned;
+    }
+
+    public synchronized long getDeleted() {
+        return deleted;
+    }
+
+    public long getExpectedItems() {
+        return expectedItems;
+    }
+
+    /**
+     * Used to size the bloom filter, should be about the number of files,
+     * chunks and blobs which are live. Takes effect on the next mark
+     *
+     * @param expectedItems
+     */
+    public void setExpectedItems(long expectedItems) {
+        this.expectedItems = expectedItems;
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * The fraction of garbage which will be kept. Takes effect on the next
+     * mark
+     *
+     * @param falsePositiveRate
+     */
+    public void setFalsePositiveRate(double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    public long getMaxItemsPerRun() {
+        return maxItemsPerRun;
+    }
+
+    public void setMaxItemsPerRun(long maxItemsPerRun) {
+        this.maxItemsPerRun = maxItemsPerRun;
+    }
+
+    public double getMaxItemsPerSecond() {
+        return maxItemsPerSecond;
+    }
+
+    /**
+     *
+     * @param maxItemsPerSecond - zero or less means no throttling
+     */
+    public void setMaxItemsPerSecond(double maxItemsPerSecond) {
+        this.maxItemsPerSecond = maxItemsPerSecond;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Number of keys to read from a store at a time, and so also how often
+     * progress is saved
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
@@ -0,0 +1,376 @@
+package org.hashsplit4j.gc;
+
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import org.hashsplit4j.utils.LongIntHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent reference counts for files, chunks and blobs, used by
+ * RefCountingHashStore.
+ *
+ * Counts are held in memory in primitive maps keyed by the first 64 bits of
+ * the hash. Two hashes which share a key share a count, which can only make
+ * counts too high, so the worst case is that some garbage is not reclaimed.
+ *
+ * Changes are applied in memory and appended to a write-ahead log. Log
+ * records are buffered and written out in batches, and only forced to disk
+ * when flush(true) is called, so the cost per change is small. Periodically
+ * the whole index is written to a snapshot and the log is reset. Each
+ * snapshot has a generation number, which the log also records in its
+ * header, so a log left over from before the latest snapshot is never
+ * replayed twice
+ *
+ * @author brad
+ */
+public class RefCountIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(RefCountIndex.class);
+
+    public static final int FILES = 0;
+    public static final int CHUNKS = 1;
+    public static final int BLOBS = 2;
+
+    private static final int SNAPSHOT_MAGIC = 0x52434931; // RCI1
+    private static final int WAL_MAGIC = 0x52434c31; // RCL1
+    private static final int WAL_HEADER_SIZE = 12;
+    private static final int RECORD_SIZE = 13; // type byte, key long, delta int
+
+    private final File snapshotFile;
+    private final File walFile;
+    private final LongIntHashMap[] counts = new LongIntHashMap[3];
+    private final ByteBuffer walBuffer;
+
+    private FileChannel walChannel;
+    private long generation;
+    private long walSize;
+    private long maxWalSize = 64 * 1024 * 1024;
+
+    /**
+     *
+     * @param dir - directory to hold the snapshot and log files
+     * @param expectedItems - initial capacity of each of the count maps
+     * @param bufferRecords - number of log records to buffer before writing
+     */
+    public RefCountIndex(File dir, int expectedItems, int bufferRecords) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new RuntimeException("Couldnt create directory " + dir.getAbsolutePath());
+        }
+        this.snapshotFile = new File(dir, "refcounts.snapshot");
+        this.walFile = new File(dir, "refcounts.wal");
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongIntHashMap(expectedItems);
+        }
+        this.walBuffer = ByteBuffer.allocate(bufferRecords * RECORD_SIZE);
+    }
+
+    public RefCountIndex(File dir) {
+        this(dir, 1024, 4096);
+    }
+
+    /**
+     * Load the snapshot and replay the log, then open the log for appending
+     *
+     * @throws IOException
+     */
+    public synchronized void init() throws IOException {
+        long startTime = System.currentTimeMillis();
+        generation = 0;
+        if (snapshotFile.exists()) {
+            loadSnapshot();
+        }
+        int replayed = 0;
+        if (walFile.exists()) {
+            replayed = replayWal();
+        }
+        log.info("init: loaded generation={} files={} chunks={} blobs={} replayed={} in {}ms", generation, counts[FILES].size(), counts[CHUNKS].size(), counts[BLOBS].size(), replayed, System.currentTimeMillis() - startTime);
+        if (replayed != 0 || !walFile.exists()) {
+            // fold the replayed records into a new snapshot, which also resets the log
+            checkpoint();
+        } else {
+            openWal(false);
+        }
+    }
+
+    /**
+     * Get the current count
+     *
+     * @param type - FILES, CHUNKS or BLOBS
+     * @param hash
+     * @return the count, or -1 if the hash is not in the index
+     */
+    public synchronized int get(int type, String hash) {
+        int v = counts[type].get(toKey(hash));
+        return v == LongIntHashMap.NOT_FOUND ? -1 : v;
+    }
+
+    /**
+     *
+     * @param type
+     * @param hash
+     * @return the new count
+     */
+    public synchronized int increment(int type, String hash) {
+        long key = toKey(hash);
+        logChange(type, key, 1);
+        return counts[type].add(key, 1);
+    }
+
+    /**
+     * Decrement the count for the hash. Hashes which are not in the index
+     * (eg they were stored before the index was created) are left alone, so
+     * they are never reclaimed
+     *
+     * @param type
+     * @param hash
+     * @return the new count, zero meaning there are no more references, or -1
+     * if the hash is not in the index
+     */
+    public synchronized int decrement(int type, String hash) {
+        long key = toKey(hash);
+        int v = counts[type].get(key);
+        if (v == LongIntHashMap.NOT_FOUND) {
+            return -1;
+        }
+        logChange(type, key, -1);
+        if (v <= 1) {
+            counts[type].remove(key);
+            return 0;
+        }
+        counts[type].put(key, v - 1);
+        return v - 1;
+    }
+
+    /**
+     * Write any buffered log records
+     *
+     * @param force - if true also force them to disk, so they survive a crash
+     * of the OS, not just the process
+     */
+    public synchronized void flush(boolean force) {
+        try {
+            writeBuffer();
+            if (force) {
+                walChannel.force(false);
+            }
+            if (walSize > maxWalSize) {
+                checkpoint();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldnt write reference count log " + walFile.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * Write a snapshot of all counts and reset the log
+     *
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (walChannel != null) {
+            writeBuffer();
+        }
+        long newGeneration = generation + 1;
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 1024 * 1024));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(newGeneration);
+            for (LongIntHashMap map : counts) {
+                out.writeInt(map.size());
+                map.forEach((key, value) -> {
+                    try {
+                        out.writeLong(key);
+                        out.writeInt(value);
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                });
+            }
+            out.flush();
+            fout.getFD().sync();
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // if we crash before the log is reset it has the old generation, so is ignored
+        generation = newGeneration;
+        openWal(true);
+        log.info("checkpoint: wrote generation {}", generation);
+    }
+
+    /**
+     * Remove all counts, eg before rebuilding. This is not logged, so should
+     * be followed by a checkpoint
+     */
+    public synchronized void clear() {
+        for (LongIntHashMap map : counts) {
+            map.clear();
+        }
+        walBuffer.clear();
+    }
+
+    public synchronized void close() {
+        if (walChannel == null) {
+            return;
+        }
+        try {
+            flush(true);
+            walChannel.close();
+        } catch (IOException ex) {
+            log.warn("close: exception closing log", ex);
+        }
+        walChannel = null;
+    }
+
+    public long getMaxWalSize() {
+        return maxWalSize;
+    }
+
+    /**
+     * The log is folded into a new snapshot when it exceeds this size
+     *
+     * @param maxWalSize
+     */
+    public void setMaxWalSize(long maxWalSize) {
+        this.maxWalSize = maxWalSize;
+    }
+
+    private void logChange(int type, long key, int delta) {
+        if (walChannel == null) {
+            throw new IllegalStateException("Reference count index is not initialised");
+        }
+        if (walBuffer.remaining() < RECORD_SIZE) {
+            try {
+                writeBuffer();
+            } catch (IOException ex) {
+                throw new RuntimeException("Couldnt write reference count log " + walFile.getAbsolutePath(), ex);
+            }
+        }
+        walBuffer.put((byte) type);
+        walBuffer.putLong(key);
+        walBuffer.putInt(delta);
+    }
+
+    private void writeBuffer() throws IOException {
+        walBuffer.flip();
+        while (walBuffer.hasRemaining()) {
+            walSize += walChannel.write(walBuffer);
+        }
+        walBuffer.clear();
+    }
+
+    private void openWal(boolean reset) throws IOException {
+        if (walChannel != null) {
+            walChannel.close();
+        }
+        if (reset) {
+            walChannel = FileChannel.open(walFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(WAL_HEADER_SIZE);
+            header.putInt(WAL_MAGIC);
+            header.putLong(generation);
+            header.flip();
+            while (header.hasRemaining()) {
+                walChannel.write(header);
+            }
+            walChannel.force(false);
+        } else {
+            walChannel = FileChannel.open(walFile.toPath(), StandardOpenOption.WRITE);
+            // drop any torn record at the end, so new records are aligned
+            long size = walChannel.size();
+            long valid = WAL_HEADER_SIZE + ((size - WAL_HEADER_SIZE) / RECORD_SIZE) * RECORD_SIZE;
+            walChannel.truncate(valid);
+            walChannel.position(valid);
+        }
+        walSize = walChannel.position();
+        walBuffer.clear();
+    }
+
+    private void loadSnapshot() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), 1024 * 1024))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a reference count snapshot: " + snapshotFile.getAbsolutePath());
+            }
+            generation = in.readLong();
+            for (LongIntHashMap map : counts) {
+                map.clear();
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    long key = in.readLong();
+                    int value = in.readInt();
+                    map.put(key, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of records replayed, or -1 if the log can't be used
+     */
+    private int replayWal() throws IOException {
+        int replayed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(walFile), 1024 * 1024))) {
+            if (in.readInt() != WAL_MAGIC) {
+                throw new IOException("Not a reference count log: " + walFile.getAbsolutePath());
+            }
+            long walGeneration = in.readLong();
+            if (walGeneration != generation) {
+                log.warn("replayWal: ignoring log with generation {}, snapshot is {}", walGeneration, generation);
+                return -1;
+            }
+            while (true) {
+                int type;
+                long key;
+                int delta;
+                try {
+                    type = in.readByte();
+                    key = in.readLong();
+                    delta = in.readInt();
+                } catch (EOFException ex) {
+                    break; // end of log, possibly a torn record
+                }
+                int v = counts[type].add(key, delta);
+                if (v <= 0) {
+                    counts[type].remove(key);
+                }
+                replayed++;
+            }
+        } catch (EOFException ex) {
+            log.warn("replayWal: log header incomplete, ignoring: {}", walFile.getAbsolutePath());
+            return -1;
+        }
+        return replayed;
+    }
+
+    /**
+     * Hex hashes are used directly, taking the first 16 hex digits. Anything
+     * else is hashed
+     */
+    static long toKey(String hash) {
+        if (hash.length() >= 16) {
+            long key = 0;
+            for (int i = 0; i < 16; i++) {
+                int d = Character.digit(hash.charAt(i), 16);
+                if (d < 0) {
+                    return Hashing.murmur3_128().hashString(hash, StandardCharsets.UTF_8).asLong();
+                }
+                key = (key << 4) | d;
+            }
+            return key;
+        }
+        return Hashing.murmur3_128().hashString(hash, StandardCharsets.UTF_8).asLong();
+    }
+}
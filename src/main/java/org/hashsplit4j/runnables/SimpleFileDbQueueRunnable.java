@@ -1,5 +1,7 @@
 package org.hashsplit4j.runnables;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import org.hashsplit4j.api.BlobImpl;
@@ -7,6 +9,10 @@ import org.hashsplit4j.store.SimpleFileDb;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Writes queued blobs to a SimpleFileDb. Blobs are written in batches, of up
+ * to maxBatchItems or maxBatchBytes, with a single write to each file (see
+ * SimpleFileDb.putAll), so a burst of adds is written far faster than one
+ * at a time
  *
  * @author dylan
  */
@@ -15,11 +21,14 @@ public class SimpleFileDbQueueRunnable implements Runnable {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(SimpleFileDbQueueRunnable.class);
     public static final int MAX_ERRORS = 100;   // if too many errors then dont try to save any more
 
-    private final SimpleFileDb db;
+    private volatile SimpleFileDb db;
     private final BlockingQueue<BlobImpl> queue;
     private final long maxFileSize;
 
+    private volatile Runnable onFull;
     private int errors;
+    private int maxBatchItems = 256;
+    private long maxBatchBytes = 8 * 1024 * 1024;
 
     public SimpleFileDbQueueRunnable(final SimpleFileDb db, final int queueCapacity, long maxFileSize) {
         this.db = db;
@@ -27,6 +36,20 @@ public class SimpleFileDbQueueRunnable implements Runnable {
         this.maxFileSize = maxFileSize;
     }
 
+    public SimpleFileDb getDb() {
+        return db;
+    }
+
+    /**
+     * Switch to adding to another db, eg when the current one is full. Blobs
+     * already queued are added to the new db
+     *
+     * @param db
+     */
+    public void setDb(SimpleFileDb db) {
+        this.db = db;
+    }
+
     public long getMaxFileSize() {
         return maxFileSize;
     }
@@ -35,6 +58,22 @@ public class SimpleFileDbQueueRunnable implements Runnable {
         return db.getValuesFileSize();
     }
 
+    public Runnable getOnFull() {
+        return onFull;
+    }
+
+    /**
+     * Called on the writer thread before writing a batch, if the db has
+     * reached maxFileSize, eg to start a new db and switch to it with setDb.
+     * While this is set blobs are queued even when the db is full, since it
+     * is expected to be replaced before they are written
+     *
+     * @param onFull
+     */
+    public void setOnFull(Runnable onFull) {
+        this.onFull = onFull;
+    }
+
     public int getQueueSize() {
         return queue.size();
     }
@@ -43,6 +82,28 @@ public class SimpleFileDbQueueRunnable implements Runnable {
         return errors;
     }
 
+    public int getMaxBatchItems() {
+        return maxBatchItems;
+    }
+
+    public void setMaxBatchItems(int maxBatchItems) {
+        this.maxBatchItems = maxBatchItems;
+    }
+
+    public long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * A batch is closed once it reaches this many bytes, although a single
+     * blob larger than this is still written
+     *
+     * @param maxBatchBytes
+     */
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
     /**
      * Inserts a blob into this queue if it is possible to do so immediately
      * without violating capacity restrictions, returning true upon success and
@@ -58,7 +119,7 @@ public class SimpleFileDbQueueRunnable implements Runnable {
             log.warn("addBlob: Too many errors {}, will not try to save to SimpleFileDb", errors);
             return false;
         } else {
-            if (db.getValuesFileSize() < maxFileSize) {
+            if (onFull != null || getFileSize() < maxFileSize) {
                 log.info("Enqueuing item={} size={}", key, bytes.length);
                 BlobImpl blob = new BlobImpl(key, bytes);
                 return this.queue.offer(blob);
@@ -71,23 +132,33 @@ public class SimpleFileDbQueueRunnable implements Runnable {
 
     @Override
     public void run() {
-        BlobImpl blob = null;
+        List<BlobImpl> batch = new ArrayList<>();
         while (true) {
             try {
-                blob = queue.take();
-                if (blob != null) {
-                    if (!db.contains(blob.getHash())) {
-                        log.info("run: saving blob to DB, key={} bytes={}", blob.getHash(), blob.getBytes().length);
-                        db.put(blob.getHash(), blob.getBytes());
+                batch.clear();
+                BlobImpl blob = queue.take();
+                long bytes = 0;
+                while (blob != null) {
+                    batch.add(blob);
+                    bytes += blob.getBytes().length;
+                    if (batch.size() >= maxBatchItems || bytes >= maxBatchBytes) {
+                        break;
                     }
+                    blob = queue.poll();
+                }
+                Runnable r = onFull;
+                if (r != null && getFileSize() >= maxFileSize) {
+                    r.run();
                 }
+                int added = db.putAll(batch);
+                log.info("run: saved {} of {} blobs to DB, bytes={}", added, batch.size(), bytes);
             } catch (Exception ex) {
                 errors++;
                 if (ex instanceof InterruptedException) {
                     log.error("An InterruptedException was thrown with queue {}", queue, ex);
                     throw new RuntimeException(ex);
                 } else {
-                    log.error("Exception inserting blob into DB: Msg: {}, total errors: " + errors, ex.getMessage(), ex);
+                    log.error("Exception inserting blobs into DB: Msg: {}, total errors: " + errors, ex.getMessage(), ex);
                 }
             }
         }
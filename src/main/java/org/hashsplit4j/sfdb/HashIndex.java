@@ -2,223 +2,543 @@
  */
 package org.hashsplit4j.sfdb;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
-import org.hashsplit4j.store.SimpleFileDb;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Maps a key to a hashed position in the index file, which points to the head
- * of a linked list in a second keys file
+ * On disk hash index, mapping a key to the location of its value in the
+ * values file. The file is memory mapped, so a lookup costs a few memory reads
+ * (or a single page fault when not cached) and almost no heap is used however
+ * many keys there are.
+ *
+ * Keys are not stored, only a 128 bit murmur3 digest of them, which is
+ * treated as unique. The file is a header page followed by fixed size
+ * buckets of one page each. The top bits of the digest select a bucket,
+ * which holds a count, a pointer to an overflow bucket and 127 slots of
+ * digest, start and finish. When a bucket fills another is allocated at the
+ * end of the file and chained from it. When the index is more than 75% full
+ * it is rehashed into a new file with twice as many buckets.
+ *
+ * Changes are written to the mapping, so are written to disk by the OS. The
+ * header records whether the index was closed cleanly, and if not (eg after
+ * a crash) the index is cleared on open and should be rebuilt from the keys
+ * file, see IndexedSfdb
  *
  * @author brad
  */
-public class HashIndex {
+public class HashIndex implements PrimaryKeySfdbIndex {
 
     private static final Logger log = LoggerFactory.getLogger(HashIndex.class);
 
+    private static final HashFunction DIGEST = Hashing.murmur3_128();
+    private static final int MAGIC = 0x48494458; // HIDX
+    private static final int VERSION = 1;
+    private static final int BUCKET_SIZE = 4096;
+    private static final int BUCKET_HEADER = 32; // count int, next overflow bucket int, then unused
+    private static final int SLOT_SIZE = 32; // digest (two longs), start, finish
+    private static final int SLOTS_PER_BUCKET = (BUCKET_SIZE - BUCKET_HEADER) / SLOT_SIZE;
+    private static final double LOAD_FACTOR = 0.75;
+    private static final int MAX_SEGMENT_SHIFT = 30; // 1GB mappings
+
+    // header page
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_BUCKET_SHIFT = 8;
+    private static final int H_DIRTY = 12;
+    private static final int H_SIZE = 16;
+    private static final int H_OVERFLOW = 24;
+    private static final int H_SOURCE_OFFSET = 32;
+
     private final File hashFile;
-    private final File keysFile;
     private final int expectedItems;
-    private boolean allowDups;
+    private final boolean allowDups;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Table table; // only changed while holding the write lock
 
-    public HashIndex(File indexFile, File keysListFile, int expectedItems, boolean allowDups) {
+    /**
+     *
+     * @param indexFile
+     * @param expectedItems - used to size the index when created, so it
+     * doesn't need rehashing as it grows
+     * @param allowDups - if true a put for an existing key replaces its
+     * location, otherwise it fails
+     */
+    public HashIndex(File indexFile, int expectedItems, boolean allowDups) {
         this.hashFile = indexFile;
-        this.keysFile = keysListFile;
         this.expectedItems = expectedItems;
         this.allowDups = allowDups;
     }
 
-    public long getDbPos(String key) throws IOException {
-        int pos = calcHashPosition(key);    // byte position, needs to allow room for 8 bytes for each key
-        try (RandomAccessFile raf = new RandomAccessFile(keysFile, "r")) {
-            try (FileChannel hashFileChan = raf.getChannel()) {
-                long p = pos;
-                while (true) {
-                    KeyEntry keyEntry = readKeyFromHashFile(hashFileChan, pos);
-                    if (keyEntry.hasKey()) {
-                        if (keyEntry.key.equals(key)) {
-                            return keyEntry.keysFilePos;
-                        } else if( keyEntry.nextKeyPosition != null) {
-                            p = keyEntry.nextKeyPosition;
-                        } else {
-                            // reached tail, not found
-                            return -1;
-                        }
-                    } else {
-                        return -1;
-                    }
+    @Override
+    public boolean open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (table != null) {
+                return true;
+            }
+            boolean clean = false;
+            Table t = null;
+            if (hashFile.exists() && hashFile.length() >= BUCKET_SIZE) {
+                t = Table.open(hashFile);
+                if (t == null) {
+                    log.warn("open: not a valid index file, recreating: {}", hashFile.getAbsolutePath());
+                } else if (t.getInt(H_DIRTY) != 0) {
+                    log.warn("open: index was not closed cleanly, recreating: {}", hashFile.getAbsolutePath());
+                    t.close();
+                    t = null;
+                } else {
+                    clean = true;
                 }
             }
+            if (t == null) {
+                t = replaceTable(bucketShiftFor(expectedItems));
+            }
+            t.putInt(H_DIRTY, 1);
+            t.forceHeader();
+            table = t;
+            log.info("open: index {} has {} keys in {} buckets and {} overflow buckets", hashFile.getAbsolutePath(), t.size, t.numBuckets, t.overflowBuckets);
+            return clean;
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    public IndexedSfdb.DbItem put(String key, long dbPosition) throws FileNotFoundException, IOException {
+    @Override
+    public IndexedSfdb.DbItem get(String key) {
+        HashCode hc = DIGEST.hashString(key, StandardCharsets.UTF_8);
+        long d1 = hc.asLong();
+        long d2 = secondLong(hc);
+        lock.readLock().lock();
+        try {
+            Table t = openTable();
+            long slot = t.find(d1, d2);
+            if (slot < 0) {
+                return null;
+            }
+            return new IndexedSfdb.DbItem(t.getLong(slot + 16), t.getLong(slot + 24));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-        int pos = calcHashPosition(key);    // byte position, needs to allow room for 8 bytes for each key
+    @Override
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
 
-        try (FileOutputStream fout = new FileOutputStream(hashFile, false)) { //open in append mode
-            try (FileChannel hashFileChan = fout.getChannel()) {
-                if (pos > hashFileChan.size()) {
-                    // no existing key at this pos
-                    long newKeyPos = writeNewKey(key, dbPosition, null);
-                    writeHash(pos, newKeyPos, hashFileChan);
-                } else {
-                    KeyEntry keyEntry = readKeyFromHashFile(hashFileChan, pos);
-                    long newKeyPos;
-                    if (!keyEntry.hasKey()) {
-                        newKeyPos = writeNewKey(key, dbPosition, null);
-                    } else {
-                        // collision or duplicate.
-                        // insert into keys file, then update with the new head
-                        newKeyPos = writeNewKey(key, dbPosition, keyEntry.keysFilePos);
-                    }
-                    writeHash(pos, newKeyPos, hashFileChan);
+    @Override
+    public void put(String key, long start, long finish) {
+        HashCode hc = DIGEST.hashString(key, StandardCharsets.UTF_8);
+        long d1 = hc.asLong();
+        long d2 = secondLong(hc);
+        lock.writeLock().lock();
+        try {
+            Table t = openTable();
+            long slot = t.find(d1, d2);
+            if (slot >= 0) {
+                if (t.getLong(slot + 16) == start && t.getLong(slot + 24) == finish) {
+                    return; // eg replaying the keys file after a crash
+                }
+                if (!allowDups) {
+                    throw new RuntimeException("Key " + key + " is already present");
                 }
+                t.putLong(slot + 16, start);
+                t.putLong(slot + 24, finish);
+                return;
             }
+            t.insert(d1, d2, start, finish);
+            if (t.size > t.numBuckets * SLOTS_PER_BUCKET * LOAD_FACTOR) {
+                rehash();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldnt update index " + hashFile.getAbsolutePath(), ex);
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
-        return null;
+    @Override
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return openTable().size;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    private KeyEntry readKeyFromHashFile(final FileChannel hashFileChan, int pos) throws IOException {
-        hashFileChan.position(pos);
-        ByteBuffer bb = ByteBuffer.allocate(Integer.BYTES);
-        hashFileChan.read(bb);
-        bb.flip();
-        int keyLength = bb.getInt();
+    @Override
+    public boolean isAllowDups() {
+        return allowDups;
+    }
 
-        bb = ByteBuffer.allocate(keyLength);
-        hashFileChan.read(bb);
-        bb.flip();
-        byte[] keyBytes = bb.array();
-        String key = new String(keyBytes);
+    @Override
+    public long getSourceOffset() {
+        lock.readLock().lock();
+        try {
+            return openTable().getLong(H_SOURCE_OFFSET);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-        bb = ByteBuffer.allocate(Long.BYTES);
-        hashFileChan.read(bb);
-        bb.flip();
-        long keysFilePos = bb.getLong();
+    @Override
+    public void setSourceOffset(long offset) {
+        lock.writeLock().lock();
+        try {
+            openTable().putLong(H_SOURCE_OFFSET, offset);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        bb = ByteBuffer.allocate(Long.BYTES);
-        hashFileChan.read(bb);
-        bb.flip();
-        long nextKeyPosition = bb.getLong();
-        Long _nextKeyPosition = nextKeyPosition == 0 ? null : nextKeyPosition;
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            Table old = openTable();
+            Table t = replaceTable(bucketShiftFor(expectedItems));
+            old.close();
+            t.putInt(H_DIRTY, 1);
+            t.forceHeader();
+            table = t;
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldnt clear index " + hashFile.getAbsolutePath(), ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        return new KeyEntry(key, keysFilePos, _nextKeyPosition);
+    @Override
+    public void flush() {
+        lock.readLock().lock();
+        try {
+            openTable().force();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    private class KeyEntry {
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (table == null) {
+                return;
+            }
+            table.force();
+            table.putInt(H_DIRTY, 0);
+            table.forceHeader();
+            table.close();
+            table = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        private final String key;
-        private final long keysFilePos;
-        private final Long nextKeyPosition;
+    /**
+     *
+     * @return number of buckets, excluding overflow buckets
+     */
+    public long getNumBuckets() {
+        lock.readLock().lock();
+        try {
+            return openTable().numBuckets;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-        public KeyEntry(String key, long keysFilePos, Long nextKeyPosition) {
-            this.key = key;
-            this.keysFilePos = keysFilePos;
-            this.nextKeyPosition = nextKeyPosition;
+    public int getOverflowBuckets() {
+        lock.readLock().lock();
+        try {
+            return openTable().overflowBuckets;
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        public boolean hasKey() {
-            return keysFilePos > 0;
+    private Table openTable() {
+        Table t = table;
+        if (t == null) {
+            throw new IllegalStateException("Index is not open: " + hashFile.getAbsolutePath());
         }
+        return t;
+    }
 
+    // must only be called while holding the write lock
+    private void rehash() throws IOException {
+        long startTime = System.currentTimeMillis();
+        Table old = table;
+        Table t = replaceTable(old.bucketShift + 1, old);
+        t.putInt(H_DIRTY, 1);
+        t.forceHeader();
+        table = t;
+        log.info("rehash: rehashed {} keys into {} buckets in {}ms", t.size, t.numBuckets, System.currentTimeMillis() - startTime);
     }
 
-    /**
-     * returns a byte position of the key (using its hashCode)
-     *
-     * @param key
-     * @return
-     */
-    private int calcHashPosition(String key) {
-        int h = key.hashCode(); // compress this onto address space of size expectedItems, but..
-        // need to return a byte location so will x 8
-        int compressedPos = h % expectedItems;
-        return compressedPos * Long.BYTES;
+    private Table replaceTable(int bucketShift) throws IOException {
+        return replaceTable(bucketShift, null);
     }
 
     /**
-     * Writes the key and dbPos (ie of the key in the main db file) into
-     * keysFile, and return this address
-     * <br>
-     * Implements a singly linked list, with the head being the most recently
-     * added key
-     *
-     * @param key - the value being indexed
-     * @param dbPosition - the location of this row in the main DB
-     * @param nextKeyPosition - if not null, is the next key in the linked list
-     * (this will be a previosly existing key)
+     * Create a new table in a temporary file, copying entries from the old
+     * one if given, then swap it into place. The old table is closed
      */
-    private long writeNewKey(String key, long dbPosition, Long nextKeyPosition) throws FileNotFoundException, IOException {
+    private Table replaceTable(int bucketShift, Table old) throws IOException {
+        File tmp = new File(hashFile.getPath() + ".tmp");
+        Table t = Table.create(tmp, bucketShift);
+        if (old != null) {
+            old.copyTo(t);
+            t.putLong(H_SOURCE_OFFSET, old.getLong(H_SOURCE_OFFSET));
+            old.close();
+        }
+        Files.move(tmp.toPath(), hashFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return t;
+    }
 
-        //TODO: need to write the key, which is variable length, so need to write the length
-        try (FileOutputStream fout = new FileOutputStream(keysFile, true)) { //open in append mode
-            try (FileChannel keysChan = fout.getChannel()) {
-                byte[] keyBytes = key.getBytes();
-                ByteBuffer bb = ByteBuffer.allocate(keyBytes.length + Integer.BYTES + Long.BYTES * 2);
-                bb.putInt(keyBytes.length);
-                bb.put(keyBytes);
+    private static int bucketShiftFor(int expectedItems) {
+        int shift = 0;
+        while ((1L << shift) * SLOTS_PER_BUCKET * LOAD_FACTOR < expectedItems) {
+            shift++;
+        }
+        return shift;
+    }
 
-                long newKeyPos = keysChan.position();
-                long nextKey = nextKeyPosition == null ? 0 : nextKeyPosition;
-                bb.putLong(dbPosition);
-                bb.putLong(nextKey);
-                keysChan.write(bb);
-                return newKeyPos;
-            }
+    private static long secondLong(HashCode hc) {
+        byte[] b = hc.asBytes();
+        long v = 0;
+        for (int i = 15; i >= 8; i--) {
+            v = (v << 8) | (b[i] & 0xff);
         }
+        return v;
     }
 
     /**
-     * Create or update the value in the file
-     *
-     * @param pos - position within the hash file to write to
-     * @param newKeyPos - position within the key file to save, this is the head
-     * of the linked list of keys with this hash
-     * @param chan - chan to save to
+     * A memory mapped index file. Mappings are limited to 2GB so the file is
+     * mapped in segments, which are a power of two in size so a bucket never
+     * crosses two of them
      */
-    private void writeHash(int pos, long newKeyPos, FileChannel chan) throws IOException {
-        ByteBuffer bb = ByteBuffer.allocate(Long.BYTES);
-        bb.putLong(newKeyPos);
-        if (pos > chan.size()) {
-            long length = pos - chan.size();
-            fill(chan, chan.size(), length);
+    private static class Table {
+
+        private final RandomAccessFile raf;
+        private final FileChannel chan;
+        private final int bucketShift;
+        private final long numBuckets;
+        private final int segmentShift;
+        private final long segmentMask;
+
+        private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+        private long mappedLength;
+        private long size;
+        private int overflowBuckets;
+
+        static Table create(File file, int bucketShift) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            Table t = new Table(raf, bucketShift);
+            t.ensureMapped((1 + t.numBuckets) * BUCKET_SIZE);
+            t.putInt(H_MAGIC, MAGIC);
+            t.putInt(H_VERSION, VERSION);
+            t.putInt(H_BUCKET_SHIFT, bucketShift);
+            return t;
+        }
+
+        /**
+         * @return the table, or null if the file is not a valid index
+         */
+        static Table open(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            int magic = raf.readInt();
+            int version = raf.readInt();
+            int bucketShift = raf.readInt();
+            if (magic != MAGIC || version != VERSION || bucketShift < 0 || bucketShift > 31) {
+                raf.close();
+                return null;
+            }
+            Table t = new Table(raf, bucketShift);
+            t.ensureMapped(raf.length());
+            t.size = t.getLong(H_SIZE);
+            t.overflowBuckets = t.getInt(H_OVERFLOW);
+            if (t.bucketOffset(t.numBuckets + t.overflowBuckets) > raf.length()) {
+                t.close();
+                return null;
+            }
+            return t;
+        }
+
+        private Table(RandomAccessFile raf, int bucketShift) {
+            this.raf = raf;
+            this.chan = raf.getChannel();
+            this.bucketShift = bucketShift;
+            this.numBuckets = 1L << bucketShift;
+            this.segmentShift = Math.min(MAX_SEGMENT_SHIFT, bucketShift + Integer.numberOfTrailingZeros(BUCKET_SIZE));
+            this.segmentMask = (1L << segmentShift) - 1;
+        }
+
+        /**
+         * @return file offset of the slot with the digest, or -1
+         */
+        long find(long d1, long d2) {
+            long bucket = primaryBucket(d1);
+            while (true) {
+                long base = bucketOffset(bucket);
+                MappedByteBuffer bb = segments[(int) (base >>> segmentShift)];
+                int off = (int) (base & segmentMask);
+                int count = bb.getInt(off);
+                for (int i = 0; i < count; i++) {
+                    int slot = off + BUCKET_HEADER + i * SLOT_SIZE;
+                    if (bb.getLong(slot) == d1 && bb.getLong(slot + 8) == d2) {
+                        return base + BUCKET_HEADER + i * SLOT_SIZE;
+                    }
+                }
+                int next = bb.getInt(off + 4);
+                if (next == 0) {
+                    return -1;
+                }
+                bucket = next;
+            }
+        }
+
+        /**
+         * Add a digest which is known not to be present
+         */
+        void insert(long d1, long d2, long start, long finish) throws IOException {
+            long bucket = primaryBucket(d1);
+            while (true) {
+                long base = bucketOffset(bucket);
+                int count = getInt(base);
+                if (count < SLOTS_PER_BUCKET) {
+                    long slot = base + BUCKET_HEADER + (long) count * SLOT_SIZE;
+                    putLong(slot, d1);
+                    putLong(slot + 8, d2);
+                    putLong(slot + 16, start);
+                    putLong(slot + 24, finish);
+                    putInt(base, count + 1); // publish the slot
+                    size++;
+                    putLong(H_SIZE, size);
+                    return;
+                }
+                int next = getInt(base + 4);
+                if (next == 0) {
+                    next = allocateOverflow();
+                    putInt(base + 4, next);
+                }
+                bucket = next;
+            }
+        }
+
+        void copyTo(Table dest) throws IOException {
+            long total = numBuckets + overflowBuckets;
+            for (long bucket = 0; bucket < total; bucket++) {
+                long base = bucketOffset(bucket);
+                int count = getInt(base);
+                for (int i = 0; i < count; i++) {
+                    long slot = base + BUCKET_HEADER + (long) i * SLOT_SIZE;
+                    dest.insert(getLong(slot), getLong(slot + 8), getLong(slot + 16), getLong(slot + 24));
+                }
+            }
+        }
+
+        private int allocateOverflow() throws IOException {
+            long bucket = numBuckets + overflowBuckets;
+            if (bucket > Integer.MAX_VALUE) {
+                throw new IOException("Too many overflow buckets");
+            }
+            long end = bucketOffset(bucket) + BUCKET_SIZE;
+            if (end > mappedLength) {
+                // grow in steps, to avoid remapping for every overflow bucket
+                long growBuckets = Math.max(16, numBuckets / 8);
+                ensureMapped(Math.max(end, mappedLength + growBuckets * BUCKET_SIZE));
+            }
+            overflowBuckets++;
+            putInt(H_OVERFLOW, overflowBuckets);
+            return (int) bucket;
+        }
+
+        private long primaryBucket(long d1) {
+            return bucketShift == 0 ? 0 : d1 >>> (64 - bucketShift);
+        }
+
+        private static long bucketOffset(long bucket) {
+            return (bucket + 1) * BUCKET_SIZE; // first page is the header
+        }
+
+        private void ensureMapped(long length) throws IOException {
+            if (length <= mappedLength) {
+                return;
+            }
+            if (raf.length() < length) {
+                raf.setLength(length);
+            }
+            long fileLength = raf.length();
+            long segmentSize = segmentMask + 1;
+            int count = (int) ((fileLength + segmentMask) >>> segmentShift);
+            MappedByteBuffer[] newSegs = Arrays.copyOf(segments, count);
+            int first = segments.length;
+            if (first > 0 && segments[first - 1].capacity() < segmentSize) {
+                first--; // last segment was partial, so map it again to include the new part
+            }
+            for (int i = first; i < count; i++) {
+                long pos = (long) i << segmentShift;
+                newSegs[i] = chan.map(FileChannel.MapMode.READ_WRITE, pos, Math.min(segmentSize, fileLength - pos));
+            }
+            segments = newSegs;
+            mappedLength = fileLength;
+        }
+
+        long getLong(long pos) {
+            return segments[(int) (pos >>> segmentShift)].getLong((int) (pos & segmentMask));
         }
-        chan.position(pos);
-        chan.write(bb);
-    }
 
-    public static void fill(final FileChannel fileChannel, final long position, final long length) throws IOException {
-        int BLOCK_SIZE = 1024;
-        final byte[] filler = new byte[BLOCK_SIZE];
-        byte b = 0;
-        Arrays.fill(filler, b);
+        void putLong(long pos, long v) {
+            segments[(int) (pos >>> segmentShift)].putLong((int) (pos & segmentMask), v);
+        }
 
-        final ByteBuffer byteBuffer = ByteBuffer.wrap(filler);
-        fileChannel.position(position);
+        int getInt(long pos) {
+            return segments[(int) (pos >>> segmentShift)].getInt((int) (pos & segmentMask));
+        }
 
-        final int blocks = (int) (length / BLOCK_SIZE);
-        final int blockRemainder = (int) (length % BLOCK_SIZE);
+        void putInt(long pos, int v) {
+            segments[(int) (pos >>> segmentShift)].putInt((int) (pos & segmentMask), v);
+        }
 
-        for (int i = 0; i < blocks; i++) {
-            byteBuffer.position(0);
-            fileChannel.write(byteBuffer);
+        void force() {
+            for (MappedByteBuffer seg : segments) {
+                seg.force();
+            }
         }
 
-        if (blockRemainder > 0) {
-            byteBuffer.position(0);
-            byteBuffer.limit(blockRemainder);
-            fileChannel.write(byteBuffer);
+        void forceHeader() {
+            segments[0].force();
         }
 
+        /**
+         * Close the file. The mappings are released when garbage collected,
+         * and must not be used after this
+         */
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                log.warn("close: exception closing index file", ex);
+            }
+            segments = new MappedByteBuffer[0];
+            mappedLength = 0;
+        }
     }
 }
@@ -4,16 +4,32 @@ package org.hashsplit4j.sfdb;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
-import org.hashsplit4j.store.SimpleFileDb;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.io.IOUtils;
+import org.hashsplit4j.utils.KeysFileParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Like SimpleFileDb, but the index is kept on disk (see HashIndex) rather
+ * than in memory. So it uses almost no heap however many keys there are, and
+ * starts without reading the keys file, which makes dbs much larger than
+ * memory practical.
+ *
+ * The values and keys files have the same format as SimpleFileDb. The keys
+ * file is the record of what has been stored, and the index can always be
+ * rebuilt from it. The index records how much of the keys file it covers, so
+ * on startup only keys added after that are parsed, or the whole file if the
+ * index wasn't closed cleanly. Lines which refer past the end of the values
+ * file are skipped, and if the keys file ends with bad or unterminated lines
+ * (eg from a crash while appending) it is truncated after the last good one
  *
  * @author brad
  */
@@ -21,53 +37,257 @@ public class IndexedSfdb {
 
     private static final Logger log = LoggerFactory.getLogger(IndexedSfdb.class);
     private final String name;
-    private final HashIndex hashIndex;
+    private final PrimaryKeySfdbIndex hashIndex;
     private final File keysFile;
     private final File valuesFile;
-    
 
-    public IndexedSfdb(String name, HashIndex hashIndex, File keysFile, File valuesFile) {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean enabled = false;
+
+    private final Object channelLock = new Object();
+    private volatile FileChannel readChannel;
+    private FileChannel valuesAppendChannel; // only used while holding the write lock
+    private FileChannel keysAppendChannel; // only used while holding the write lock
+    private long keysFileLength; // only used while holding the write lock
+
+    public IndexedSfdb(String name, PrimaryKeySfdbIndex hashIndex, File keysFile, File valuesFile) {
         this.name = name;
         this.hashIndex = hashIndex;
         this.keysFile = keysFile;
         this.valuesFile = valuesFile;
     }
 
-    public IndexedSfdb.DbItem put(String key, byte[] val) throws FileNotFoundException, IOException {
-        long startPos;
-        long finishPos;
-        try (FileOutputStream fout = new FileOutputStream(valuesFile, true)) { //open in append mode
-            FileChannel chan = fout.getChannel();
-            startPos = chan.position();
-            ByteBuffer bb = ByteBuffer.wrap(val);
-            chan.write(bb);
-            finishPos = chan.position();
-        }
+    public String getName() {
+        return name;
+    }
 
-        log.info("save: start={} finish={} key={}", startPos, finishPos, key);
-        long keyFilePos;
-        try (FileOutputStream fout = new FileOutputStream(keysFile, true)) { //open in append mode
-            try (FileChannel chan = fout.getChannel()) {
-                String line = key + "," + startPos + "," + finishPos + "\n"; // use text for ease of troubleshooting
-                ByteBuffer bb = ByteBuffer.wrap(line.getBytes());
-                keyFilePos = chan.position();
-                chan.write(bb);
+    /**
+     * Open the index, and add any keys in the keys file which it doesn't have
+     *
+     * @throws IOException
+     */
+    public void init() throws IOException {
+        lock.writeLock().lock();
+        try {
+            long startTime = System.currentTimeMillis();
+            boolean clean = hashIndex.open();
+            long offset = clean ? hashIndex.getSourceOffset() : 0;
+            if (offset > keysFile.length()) {
+                log.warn("init: index covers more than the keysfile, so rebuilding: {}", keysFile.getAbsolutePath());
+                hashIndex.clear();
+                offset = 0;
+            }
+            int lines = 0;
+            if (keysFile.exists()) {
+                long valuesLength = valuesFile.length();
+                long[] lastFinish = {-1};
+                KeysFileParser parser = new KeysFileParser((key, start, finish, crc) -> {
+                    hashIndex.put(key, start, finish);
+                    lastFinish[0] = Math.max(lastFinish[0], finish);
+                });
+                parser.setValidator((key, start, finish, crc) -> start >= 0 && finish >= start && finish - start <= Integer.MAX_VALUE && finish <= valuesLength);
+                keysFileLength = parser.parse(keysFile, offset);
+                lines = parser.getLines();
+                if (parser.getInvalidLines() > 0) {
+                    log.warn("init: skipped {} invalid lines in {}", parser.getInvalidLines(), keysFile.getAbsolutePath());
+                }
+                if (parser.isTorn()) {
+                    // so the next put doesn't append to a partial line
+                    log.warn("init: invalid or incomplete lines at the end of {}, truncating to {}", keysFile.getAbsolutePath(), keysFileLength);
+                    truncate(keysFile, keysFileLength);
+                }
+                if (lastFinish[0] >= 0 && valuesLength > lastFinish[0]) {
+                    // values are appended in the same order as their keys, so this is from a put which didn't complete
+                    log.warn("init: truncating {} unreferenced bytes from {}", valuesLength - lastFinish[0], valuesFile.getAbsolutePath());
+                    truncate(valuesFile, lastFinish[0]);
+                }
+                hashIndex.setSourceOffset(keysFileLength);
+            } else {
+                keysFileLength = 0;
             }
+            enabled = true;
+            log.info("init: db {} has {} keys, parsed {} lines from keysfile in {}ms", name, hashIndex.size(), lines, System.currentTimeMillis() - startTime);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (FileChannel chan = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            chan.truncate(length);
+            chan.force(true);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return enabled ? hashIndex.size() : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String key) {
+        lock.readLock().lock();
+        try {
+            return enabled && hashIndex.contains(key);
+        } finally {
+            lock.readLock().unlock();
         }
+    }
+
+    /**
+     *
+     * @param key
+     * @return length in bytes, or -1 if the key is not present
+     */
+    public long getLength(String key) {
+        DbItem item = lookup(key);
+        if (item == null) {
+            return -1;
+        }
+        return item.length();
+    }
+
+    public IndexedSfdb.DbItem put(String key, byte[] val) throws FileNotFoundException, IOException {
+        lock.writeLock().lock();
+        try {
+            if (!enabled) {
+                throw new IllegalStateException("Db " + name + " is not initialised");
+            }
+            if (!hashIndex.isAllowDups() && hashIndex.contains(key)) {
+                throw new RuntimeException("Key " + key + " is already present");
+            }
+            if (valuesAppendChannel == null) {
+                valuesAppendChannel = FileChannel.open(valuesFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            long startPos = valuesAppendChannel.size();
+            writeFully(valuesAppendChannel, ByteBuffer.wrap(val));
+            long finishPos = startPos + val.length;
+
+            log.trace("save: start={} finish={} key={}", startPos, finishPos, key);
+            if (keysAppendChannel == null) {
+                keysAppendChannel = FileChannel.open(keysFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            String line = key + "," + startPos + "," + finishPos + "\n"; // use text for ease of troubleshooting
+            byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8);
+            writeFully(keysAppendChannel, ByteBuffer.wrap(lineBytes));
+            keysFileLength += lineBytes.length;
 
-        return null;
+            hashIndex.put(key, startPos, finishPos);
+            hashIndex.setSourceOffset(keysFileLength);
+            return new DbItem(startPos, finishPos);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public byte[] get(String key) throws FileNotFoundException, IOException {
-        return null;
+        DbItem item = lookup(key);
+        if (item == null) {
+            return null;
+        }
+        return get(item);
+    }
+
+    /**
+     * Under the read lock, so a concurrent close can't close the index while
+     * it is being read
+     *
+     * @return the item, or null if not present or the db isn't enabled
+     */
+    private DbItem lookup(String key) {
+        lock.readLock().lock();
+        try {
+            if (!enabled) {
+                return null;
+            }
+            return hashIndex.get(key);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public byte[] get(IndexedSfdb.DbItem item) throws FileNotFoundException, IOException {
-        return null;
+        ByteBuffer bb = ByteBuffer.allocate((int) item.length());
+        try {
+            readFully(readChannel(), bb, item.start);
+        } catch (ClosedChannelException ex) {
+            // the shared channel is closed if any reader is interrupted
+            if (!enabled || Thread.currentThread().isInterrupted()) {
+                throw ex;
+            }
+            bb.clear();
+            readFully(readChannel(), bb, item.start);
+        }
+        return bb.array();
+    }
+
+    /**
+     * Write index changes to disk
+     */
+    public void flush() {
+        hashIndex.flush();
+    }
+
+    /**
+     * Close files and the index. init must be called again before the db can
+     * be used
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            enabled = false;
+            synchronized (channelLock) {
+                IOUtils.closeQuietly(readChannel);
+                readChannel = null;
+            }
+            IOUtils.closeQuietly(valuesAppendChannel);
+            valuesAppendChannel = null;
+            IOUtils.closeQuietly(keysAppendChannel);
+            keysAppendChannel = null;
+            hashIndex.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private FileChannel readChannel() throws IOException {
+        FileChannel chan = readChannel;
+        if (chan != null && chan.isOpen()) {
+            return chan;
+        }
+        synchronized (channelLock) {
+            chan = readChannel;
+            if (chan == null || !chan.isOpen()) {
+                chan = FileChannel.open(valuesFile.toPath(), StandardOpenOption.READ);
+                readChannel = chan;
+            }
+            return chan;
+        }
     }
 
+    private static void readFully(FileChannel chan, ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()) {
+            int n = chan.read(bb, position + bb.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of values file at " + (position + bb.position()));
+            }
+        }
+    }
 
-    public class DbItem {
+    private static void writeFully(FileChannel chan, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            chan.write(bb);
+        }
+    }
+
+    public static class DbItem {
 
         private final long start;
         private final long finish;
@@ -77,8 +297,16 @@ public class IndexedSfdb {
             this.finish = finish;
         }
 
-        byte[] data() throws IOException {
-            return IndexedSfdb.this.get(this);
+        public long getStart() {
+            return start;
+        }
+
+        public long getFinish() {
+            return finish;
+        }
+
+        long length() {
+            return finish - start;
         }
     }
 }
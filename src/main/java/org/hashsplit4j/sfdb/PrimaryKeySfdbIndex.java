@@ -2,10 +2,75 @@
  */
 package org.hashsplit4j.sfdb;
 
+import java.io.IOException;
+
 /**
+ * Persistent index from a key to the location of its value in an
+ * IndexedSfdb values file
  *
  * @author brad
  */
 public interface PrimaryKeySfdbIndex {
-    
+
+    /**
+     * Open or create the index
+     *
+     * @return true if the index was closed cleanly, so its contents can be
+     * trusted up to getSourceOffset. If false the index is empty and must be
+     * rebuilt from the keys file
+     * @throws IOException
+     */
+    boolean open() throws IOException;
+
+    /**
+     *
+     * @param key
+     * @return the location of the value, or null if not present
+     */
+    IndexedSfdb.DbItem get(String key);
+
+    /**
+     * Add or replace the location of a key
+     *
+     * @param key
+     * @param start
+     * @param finish
+     */
+    void put(String key, long start, long finish);
+
+    boolean contains(String key);
+
+    long size();
+
+    /**
+     * If false, put will fail if the key is already present with a different
+     * location
+     *
+     * @return
+     */
+    boolean isAllowDups();
+
+    /**
+     *
+     * @return the position in the keys file up to which keys have been added
+     * to the index
+     */
+    long getSourceOffset();
+
+    void setSourceOffset(long offset);
+
+    /**
+     * Remove all entries
+     */
+    void clear();
+
+    /**
+     * Write changes to disk
+     */
+    void flush();
+
+    /**
+     * Flush and close, marking the index as cleanly closed
+     */
+    void close();
 }
@@ -2,19 +2,50 @@
  */
 package org.hashsplit4j.store;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hashsplit4j.api.BlobImpl;
+import org.hashsplit4j.cache.FrequencySketch;
 import org.hashsplit4j.runnables.SimpleFileDbQueueRunnable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Base for stores which cache values from a wrapped store in SimpleFileDb's.
+ *
+ * Optionally the cache is made of segments, which are SimpleFileDb's in
+ * segmentDir. When the segment being added to reaches maxFileSize the writer
+ * thread starts a new one, and when the total size of all segments exceeds
+ * maxTotalSize a whole old segment is deleted, so the cache follows the
+ * current working set. The segment to delete is the oldest (FIFO) or, with CLOCK, the next
+ * segment which has had no hits since the clock hand last passed it. If
+ * copyForwardMinHits is set, keys which have been hit at least that many
+ * times in the segment being deleted are first copied to the current one
+ *
+ * Alternatively the cache is striped, see initStripes. Keys are routed by the
+ * prefix of their hash to one of several SimpleFileDb's, each with its own
+ * queue and writer thread, and optionally on different disks, so values can
+ * be added in parallel rather than all through one writer
+ *
+ * If enableAdmission is called, values are only added once they have been
+ * looked up at least minFrequency times recently, as estimated by a
+ * FrequencySketch, so a one off scan doesn't fill the cache with values which
+ * won't be read again
  *
  * @author brad
  */
@@ -22,7 +53,16 @@ public class AbstractFileDbBlobStore extends AbstractBlobStore {
 
     private static final Logger log = LoggerFactory.getLogger(AbstractFileDbBlobStore.class);
 
-    protected final List<SimpleFileDb> dbs = new ArrayList<>();
+    public enum EvictionPolicy {
+        FIFO,
+        CLOCK
+    }
+
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String STRIPE_PREFIX = "stripe-";
+
+    // copy on write, because segments are added and removed while being read
+    protected final List<SimpleFileDb> dbs = new CopyOnWriteArrayList<>();
     protected final Set<String> dbNames = new HashSet<>();
 
     protected boolean enableAdd;
@@ -32,8 +72,61 @@ public class AbstractFileDbBlobStore extends AbstractBlobStore {
 
     private long adds;
     private SimpleFileDb addingToDb;
+    private SimpleFileDbRouter router;
+
+    private File segmentDir;
+    private long maxTotalSize;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.FIFO;
+    private int copyForwardMinHits;
+    private int maxHotKeys = 10000;
+    private final Map<SimpleFileDb, Segment> segments = new ConcurrentHashMap<>();
+    private long nextSegment;
+    private int clockHand;
+    private long evictions;
+    private long copiedForward;
+
+    private volatile Stripe[] stripes;
+
+    private volatile FrequencySketch sketch;
+    private int minFrequency;
+    private long rejected;
 
     protected byte[] _get(String key) {
+        FrequencySketch fs = sketch;
+        if (fs != null) {
+            fs.increment(key);
+        }
+        Stripe[] arr = stripes;
+        if (arr != null) {
+            SimpleFileDb db = arr[stripeFor(key, arr.length)].db;
+            try {
+                return db.isEnabled() ? db.get(key) : null;
+            } catch (IOException ex) {
+                log.warn("Exception looking for " + key + " in db" + db.getName() + " - {}", ex);
+                return null;
+            }
+        }
+        SimpleFileDbRouter r = router;
+        if (r != null) {
+            long stamp = r.stamp();
+            SimpleFileDb db = r.route(key);
+            if (db == null) {
+                if (r.validate(stamp)) {
+                    return null;
+                }
+            } else if (db.isEnabled()) {
+                try {
+                    byte[] item = db.get(key);
+                    if (item != null) {
+                        recordSegmentHit(db, key);
+                        return item;
+                    }
+                } catch (IOException ex) {
+                    log.warn("Exception looking for " + key + " in db" + db.getName() + " - {}", ex);
+                }
+            }
+            // digests collided, a db is being reloaded, or replaced, so look in all of them
+        }
         for (SimpleFileDb db : dbs) {
             if (db.isEnabled()) {
                 byte[] item;
@@ -41,6 +134,7 @@ public class AbstractFileDbBlobStore extends AbstractBlobStore {
                     item = db.get(key);
                     if (item != null) {
                         //log.info("_get: key={} data size={}", key, item.length);
+                        recordSegmentHit(db, key);
                         return item;
                     }
                 } catch (IOException ex) {
@@ -51,7 +145,54 @@ public class AbstractFileDbBlobStore extends AbstractBlobStore {
         return null;
     }
 
+    protected long _getLength(String key) {
+        Stripe[] arr = stripes;
+        if (arr != null) {
+            return arr[stripeFor(key, arr.length)].db.getLength(key);
+        }
+        SimpleFileDbRouter r = router;
+        if (r != null) {
+            long stamp = r.stamp();
+            SimpleFileDb db = r.route(key);
+            if (db == null) {
+                if (r.validate(stamp)) {
+                    return -1;
+                }
+            } else {
+                long length = db.getLength(key);
+                if (length >= 0) {
+                    return length;
+                }
+            }
+        }
+        for (SimpleFileDb db : dbs) {
+            if (db.isEnabled()) {
+                long length = db.getLength(key);
+                if (length >= 0) {
+                    return length;
+                }
+            }
+        }
+        return -1;
+    }
+
     protected boolean _hashKey(String key) {
+        Stripe[] arr = stripes;
+        if (arr != null) {
+            return arr[stripeFor(key, arr.length)].db.contains(key);
+        }
+        SimpleFileDbRouter r = router;
+        if (r != null) {
+            long stamp = r.stamp();
+            SimpleFileDb db = r.route(key);
+            if (db == null) {
+                if (r.validate(stamp)) {
+                    return false;
+                }
+            } else if (db.contains(key)) {
+                return true;
+            }
+        }
         for (SimpleFileDb db : dbs) {
             if (db.isEnabled()) {
                 if (db.contains(key)) {
@@ -66,6 +207,25 @@ public class AbstractFileDbBlobStore extends AbstractBlobStore {
     public Map<String, Object> getCacheStats() {
         Map<String, Object> map = super.getCacheStats();
         map.put("adds", adds);
+        if (segmentDir != null) {
+            map.put("segments", segments.size());
+            map.put("evictions", evictions);
+            map.put("copiedForward", copiedForward);
+        }
+        if (sketch != null) {
+            map.put("rejected", rejected);
+        }
+        Stripe[] arr = stripes;
+        if (arr != null) {
+            int queued = 0;
+            for (Stripe stripe : arr) {
+                if (stripe.queueRunnable != null) {
+                    queued += stripe.queueRunnable.getQueueSize();
+                }
+            }
+            map.put("stripes", arr.length);
+            map.put("queued", queued);
+        }
         return map;
     }
 
@@ -106,20 +266,505 @@ public class AbstractFileDbBlobStore extends AbstractBlobStore {
         this.maxFileSize = maxFileSize;
     }
 
+    /**
+     * Use an index across all dbs, so a lookup only probes the db which has
+     * the key rather than each db in turn. Costs about 20 bytes of heap per
+     * key. Must be called before dbs are added
+     *
+     * @param expectedKeys - initial capacity of the index
+     */
+    public synchronized void enableRouter(int expectedKeys) {
+        if (!dbs.isEmpty()) {
+            throw new IllegalStateException("The router must be enabled before adding dbs");
+        }
+        router = new SimpleFileDbRouter(expectedKeys);
+    }
+
+    public SimpleFileDbRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * Only add values which have been looked up at least minFrequency times
+     * recently, including the lookup which missed. Frequencies are estimated
+     * by a sketch using about 8 bytes per expected key, and decay as more
+     * keys are looked up
+     *
+     * @param expectedKeys - roughly the number of keys the cache holds
+     * @param minFrequency - eg 2 to only add values on their second miss.
+     * At most FrequencySketch.MAX_FREQUENCY
+     */
+    public void enableAdmission(int expectedKeys, int minFrequency) {
+        setMinFrequency(minFrequency);
+        this.sketch = new FrequencySketch(expectedKeys);
+    }
+
+    public FrequencySketch getAdmissionSketch() {
+        return sketch;
+    }
+
+    public int getMinFrequency() {
+        return minFrequency;
+    }
+
+    /**
+     * Change the admission threshold, see enableAdmission
+     *
+     * @param minFrequency - between 1 and FrequencySketch.MAX_FREQUENCY
+     */
+    public void setMinFrequency(int minFrequency) {
+        if (minFrequency < 1 || minFrequency > FrequencySketch.MAX_FREQUENCY) {
+            throw new IllegalArgumentException("minFrequency must be between 1 and " + FrequencySketch.MAX_FREQUENCY);
+        }
+        this.minFrequency = minFrequency;
+    }
+
     public synchronized void addDb(SimpleFileDb db) {
+        if (router != null) {
+            router.register(db);
+        }
         dbNames.add(db.getName());
         dbs.add(db);
         if (enableAdd) {
             if (queueRunnable == null) {
-                addingToDb = db;
-                queueRunnable = new SimpleFileDbQueueRunnable(db, 1000, maxFileSize);
-                exService = Executors.newSingleThreadExecutor();
-                exService.submit(this.queueRunnable);
+                startAdding(db);
             }
         }
     }
 
+    private synchronized void startAdding(SimpleFileDb db) {
+        addingToDb = db;
+        if (queueRunnable == null) {
+            queueRunnable = new SimpleFileDbQueueRunnable(db, 1000, maxFileSize);
+            exService = Executors.newSingleThreadExecutor();
+            exService.submit(this.queueRunnable);
+        } else {
+            queueRunnable.setDb(db);
+        }
+        if (segmentDir != null && queueRunnable.getOnFull() == null) {
+            // roll and evict on the writer thread, not the reader which missed
+            queueRunnable.setOnFull(this::rollFullSegment);
+        }
+    }
+
+    /**
+     * Load the existing segments in segmentDir, and start adding to the
+     * newest, or a new one if there are none
+     *
+     * @param threads - maximum number of segments to initialise at once
+     * @throws IOException
+     */
+    public synchronized void initSegments(int threads) throws IOException {
+        if (segmentDir == null) {
+            throw new IllegalStateException("segmentDir has not been set");
+        }
+        if (!segmentDir.exists() && !segmentDir.mkdirs()) {
+            throw new IOException("Couldnt create segment dir " + segmentDir.getAbsolutePath());
+        }
+        TreeMap<Long, SimpleFileDb> found = new TreeMap<>();
+        File[] files = segmentDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String n = f.getName();
+                if (n.startsWith(SEGMENT_PREFIX) && n.endsWith(".vals")) {
+                    try {
+                        long num = Long.parseLong(n.substring(SEGMENT_PREFIX.length(), n.length() - 5));
+                        found.put(num, newSegmentDb(num));
+                    } catch (NumberFormatException ex) {
+                        log.warn("initSegments: ignoring file {}", f.getAbsolutePath());
+                    }
+                }
+            }
+        }
+        List<SimpleFileDb> loaded = new ArrayList<>(found.values());
+        for (SimpleFileDb db : loaded) {
+            segments.put(db, new Segment());
+        }
+        initDbs(loaded, threads);
+        nextSegment = found.isEmpty() ? 0 : found.lastKey() + 1;
+        if (enableAdd) {
+            if (loaded.isEmpty()) {
+                rollSegment();
+            } else {
+                startAdding(loaded.get(loaded.size() - 1));
+            }
+        }
+        log.info("initSegments: loaded {} segments from {}", loaded.size(), segmentDir.getAbsolutePath());
+    }
+
+    private SimpleFileDb newSegmentDb(long num) {
+        String name = String.format("%s%06d", SEGMENT_PREFIX, num);
+        return new SimpleFileDb(name, new File(segmentDir, name + ".keys"), new File(segmentDir, name + ".vals"));
+    }
+
+    private void rollFullSegment() {
+        try {
+            rollSegment();
+        } catch (IOException ex) {
+            log.warn("rollFullSegment: couldnt start a new segment", ex);
+        }
+    }
+
+    /**
+     * Start a new segment to add to, then evict old segments if over budget.
+     * Called on the writer thread, or before it has started
+     */
+    private synchronized void rollSegment() throws IOException {
+        if (queueRunnable != null && queueRunnable.getFileSize() < maxFileSize && segments.containsKey(queueRunnable.getDb())) {
+            return; // another thread has already rolled
+        }
+        SimpleFileDb db = newSegmentDb(nextSegment++);
+        db.init();
+        segments.put(db, new Segment());
+        addDb(db);
+        startAdding(db);
+        log.info("rollSegment: started new segment {}", db.getName());
+        if (maxTotalSize > 0) {
+            while (getTotalSize() > maxTotalSize && segments.size() > 1) {
+                SimpleFileDb victim = chooseVictim();
+                if (victim == null) {
+                    break;
+                }
+                evict(victim);
+            }
+        }
+    }
+
+    private SimpleFileDb chooseVictim() {
+        List<SimpleFileDb> candidates = new ArrayList<>();
+        for (SimpleFileDb db : dbs) {
+            if (segments.containsKey(db) && db != addingToDb) {
+                candidates.add(db);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        if (evictionPolicy == EvictionPolicy.FIFO) {
+            return candidates.get(0);
+        }
+        // CLOCK - give each segment which has been hit since the hand last
+        // passed a second chance. After a full turn all hits are cleared, so
+        // this always finds one
+        for (int i = 0; i <= candidates.size(); i++) {
+            clockHand = clockHand % candidates.size();
+            SimpleFileDb db = candidates.get(clockHand);
+            if (segments.get(db).hits.getAndSet(0) == 0) {
+                return db;
+            }
+            clockHand++;
+        }
+        return candidates.get(clockHand % candidates.size());
+    }
+
+    private void evict(SimpleFileDb victim) {
+        Segment seg = segments.get(victim);
+        int copied = 0;
+        if (copyForwardMinHits > 0 && addingToDb != null) {
+            copied = copyForward(seg, victim, addingToDb);
+        }
+        dbs.remove(victim);
+        if (router != null) {
+            router.unregister(victim);
+        }
+        dbNames.remove(victim.getName());
+        segments.remove(victim);
+        victim.delete();
+        evictions++;
+        copiedForward += copied;
+        log.info("evict: deleted segment {}, copied forward {} keys", victim.getName(), copied);
+    }
+
+    /**
+     * Write the victim's hot keys straight into the segment being added to,
+     * rather than through the queue which would drop most of them, in batches
+     * as the writer does. Stops if the segment fills up
+     *
+     * @return the number of keys copied
+     */
+    private int copyForward(Segment seg, SimpleFileDb victim, SimpleFileDb target) {
+        int copied = 0;
+        List<BlobImpl> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (Map.Entry<String, AtomicInteger> e : seg.hotKeys.entrySet()) {
+            if (target.getValuesFileSize() >= maxFileSize) {
+                break;
+            }
+            if (e.getValue().get() < copyForwardMinHits) {
+                continue;
+            }
+            try {
+                byte[] bytes = victim.get(e.getKey());
+                if (bytes != null) {
+                    batch.add(new BlobImpl(e.getKey(), bytes));
+                    batchBytes += bytes.length;
+                }
+                if (batch.size() >= queueRunnable.getMaxBatchItems() || batchBytes >= queueRunnable.getMaxBatchBytes()) {
+                    copied += target.putAll(batch);
+                    batch.clear();
+                    batchBytes = 0;
+                }
+            } catch (IOException ex) {
+                log.warn("copyForward: couldnt copy forward {} from {}", e.getKey(), victim.getName(), ex);
+            }
+        }
+        if (!batch.isEmpty()) {
+            try {
+                copied += target.putAll(batch);
+            } catch (IOException ex) {
+                log.warn("copyForward: couldnt copy forward {} keys from {}", batch.size(), victim.getName(), ex);
+            }
+        }
+        return copied;
+    }
+
+    private void recordSegmentHit(SimpleFileDb db, String key) {
+        if (segments.isEmpty()) {
+            return;
+        }
+        Segment seg = segments.get(db);
+        if (seg == null) {
+            return;
+        }
+        seg.hits.incrementAndGet();
+        if (copyForwardMinHits > 0) {
+            AtomicInteger count = seg.hotKeys.get(key);
+            if (count == null) {
+                count = new AtomicInteger();
+                AtomicInteger existing = seg.hotKeys.putIfAbsent(key, count);
+                if (existing != null) {
+                    count = existing;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     *
+     * @return total size of the keys and values files of all segments
+     */
+    public long getTotalSize() {
+        long total = 0;
+        for (SimpleFileDb db : segments.keySet()) {
+            total += db.getValuesFileSize() + db.getKeysFileSize();
+        }
+        return total;
+    }
+
+    public File getSegmentDir() {
+        return segmentDir;
+    }
+
+    /**
+     * Enables segments, see initSegments
+     *
+     * @param segmentDir
+     */
+    public void setSegmentDir(File segmentDir) {
+        this.segmentDir = segmentDir;
+    }
+
+    public long getMaxTotalSize() {
+        return maxTotalSize;
+    }
+
+    /**
+     * Old segments are deleted when the total size of segments is over this.
+     * Zero means no limit
+     *
+     * @param maxTotalSize
+     */
+    public void setMaxTotalSize(long maxTotalSize) {
+        this.maxTotalSize = maxTotalSize;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    public int getCopyForwardMinHits() {
+        return copyForwardMinHits;
+    }
+
+    /**
+     * Keys hit at least this many times in a segment are copied to the
+     * current segment before it is deleted. Zero disables copying
+     *
+     * @param copyForwardMinHits
+     */
+    public void setCopyForwardMinHits(int copyForwardMinHits) {
+        this.copyForwardMinHits = copyForwardMinHits;
+    }
+
+    public int getMaxHotKeys() {
+        return maxHotKeys;
+    }
+
+    /**
+     * The number of most recently hit keys tracked per segment, for copying
+     * forward. Only affects segments created after this is set
+     *
+     * @param maxHotKeys
+     */
+    public void setMaxHotKeys(int maxHotKeys) {
+        this.maxHotKeys = maxHotKeys;
+    }
+
+    /**
+     * Initialise the given dbs in parallel, then add them in the order given.
+     * Startup is dominated by loading each db's index, which is independent
+     * of the others, so this is much faster than initialising them in turn
+     *
+     * @param newDbs
+     * @param threads - maximum number of dbs to initialise at once
+     * @throws IOException
+     */
+    public void initDbs(List<SimpleFileDb> newDbs, int threads) throws IOException {
+        long startTime = System.currentTimeMillis();
+        initAll(newDbs, threads);
+        for (SimpleFileDb db : newDbs) {
+            addDb(db);
+        }
+        log.info("initDbs: initialised {} dbs in {}ms", newDbs.size(), System.currentTimeMillis() - startTime);
+    }
+
+    private static void initAll(List<SimpleFileDb> newDbs, int threads) throws IOException {
+        ExecutorService initService = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, newDbs.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (SimpleFileDb db : newDbs) {
+                futures.add(initService.submit(() -> {
+                    db.init();
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted initialising dbs", ex);
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof IOException) {
+                        throw (IOException) ex.getCause();
+                    }
+                    throw new RuntimeException(ex.getCause());
+                }
+            }
+        } finally {
+            initService.shutdownNow();
+        }
+    }
+
+    /**
+     * Cache in numStripes dbs, spread across the given directories (eg one
+     * on each disk). Each key always goes to the same stripe, chosen by the
+     * prefix of its hash, and each stripe has its own queue and writer thread,
+     * so the rate values can be added scales with the number of stripes.
+     * maxFileSize applies to each stripe.
+     *
+     * The number of stripes must not change once there is data, otherwise
+     * keys are looked for in the wrong stripe. They are then just cache misses,
+     * but the data in the old stripes is wasted
+     *
+     * @param dirs - directories for the stripes, used in turn
+     * @param numStripes
+     * @param threads - maximum number of stripes to initialise at once
+     * @throws IOException
+     */
+    public synchronized void initStripes(List<File> dirs, int numStripes, int threads) throws IOException {
+        if (segmentDir != null || !dbs.isEmpty()) {
+            throw new IllegalStateException("Stripes cannot be used with segments or other dbs");
+        }
+        if (dirs.isEmpty() || numStripes < 1) {
+            throw new IllegalArgumentException("Need at least one directory and one stripe");
+        }
+        long startTime = System.currentTimeMillis();
+        List<SimpleFileDb> stripeDbs = new ArrayList<>();
+        for (int i = 0; i < numStripes; i++) {
+            File dir = dirs.get(i % dirs.size());
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Couldnt create stripe dir " + dir.getAbsolutePath());
+            }
+            String name = String.format("%s%03d", STRIPE_PREFIX, i);
+            stripeDbs.add(new SimpleFileDb(name, new File(dir, name + ".keys"), new File(dir, name + ".vals")));
+        }
+        initAll(stripeDbs, threads);
+        Stripe[] arr = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            SimpleFileDb db = stripeDbs.get(i);
+            dbNames.add(db.getName());
+            dbs.add(db);
+            arr[i] = new Stripe(db);
+        }
+        if (enableAdd) {
+            exService = Executors.newFixedThreadPool(numStripes);
+            for (Stripe stripe : arr) {
+                stripe.queueRunnable = new SimpleFileDbQueueRunnable(stripe.db, 1000, maxFileSize);
+                exService.submit(stripe.queueRunnable);
+            }
+        }
+        stripes = arr;
+        log.info("initStripes: initialised {} stripes in {} dirs in {}ms", numStripes, dirs.size(), System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     *
+     * @param key
+     * @return the stripe db which the key belongs in, or null if not striped
+     */
+    public SimpleFileDb getStripe(String key) {
+        Stripe[] arr = stripes;
+        return arr == null ? null : arr[stripeFor(key, arr.length)].db;
+    }
+
+    public int getNumStripes() {
+        Stripe[] arr = stripes;
+        return arr == null ? 0 : arr.length;
+    }
+
+    /**
+     * Keys are a type prefix and a hex hash, eg b-1234abcd, so the first hex
+     * digits after the prefix are evenly distributed. Anything else is routed
+     * by its hashCode, which is also stable
+     */
+    static int stripeFor(String key, int numStripes) {
+        int from = key.indexOf('-') + 1;
+        int v = 0;
+        int digits = 0;
+        for (int i = from; i < key.length() && digits < 6; i++, digits++) {
+            int d = Character.digit(key.charAt(i), 16);
+            if (d < 0) {
+                break;
+            }
+            v = (v << 4) | d;
+        }
+        if (digits < 6) {
+            v = key.hashCode() & Integer.MAX_VALUE;
+        }
+        return v % numStripes;
+    }
+
     protected void saveToDb(String key, byte[] bytes) {
+        FrequencySketch fs = sketch;
+        if (fs != null && fs.frequency(key) < minFrequency) {
+            rejected = incrementLong(rejected, 1);
+            return;
+        }
+        Stripe[] arr = stripes;
+        if (arr != null) {
+            SimpleFileDbQueueRunnable r = arr[stripeFor(key, arr.length)].queueRunnable;
+            if (r != null) {
+                adds = incrementLong(adds, 1);
+                r.add(key, bytes);
+            }
+            return;
+        }
         if (queueRunnable != null) {
             adds = incrementLong(adds, 1);
             queueRunnable.add(key, bytes);
@@ -141,4 +786,22 @@ public class AbstractFileDbBlobStore extends AbstractBlobStore {
         }
         return i;
     }
+
+    private static class Stripe {
+
+        private final SimpleFileDb db;
+        private SimpleFileDbQueueRunnable queueRunnable; // if adds are enabled
+
+        Stripe(SimpleFileDb db) {
+            this.db = db;
+        }
+    }
+
+    private class Segment {
+
+        private final AtomicLong hits = new AtomicLong();
+        private final ConcurrentLinkedHashMap<String, AtomicInteger> hotKeys = new ConcurrentLinkedHashMap.Builder<String, AtomicInteger>()
+                .maximumWeightedCapacity(maxHotKeys)
+                .build();
+    }
 }
@@ -20,6 +20,7 @@ import org.hashsplit4j.api.ReceivingBlobStore;
 import org.hashsplit4j.store.berkeleyDbEnv.BerkeleyDbEnv;
 import org.hashsplit4j.store.berkeleyDbEnv.BerkeleyDbAccessor;
 import org.hashsplit4j.store.berkeleyDbEnv.Blob;
+import org.hashsplit4j.store.berkeleyDbEnv.BlobInfo;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -34,9 +35,10 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 import org.hashsplit4j.api.*;
 
-public class BerkeleyDbBlobStore implements BlobStore, ReceivingBlobStore {
+public class BerkeleyDbBlobStore implements BlobStore, ReceivingBlobStore, KeyEnumerable, DeletableBlobStore {
 
     private final Logger log = LoggerFactory.getLogger(BerkeleyDbBlobStore.class);
 
@@ -94,7 +96,9 @@ public class BerkeleyDbBlobStore implements BlobStore, ReceivingBlobStore {
         // Put it in the store. Note that this causes our secondary key
         // to be automatically updated for us.
         Blob blob = new Blob(hash, group, subGroup, bytes);
-        dbAccessor.getBlobByIndex().putNoOverwrite(blob);
+        if (dbAccessor.getBlobByIndex().putNoOverwrite(blob)) {
+            dbAccessor.getBlobInfoByIndex().put(new BlobInfo(hash, bytes.length));
+        }
 
         // When insert a blob, insert the blob in one table and also insert into a key table.
         // Where the key table has the group and the blob's hash. If doesn't exist, 
@@ -126,6 +130,54 @@ public class BerkeleyDbBlobStore implements BlobStore, ReceivingBlobStore {
         return dbAccessor.getBlobByIndex().contains(hash);
     }
 
+    @Override
+    public long getBlobLength(String hash) {
+        if (hash == null) {
+            throw new RuntimeException("Key can not be null for get blob length function");
+        }
+
+        BlobInfo info = dbAccessor.getBlobInfoByIndex().get(hash);
+        if (info != null) {
+            return info.getLength();
+        }
+
+        // Blobs written before lengths were recorded wont have a BlobInfo, so
+        // load the blob and record its length for next time
+        Blob blob = dbAccessor.getBlobByIndex().get(hash);
+        if (blob == null) {
+            return -1;
+        }
+        long length = blob.getBytes().length;
+        dbAccessor.getBlobInfoByIndex().put(new BlobInfo(hash, length));
+        return length;
+    }
+
+    @Override
+    public boolean deleteBlob(String hash) {
+        if (hash == null) {
+            throw new RuntimeException("Key can not be null for delete blob function");
+        }
+        if (!dbAccessor.getBlobByIndex().delete(hash)) {
+            return false;
+        }
+        dbAccessor.getBlobInfoByIndex().delete(hash);
+
+        // the group hashes include this blob, so must be recalculated
+        String group = hash.substring(0, nPrefGroup);
+        String subGroup = hash.substring(0, nPrefSubGroup);
+        dbAccessor.getGroupByIndex().put(new HashGroup(group, null, Status.INVALID));
+        dbAccessor.getSubGroupByIndex().put(new SubGroup(subGroup, group, null, Status.INVALID));
+        lastCommit = new Date();
+        doCommit = true;
+        commitCount++;
+        return true;
+    }
+
+    @Override
+    public Stream<String> keys(String prefix, String afterKey) {
+        return BerkeleyDbEnv.keys(dbAccessor.getBlobByIndex(), prefix, afterKey);
+    }
+
     /**
      * Close the database environment and database store transaction
      */
@@ -14,7 +14,10 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.hashsplit4j.api.DeletableHashStore;
 import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.FanoutKeyEnumerable;
 import org.hashsplit4j.api.FanoutImpl;
 import org.hashsplit4j.store.berkeleyDbEnv.Hash;
 import org.hashsplit4j.api.HashStore;
@@ -25,7 +28,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author dylan
  */
-public class BerkeleyDbHashStore implements HashStore {
+public class BerkeleyDbHashStore implements HashStore, FanoutKeyEnumerable, DeletableHashStore {
 
     private final Logger log = LoggerFactory.getLogger(BerkeleyDbHashStore.class);
 
@@ -136,6 +139,38 @@ public class BerkeleyDbHashStore implements HashStore {
         return fileAccessor.containsHashByIndex(fileHash);
     }
 
+    @Override
+    public boolean deleteChunkFanout(String fanoutHash) {
+        boolean deleted = chunkAccessor.deleteFromHashByIndex(fanoutHash);
+        if (deleted) {
+            lastCommit = new Date();
+            doCommit = true;
+            commitCount++;
+        }
+        return deleted;
+    }
+
+    @Override
+    public boolean deleteFileFanout(String fileHash) {
+        boolean deleted = fileAccessor.deleteFromHashByIndex(fileHash);
+        if (deleted) {
+            lastCommit = new Date();
+            doCommit = true;
+            commitCount++;
+        }
+        return deleted;
+    }
+
+    @Override
+    public Stream<String> chunkKeys(String prefix, String afterKey) {
+        return BerkeleyDbEnv.keys(chunkAccessor.getHashByIndex(), prefix, afterKey);
+    }
+
+    @Override
+    public Stream<String> fileKeys(String prefix, String afterKey) {
+        return BerkeleyDbEnv.keys(fileAccessor.getHashByIndex(), prefix, afterKey);
+    }
+
     private Fanout parseHash(Hash dbHash) {
         Fanout fanout = null;
         if (dbHash != null) {
@@ -75,20 +75,19 @@ public class CachingBlobStore implements BlobStore {
 
     @Override
     public boolean hasBlob(String hash) {
-        byte[] arr = getBlob(hash);
-        return arr != null;
-        
-        // use getBlob because otherwise hasBlob wont get cached
-        
-//        if( cache.containsKey(hash)) {
-//            hits++;
-//            return true;
-//        }
-//        boolean b = blobStore.hasBlob(hash);
-//        if( b) {
-//            misses++;
-//        }
-//        return b;
+        // dont use getBlob, that would load and cache the whole blob just
+        // to check existence
+        return getBlobLength(hash) >= 0;
+    }
+
+    @Override
+    public long getBlobLength(String hash) {
+        byte[] arr = cache.get(hash);
+        if (arr != null) {
+            hits++;
+            return arr.length;
+        }
+        return blobStore.getBlobLength(hash);
     }
 
     public int getCapacity() {
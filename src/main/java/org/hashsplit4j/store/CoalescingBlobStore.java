@@ -0,0 +1,87 @@
+package org.hashsplit4j.store;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.cache.SingleFlight;
+
+/**
+ * Shares concurrent identical calls to the wrapped store, so when many
+ * threads want the same blob at once (eg a popular file being downloaded)
+ * only one of them goes to the wrapped store and the others get its result.
+ *
+ * Concurrent writes of the same hash are also shared, since the same hash
+ * means the same content, and all writers return once the one write has
+ * completed. Reads of the hash which are in flight when a write completes
+ * aren't shared with later callers, which might otherwise not see the write.
+ *
+ * Nothing is cached, so this is normally put in front of a remote or disk
+ * store, under any caching stores
+ *
+ * @author brad
+ */
+public class CoalescingBlobStore implements BlobStore {
+
+    private final BlobStore wrapped;
+    private final SingleFlight<String, byte[]> gets = new SingleFlight<>();
+    private final SingleFlight<String, Long> lengths = new SingleFlight<>();
+    private final SingleFlight<String, Boolean> exists = new SingleFlight<>();
+    private final SingleFlight<String, Boolean> sets = new SingleFlight<>();
+
+    public CoalescingBlobStore(BlobStore wrapped) {
+        this.wrapped = wrapped;
+    }
+
+    @Override
+    public void setBlob(String hash, byte[] bytes) {
+        sets.run(hash, () -> {
+            try {
+                wrapped.setBlob(hash, bytes);
+            } finally {
+                // reads which started before the write may not see it
+                gets.forget(hash);
+                lengths.forget(hash);
+                exists.forget(hash);
+            }
+            return Boolean.TRUE;
+        });
+    }
+
+    @Override
+    public byte[] getBlob(String hash) {
+        return gets.run(hash, () -> wrapped.getBlob(hash));
+    }
+
+    @Override
+    public boolean hasBlob(String hash) {
+        return exists.run(hash, () -> wrapped.hasBlob(hash));
+    }
+
+    @Override
+    public long getBlobLength(String hash) {
+        return lengths.run(hash, () -> wrapped.getBlobLength(hash));
+    }
+
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        add(stats, "get", gets);
+        add(stats, "length", lengths);
+        add(stats, "has", exists);
+        add(stats, "set", sets);
+        return stats;
+    }
+
+    public BlobStore getWrapped() {
+        return wrapped;
+    }
+
+    @Override
+    public String toString() {
+        return "CoalescingBlobStore(" + wrapped + ")";
+    }
+
+    static void add(Map<String, Object> stats, String name, SingleFlight<?, ?> flight) {
+        stats.put(name + ".calls", flight.getCalls());
+        stats.put(name + ".shared", flight.getShared());
+    }
+}
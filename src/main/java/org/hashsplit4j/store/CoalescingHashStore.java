@@ -0,0 +1,95 @@
+package org.hashsplit4j.store;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.HashStore;
+import org.hashsplit4j.cache.SingleFlight;
+
+/**
+ * Shares concurrent identical calls to the wrapped store. See
+ * CoalescingBlobStore
+ *
+ * @author brad
+ */
+public class CoalescingHashStore implements HashStore {
+
+    private final HashStore wrapped;
+    private final SingleFlight<String, Fanout> chunkGets = new SingleFlight<>();
+    private final SingleFlight<String, Fanout> fileGets = new SingleFlight<>();
+    private final SingleFlight<String, Boolean> chunkExists = new SingleFlight<>();
+    private final SingleFlight<String, Boolean> fileExists = new SingleFlight<>();
+    private final SingleFlight<String, Boolean> chunkSets = new SingleFlight<>();
+    private final SingleFlight<String, Boolean> fileSets = new SingleFlight<>();
+
+    public CoalescingHashStore(HashStore wrapped) {
+        this.wrapped = wrapped;
+    }
+
+    @Override
+    public void setChunkFanout(String hash, List<String> blobHashes, long actualContentLength) {
+        chunkSets.run(hash, () -> {
+            try {
+                wrapped.setChunkFanout(hash, blobHashes, actualContentLength);
+            } finally {
+                chunkGets.forget(hash);
+                chunkExists.forget(hash);
+            }
+            return Boolean.TRUE;
+        });
+    }
+
+    @Override
+    public void setFileFanout(String hash, List<String> fanoutHashes, long actualContentLength) {
+        fileSets.run(hash, () -> {
+            try {
+                wrapped.setFileFanout(hash, fanoutHashes, actualContentLength);
+            } finally {
+                fileGets.forget(hash);
+                fileExists.forget(hash);
+            }
+            return Boolean.TRUE;
+        });
+    }
+
+    @Override
+    public Fanout getFileFanout(String fileHash) {
+        return fileGets.run(fileHash, () -> wrapped.getFileFanout(fileHash));
+    }
+
+    @Override
+    public Fanout getChunkFanout(String fanoutHash) {
+        return chunkGets.run(fanoutHash, () -> wrapped.getChunkFanout(fanoutHash));
+    }
+
+    @Override
+    public boolean hasChunk(String fanoutHash) {
+        return chunkExists.run(fanoutHash, () -> wrapped.hasChunk(fanoutHash));
+    }
+
+    @Override
+    public boolean hasFile(String fileHash) {
+        return fileExists.run(fileHash, () -> wrapped.hasFile(fileHash));
+    }
+
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        CoalescingBlobStore.add(stats, "chunkGet", chunkGets);
+        CoalescingBlobStore.add(stats, "fileGet", fileGets);
+        CoalescingBlobStore.add(stats, "chunkHas", chunkExists);
+        CoalescingBlobStore.add(stats, "fileHas", fileExists);
+        CoalescingBlobStore.add(stats, "chunkSet", chunkSets);
+        CoalescingBlobStore.add(stats, "fileSet", fileSets);
+        return stats;
+    }
+
+    public HashStore getWrapped() {
+        return wrapped;
+    }
+
+    @Override
+    public String toString() {
+        return "CoalescingHashStore(" + wrapped + ")";
+    }
+}
@@ -0,0 +1,71 @@
+package org.hashsplit4j.store;
+
+import java.util.stream.Stream;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.DeletableBlobStore;
+import org.hashsplit4j.api.KeyEnumerable;
+import org.hashsplit4j.utils.KeyStreams;
+
+/**
+ * Thread safe, memory efficient alternative to MemoryBlobStore, for use as a
+ * staging store for parallel parsing and for tests with large numbers of
+ * blobs. Blobs are packed into large byte arrays, see SlabHashMap, and the
+ * total size is limited to a byte budget
+ *
+ * @author brad
+ */
+public class ConcurrentMemoryBlobStore implements BlobStore, KeyEnumerable, DeletableBlobStore {
+
+    private final SlabHashMap map;
+
+    /**
+     *
+     * @param maxBytes - the most memory to use for blobs. setBlob throws an
+     * exception if this would be exceeded
+     */
+    public ConcurrentMemoryBlobStore(long maxBytes) {
+        this.map = new SlabHashMap(maxBytes);
+    }
+
+    public ConcurrentMemoryBlobStore(SlabHashMap map) {
+        this.map = map;
+    }
+
+    @Override
+    public void setBlob(String hash, byte[] bytes) {
+        map.putIfAbsent(hash, bytes);
+    }
+
+    @Override
+    public byte[] getBlob(String hash) {
+        return map.get(hash);
+    }
+
+    @Override
+    public boolean hasBlob(String hash) {
+        return map.contains(hash);
+    }
+
+    @Override
+    public long getBlobLength(String hash) {
+        return map.length(hash);
+    }
+
+    @Override
+    public boolean deleteBlob(String hash) {
+        return map.remove(hash);
+    }
+
+    @Override
+    public Stream<String> keys(String prefix, String afterKey) {
+        return KeyStreams.sortedSnapshot(map.keys(), prefix, afterKey);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getUsedBytes() {
+        return map.getUsedBytes();
+    }
+}
@@ -0,0 +1,135 @@
+package org.hashsplit4j.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.hashsplit4j.api.DeletableHashStore;
+import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.FanoutImpl;
+import org.hashsplit4j.api.FanoutKeyEnumerable;
+import org.hashsplit4j.api.HashStore;
+import org.hashsplit4j.utils.HashBytes;
+import org.hashsplit4j.utils.KeyStreams;
+
+/**
+ * Thread safe, memory efficient alternative to MemoryHashStore. Fanouts are
+ * stored in binary form, with their hashes packed by HashBytes, in slabs (see
+ * SlabHashMap). Chunk and file fanouts share a byte budget
+ *
+ * @author brad
+ */
+public class ConcurrentMemoryHashStore implements HashStore, FanoutKeyEnumerable, DeletableHashStore {
+
+    private final SlabHashMap chunks;
+    private final SlabHashMap files;
+
+    /**
+     *
+     * @param maxBytes - the most memory to use for chunk and file fanouts
+     * together. Setting a fanout throws an exception if this would be exceeded
+     */
+    public ConcurrentMemoryHashStore(long maxBytes) {
+        AtomicLong usedBytes = new AtomicLong();
+        this.chunks = new SlabHashMap(SlabHashMap.DEFAULT_STRIPES, SlabHashMap.DEFAULT_SLAB_SIZE, maxBytes, usedBytes);
+        this.files = new SlabHashMap(SlabHashMap.DEFAULT_STRIPES, SlabHashMap.DEFAULT_SLAB_SIZE, maxBytes, usedBytes);
+    }
+
+    @Override
+    public void setChunkFanout(String hash, List<String> blobHashes, long actualContentLength) {
+        chunks.putIfAbsent(hash, encode(blobHashes, actualContentLength));
+    }
+
+    @Override
+    public void setFileFanout(String hash, List<String> fanoutHashes, long actualContentLength) {
+        files.putIfAbsent(hash, encode(fanoutHashes, actualContentLength));
+    }
+
+    @Override
+    public Fanout getFileFanout(String fileHash) {
+        return files.read(fileHash, ConcurrentMemoryHashStore::decode);
+    }
+
+    @Override
+    public Fanout getChunkFanout(String fanoutHash) {
+        return chunks.read(fanoutHash, ConcurrentMemoryHashStore::decode);
+    }
+
+    @Override
+    public boolean hasChunk(String fanoutHash) {
+        return chunks.contains(fanoutHash);
+    }
+
+    @Override
+    public boolean hasFile(String fileHash) {
+        return files.contains(fileHash);
+    }
+
+    @Override
+    public boolean deleteChunkFanout(String fanoutHash) {
+        return chunks.remove(fanoutHash);
+    }
+
+    @Override
+    public boolean deleteFileFanout(String fileHash) {
+        return files.remove(fileHash);
+    }
+
+    @Override
+    public Stream<String> chunkKeys(String prefix, String afterKey) {
+        return KeyStreams.sortedSnapshot(chunks.keys(), prefix, afterKey);
+    }
+
+    @Override
+    public Stream<String> fileKeys(String prefix, String afterKey) {
+        return KeyStreams.sortedSnapshot(files.keys(), prefix, afterKey);
+    }
+
+    public int getNumChunks() {
+        return chunks.size();
+    }
+
+    public int getNumFiles() {
+        return files.size();
+    }
+
+    public long getUsedBytes() {
+        return chunks.getUsedBytes();
+    }
+
+    /**
+     * Layout is [actualContentLength:8][count:4] then [len:2][hash] for each
+     * hash
+     */
+    private static byte[] encode(List<String> hashes, long actualContentLength) {
+        List<byte[]> encoded = new ArrayList<>(hashes.size());
+        int size = 12;
+        for (String hash : hashes) {
+            byte[] arr = HashBytes.encode(hash);
+            encoded.add(arr);
+            size += 2 + arr.length;
+        }
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        bb.putLong(actualContentLength);
+        bb.putInt(encoded.size());
+        for (byte[] arr : encoded) {
+            bb.putShort((short) arr.length);
+            bb.put(arr);
+        }
+        return bb.array();
+    }
+
+    private static Fanout decode(byte[] slab, int offset, int length) {
+        ByteBuffer bb = ByteBuffer.wrap(slab, offset, length);
+        long actualContentLength = bb.getLong();
+        int count = bb.getInt();
+        List<String> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int len = bb.getShort() & 0xffff;
+            hashes.add(HashBytes.decode(slab, bb.position(), len));
+            bb.position(bb.position() + len);
+        }
+        return new FanoutImpl(hashes, actualContentLength);
+    }
+}
@@ -0,0 +1,184 @@
+package org.hashsplit4j.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.DeletableBlobStore;
+import org.hashsplit4j.api.KeyEnumerable;
+import org.hashsplit4j.cache.CuckooFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a cuckoo filter of the keys in the wrapped store, so lookups of blobs
+ * which aren't there (eg most dedupe checks while importing new content) are
+ * answered without going to the store.
+ *
+ * This must be the only way the wrapped store is written to, otherwise blobs
+ * added directly will be reported as missing.
+ *
+ * Writing a key which the filter might already contain doesn't add another
+ * fingerprint, so rewriting a blob neither fills the filter nor costs a lookup
+ * in the wrapped store. If the key was actually new (a false positive, about 1
+ * in 8000) and the key whose fingerprint it matched is later deleted, the new
+ * key is reported as missing until the filter is rebuilt, as if it had been
+ * added directly. Writes and deletes of the same key are serialised, so they
+ * can't race to leave it without a fingerprint.
+ *
+ * Call init() before use. This loads the snapshot written by close() if there
+ * is one, otherwise rebuilds the filter by listing the keys of the wrapped
+ * store, which must be KeyEnumerable. The snapshot is deleted once loaded, so
+ * if the process stops without close() the filter is rebuilt next time rather
+ * than missing recent writes. Until the filter is ready every lookup goes to
+ * the wrapped store
+ *
+ * @author brad
+ */
+public class CuckooFilterBlobStore implements DeletableBlobStore {
+
+    private static final Logger log = LoggerFactory.getLogger(CuckooFilterBlobStore.class);
+
+    private final BlobStore wrapped;
+    private final File snapshotFile;
+    private final CuckooKeyFilter keys;
+
+    /**
+     *
+     * @param wrapped
+     * @param expectedKeys - number of keys the filter should hold
+     * @param snapshotFile - where to save the filter on close, may be null
+     */
+    public CuckooFilterBlobStore(BlobStore wrapped, long expectedKeys, File snapshotFile) {
+        this.wrapped = wrapped;
+        this.snapshotFile = snapshotFile;
+        this.keys = new CuckooKeyFilter("blob", expectedKeys);
+    }
+
+    public void init() {
+        CuckooFilter[] arr = loadSnapshot(snapshotFile, 1);
+        if (arr != null) {
+            keys.set(arr[0]);
+            log.info("init: loaded filter of {} keys from {}", arr[0].size(), snapshotFile.getAbsolutePath());
+        } else {
+            rebuild();
+        }
+    }
+
+    /**
+     * Build a new filter from the keys of the wrapped store, eg if it has
+     * overflowed. Lookups use the current filter until it is done
+     */
+    public void rebuild() {
+        if (!(wrapped instanceof KeyEnumerable)) {
+            log.warn("rebuild: wrapped store can't list its keys, so can't build a filter: {}", wrapped);
+            return;
+        }
+        keys.rebuild(() -> ((KeyEnumerable) wrapped).keys(null, null));
+    }
+
+    /**
+     * Save the filter so it can be loaded by init
+     */
+    public void close() {
+        CuckooFilter f = keys.get();
+        if (snapshotFile == null || f == null || keys.isRebuilding()) {
+            return;
+        }
+        try {
+            CuckooFilter.writeSnapshot(snapshotFile, f);
+        } catch (IOException ex) {
+            log.warn("close: couldnt write snapshot " + snapshotFile.getAbsolutePath(), ex);
+        }
+    }
+
+    @Override
+    public void setBlob(String hash, byte[] bytes) {
+        synchronized (keys.lockFor(hash)) {
+            boolean present = keys.get() != null && keys.mightContain(hash);
+            wrapped.setBlob(hash, bytes);
+            if (!present) {
+                keys.add(hash);
+            }
+        }
+    }
+
+    @Override
+    public byte[] getBlob(String hash) {
+        if (keys.isMissing(hash)) {
+            return null;
+        }
+        return wrapped.getBlob(hash);
+    }
+
+    @Override
+    public boolean hasBlob(String hash) {
+        if (keys.isMissing(hash)) {
+            return false;
+        }
+        return wrapped.hasBlob(hash);
+    }
+
+    @Override
+    public long getBlobLength(String hash) {
+        if (keys.isMissing(hash)) {
+            return -1;
+        }
+        return wrapped.getBlobLength(hash);
+    }
+
+    @Override
+    public boolean deleteBlob(String hash) {
+        if (!(wrapped instanceof DeletableBlobStore)) {
+            return false;
+        }
+        synchronized (keys.lockFor(hash)) {
+            if (!((DeletableBlobStore) wrapped).deleteBlob(hash)) {
+                return false;
+            }
+            keys.delete(hash);
+            return true;
+        }
+    }
+
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        keys.addStats(stats, "");
+        return stats;
+    }
+
+    public BlobStore getWrapped() {
+        return wrapped;
+    }
+
+    @Override
+    public String toString() {
+        return "CuckooFilterBlobStore(" + wrapped + ")";
+    }
+
+    /**
+     * Read and then delete the snapshot, so it is only used once
+     *
+     * @return null if there isn't a usable snapshot
+     */
+    static CuckooFilter[] loadSnapshot(File snapshotFile, int numFilters) {
+        if (snapshotFile == null || !snapshotFile.exists()) {
+            return null;
+        }
+        CuckooFilter[] arr = null;
+        try {
+            arr = CuckooFilter.readSnapshot(snapshotFile, numFilters);
+            if (arr == null) {
+                log.warn("loadSnapshot: not a valid snapshot, ignoring: {}", snapshotFile.getAbsolutePath());
+            }
+        } catch (IOException ex) {
+            log.warn("loadSnapshot: couldnt read snapshot " + snapshotFile.getAbsolutePath(), ex);
+        }
+        if (!snapshotFile.delete()) {
+            log.warn("loadSnapshot: couldnt delete snapshot, so not using it: {}", snapshotFile.getAbsolutePath());
+            return null;
+        }
+        return arr;
+    }
+}
@@ -0,0 +1,185 @@
+package org.hashsplit4j.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.hashsplit4j.api.DeletableHashStore;
+import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.FanoutKeyEnumerable;
+import org.hashsplit4j.api.HashStore;
+import org.hashsplit4j.cache.CuckooFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps cuckoo filters of the chunk and file fanout hashes in the wrapped
+ * store, so lookups of fanouts which aren't there are answered without going
+ * to the store. Rebuilding requires the wrapped store to be
+ * FanoutKeyEnumerable. See CuckooFilterBlobStore, including for the case
+ * where a hash can be reported as missing
+ *
+ * @author brad
+ */
+public class CuckooFilterHashStore implements DeletableHashStore {
+
+    private static final Logger log = LoggerFactory.getLogger(CuckooFilterHashStore.class);
+
+    private final HashStore wrapped;
+    private final File snapshotFile;
+    private final CuckooKeyFilter chunks;
+    private final CuckooKeyFilter files;
+
+    /**
+     *
+     * @param wrapped
+     * @param expectedKeys - number of hashes each filter should hold
+     * @param snapshotFile - where to save the filters on close, may be null
+     */
+    public CuckooFilterHashStore(HashStore wrapped, long expectedKeys, File snapshotFile) {
+        this.wrapped = wrapped;
+        this.snapshotFile = snapshotFile;
+        this.chunks = new CuckooKeyFilter("chunk", expectedKeys);
+        this.files = new CuckooKeyFilter("file", expectedKeys);
+    }
+
+    public void init() {
+        CuckooFilter[] arr = CuckooFilterBlobStore.loadSnapshot(snapshotFile, 2);
+        if (arr != null) {
+            chunks.set(arr[0]);
+            files.set(arr[1]);
+            log.info("init: loaded filters of {} chunks and {} files from {}", arr[0].size(), arr[1].size(), snapshotFile.getAbsolutePath());
+        } else {
+            rebuild();
+        }
+    }
+
+    /**
+     * Build new filters from the keys of the wrapped store. Lookups use the
+     * current filters until it is done
+     */
+    public void rebuild() {
+        if (!(wrapped instanceof FanoutKeyEnumerable)) {
+            log.warn("rebuild: wrapped store can't list its keys, so can't build filters: {}", wrapped);
+            return;
+        }
+        FanoutKeyEnumerable enumerable = (FanoutKeyEnumerable) wrapped;
+        chunks.rebuild(() -> enumerable.chunkKeys(null, null));
+        files.rebuild(() -> enumerable.fileKeys(null, null));
+    }
+
+    /**
+     * Save the filters so they can be loaded by init
+     */
+    public void close() {
+        CuckooFilter c = chunks.get();
+        CuckooFilter f = files.get();
+        if (snapshotFile == null || c == null || f == null || chunks.isRebuilding() || files.isRebuilding()) {
+            return;
+        }
+        try {
+            CuckooFilter.writeSnapshot(snapshotFile, c, f);
+        } catch (IOException ex) {
+            log.warn("close: couldnt write snapshot " + snapshotFile.getAbsolutePath(), ex);
+        }
+    }
+
+    @Override
+    public void setChunkFanout(String hash, List<String> blobHashes, long actualContentLength) {
+        synchronized (chunks.lockFor(hash)) {
+            boolean present = chunks.get() != null && chunks.mightContain(hash);
+            wrapped.setChunkFanout(hash, blobHashes, actualContentLength);
+            if (!present) {
+                chunks.add(hash);
+            }
+        }
+    }
+
+    @Override
+    public void setFileFanout(String hash, List<String> fanoutHashes, long actualContentLength) {
+        synchronized (files.lockFor(hash)) {
+            boolean present = files.get() != null && files.mightContain(hash);
+            wrapped.setFileFanout(hash, fanoutHashes, actualContentLength);
+            if (!present) {
+                files.add(hash);
+            }
+        }
+    }
+
+    @Override
+    public Fanout getFileFanout(String fileHash) {
+        if (files.isMissing(fileHash)) {
+            return null;
+        }
+        return wrapped.getFileFanout(fileHash);
+    }
+
+    @Override
+    public Fanout getChunkFanout(String fanoutHash) {
+        if (chunks.isMissing(fanoutHash)) {
+            return null;
+        }
+        return wrapped.getChunkFanout(fanoutHash);
+    }
+
+    @Override
+    public boolean hasChunk(String fanoutHash) {
+        if (chunks.isMissing(fanoutHash)) {
+            return false;
+        }
+        return wrapped.hasChunk(fanoutHash);
+    }
+
+    @Override
+    public boolean hasFile(String fileHash) {
+        if (files.isMissing(fileHash)) {
+            return false;
+        }
+        return wrapped.hasFile(fileHash);
+    }
+
+    @Override
+    public boolean deleteChunkFanout(String fanoutHash) {
+        if (!(wrapped instanceof DeletableHashStore)) {
+            return false;
+        }
+        synchronized (chunks.lockFor(fanoutHash)) {
+            if (!((DeletableHashStore) wrapped).deleteChunkFanout(fanoutHash)) {
+                return false;
+            }
+            chunks.delete(fanoutHash);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean deleteFileFanout(String fileHash) {
+        if (!(wrapped instanceof DeletableHashStore)) {
+            return false;
+        }
+        synchronized (files.lockFor(fileHash)) {
+            if (!((DeletableHashStore) wrapped).deleteFileFanout(fileHash)) {
+                return false;
+            }
+            files.delete(fileHash);
+            return true;
+        }
+    }
+
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        chunks.addStats(stats, "chunks.");
+        files.addStats(stats, "files.");
+        return stats;
+    }
+
+    public HashStore getWrapped() {
+        return wrapped;
+    }
+
+    @Override
+    public String toString() {
+        return "CuckooFilterHashStore(" + wrapped + ")";
+    }
+}
@@ -0,0 +1,140 @@
+package org.hashsplit4j.store;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import org.hashsplit4j.cache.CuckooFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The filter of one key space of a store, and the rules for keeping it
+ * correct while it is being rebuilt. Used by CuckooFilterBlobStore and
+ * CuckooFilterHashStore
+ *
+ * @author brad
+ */
+class CuckooKeyFilter {
+
+    private static final Logger log = LoggerFactory.getLogger(CuckooKeyFilter.class);
+
+    private static final int LOCK_STRIPES = 1024;
+
+    private final String name;
+    private final long expectedKeys;
+    private volatile CuckooFilter filter;
+    private volatile CuckooFilter rebuilding;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final LongAdder filtered = new LongAdder();
+    private final LongAdder passed = new LongAdder();
+
+    CuckooKeyFilter(String name, long expectedKeys) {
+        this.name = name;
+        this.expectedKeys = expectedKeys;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Hold this while writing or deleting the key in the store and updating
+     * the filter, so a set and a delete of the same key can't interleave and
+     * leave it in the store without a fingerprint
+     */
+    Object lockFor(String key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    /**
+     *
+     * @return true if the key is definitely not in the store. Always false
+     * until the filter is ready
+     */
+    boolean isMissing(String key) {
+        CuckooFilter f = filter;
+        if (f != null && !f.mightContain(key)) {
+            filtered.increment();
+            return true;
+        }
+        passed.increment();
+        return false;
+    }
+
+    /**
+     *
+     * @return true if the key might already have a fingerprint
+     */
+    boolean mightContain(String key) {
+        CuckooFilter f = filter;
+        return f == null || f.mightContain(key);
+    }
+
+    /**
+     * Call after the key has been written to the store
+     */
+    void add(String key) {
+        CuckooFilter next = rebuilding;
+        if (next != null) {
+            next.put(key);
+        }
+        CuckooFilter f = filter;
+        if (f != null && f != next && !f.isOverflowed() && !f.put(key)) {
+            log.warn("add: {} filter has overflowed, so now passes every lookup. Rebuild with more than {} expected keys", name, expectedKeys);
+        }
+    }
+
+    /**
+     * Call after the key has been deleted from the store
+     */
+    void delete(String key) {
+        // only from the current filter, a rebuild might not have seen this key
+        CuckooFilter f = filter;
+        if (f != null) {
+            f.delete(key);
+        }
+    }
+
+    void rebuild(Supplier<Stream<String>> keys) {
+        long startTime = System.currentTimeMillis();
+        CuckooFilter current = filter;
+        CuckooFilter next = new CuckooFilter(Math.max(expectedKeys, current == null ? 0 : current.size() * 2));
+        rebuilding = next; // writes from now on are added to both
+        boolean done = false;
+        try (Stream<String> stream = keys.get()) {
+            stream.forEach(next::put);
+            done = true;
+        } finally {
+            if (done) {
+                filter = next;
+            }
+            rebuilding = null;
+        }
+        log.info("rebuild: {} filter of {} keys in {}ms, overflowed={}", name, next.size(), System.currentTimeMillis() - startTime, next.isOverflowed());
+    }
+
+    CuckooFilter get() {
+        return filter;
+    }
+
+    void set(CuckooFilter filter) {
+        this.filter = filter;
+    }
+
+    boolean isRebuilding() {
+        return rebuilding != null;
+    }
+
+    void addStats(Map<String, Object> stats, String prefix) {
+        stats.put(prefix + "filtered", filtered.sum());
+        stats.put(prefix + "passed", passed.sum());
+        CuckooFilter f = filter;
+        if (f != null) {
+            stats.put(prefix + "keys", f.size());
+            stats.put(prefix + "capacity", f.capacity());
+            stats.put(prefix + "overflowed", f.isOverflowed());
+        }
+        stats.put(prefix + "rebuilding", rebuilding != null);
+    }
+}
@@ -65,6 +65,15 @@ public class FileBlobStore implements BlobStore {
         return mapOfChunks.containsKey(hash);
     }
 
+    @Override
+    public long getBlobLength(String hash) {
+        Chunk chunk = mapOfChunks.get(hash);
+        if (chunk == null) {
+            return -1;
+        }
+        return chunk.length;
+    }
+
     public File getFile() {
         return file;
     }
@@ -7,11 +7,6 @@ import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.ConflictException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import java.io.*;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -21,9 +16,12 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 import org.apache.commons.io.FileUtils;
 import org.hashsplit4j.api.BlobImpl;
 import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.DeletableBlobStore;
+import org.hashsplit4j.api.KeyEnumerable;
 import org.hashsplit4j.utils.FileUtil;
 import org.hashsplit4j.event.NewFileBlobEvent;
 import org.hashsplit4j.utils.FileSystem2Utils;
@@ -33,7 +31,7 @@ import org.hashsplit4j.utils.FileSystem2Utils;
  *
  * @author brad
  */
-public class FileSystem2BlobStore implements BlobStore, PushingBlobStore, ReceivingBlobStore {
+public class FileSystem2BlobStore implements BlobStore, PushingBlobStore, ReceivingBlobStore, KeyEnumerable, DeletableBlobStore {
 
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(FileSystem2BlobStore.class);
 
@@ -111,13 +109,33 @@ public class FileSystem2BlobStore implements BlobStore, PushingBlobStore, Receiv
         return blob.exists();
     }
 
+    @Override
+    public long getBlobLength(String hash) {
+        File blob = FileSystem2Utils.toFile(root, hash);
+        if (!blob.exists()) {
+            return -1;
+        }
+        return blob.length();
+    }
+
+    @Override
+    public boolean deleteBlob(String hash) {
+        File blob = FileSystem2Utils.toFile(root, hash);
+        return blob.delete();
+    }
+
+    @Override
+    public Stream<String> keys(String prefix, String afterKey) {
+        return FileSystem2Utils.keys(root, null, prefix, afterKey);
+    }
+
     @Override
     public void setReceivingBlobStore(ReceivingBlobStore blobStore) {
         this.receivingBlobStore = blobStore;
         if (fsScanner != null && !fsScanner.isDone()) {
             fsScanner.cancel(true);
         }
-        fsScanner = processor.submit(new ScanFileSystem(root.toPath()));
+        fsScanner = processor.submit(new ScanFileSystem());
     }
 
     @Override
@@ -166,29 +184,20 @@ public class FileSystem2BlobStore implements BlobStore, PushingBlobStore, Receiv
 
     private class ScanFileSystem implements Runnable {
 
-        private final Path startPath;
-
-        public ScanFileSystem(final Path startPath) {
-            this.startPath = startPath;
-        }
-
         @Override
         public void run() {
-            try {
-                Files.walkFileTree(this.startPath, new SimpleFileVisitor<Path>() {
-                    @Override
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                            throws IOException {
-
-                        if (file != null && attrs != null && !attrs.isDirectory()) {
-                            File blob = file.toFile();
-                            pushBlobTo(blob);
-                        }
-
-                        return FileVisitResult.CONTINUE;
+            try (Stream<String> hashes = keys(null, null)) {
+                hashes.forEach(hash -> {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new RuntimeException("Scan cancelled");
+                    }
+                    try {
+                        pushBlobTo(FileSystem2Utils.toFile(root, hash));
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
                     }
                 });
-            } catch (IOException ex) {
+            } catch (RuntimeException ex) {
                 log.error("Error walking directory", ex);
             }
         }
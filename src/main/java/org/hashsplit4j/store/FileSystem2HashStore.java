@@ -8,7 +8,10 @@ package org.hashsplit4j.store;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.stream.Stream;
+import org.hashsplit4j.api.DeletableHashStore;
 import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.FanoutKeyEnumerable;
 import org.hashsplit4j.utils.FileUtil;
 import org.hashsplit4j.api.HashStore;
 import org.hashsplit4j.utils.FileSystem2Utils;
@@ -20,7 +23,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author dylan
  */
-public class FileSystem2HashStore implements HashStore {
+public class FileSystem2HashStore implements HashStore, FanoutKeyEnumerable, DeletableHashStore {
 
     private static final Logger log = LoggerFactory.getLogger(FileSystem2HashStore.class);
     private static final String CHUNK_TYPE = "chunks";
@@ -93,4 +96,26 @@ public class FileSystem2HashStore implements HashStore {
         File fileFanout = FileSystem2Utils.toFileWithPrefix(envHome, fileHash, FILE_TYPE);
         return fileFanout.exists();
     }
+
+    @Override
+    public boolean deleteChunkFanout(String fanoutHash) {
+        File chunkFanout = FileSystem2Utils.toFileWithPrefix(envHome, fanoutHash, CHUNK_TYPE);
+        return chunkFanout.delete();
+    }
+
+    @Override
+    public boolean deleteFileFanout(String fileHash) {
+        File fileFanout = FileSystem2Utils.toFileWithPrefix(envHome, fileHash, FILE_TYPE);
+        return fileFanout.delete();
+    }
+
+    @Override
+    public Stream<String> chunkKeys(String prefix, String afterKey) {
+        return FileSystem2Utils.keys(envHome, CHUNK_TYPE, prefix, afterKey);
+    }
+
+    @Override
+    public Stream<String> fileKeys(String prefix, String afterKey) {
+        return FileSystem2Utils.keys(envHome, FILE_TYPE, prefix, afterKey);
+    }
 }
@@ -107,4 +107,13 @@ public class FileSystemBlobStore implements BlobStore {
         File blob = FsHashUtils.toFile(root, hash);
         return blob.exists();
     }
+
+    @Override
+    public long getBlobLength(String hash) {
+        File blob = FsHashUtils.toFile(root, hash);
+        if (!blob.exists()) {
+            return -1;
+        }
+        return blob.length();
+    }
 }
@@ -78,8 +78,34 @@ public class HABlobStore implements BlobStore {
 
     @Override
     public boolean hasBlob(String hash) {
-        byte[] bytes = getBlob(hash);
-        return bytes != null;
+        return getBlobLength(hash) >= 0;
+    }
+
+    @Override
+    public long getBlobLength(String hash) {
+        BlobStore p = curPrimary;
+        BlobStore s = curSecondary;
+        long length;
+        try {
+            length = p.getBlobLength(hash);
+            if (length < 0) {
+                if (trySecondaryWhenNotFound && curSecondary != null) {
+                    log.info("Not found in primary, and trySecondaryWhenNotFound is true, so try secondary");
+                    length = s.getBlobLength(hash);
+                }
+            }
+        } catch (Exception ex) {
+            log.warn("getBlobLength failed on primary: " + p + " because of: " + ex.getMessage());
+            log.warn("try on seconday: " + s + " ...");
+            try {
+                length = s.getBlobLength(hash);
+                log.warn("getBlobLength succeeded on secondary");
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to lookup from secondary: " + s, e);
+            }
+            switchStores(p, s);
+        }
+        return length;
     }
 
     @Override
@@ -5,6 +5,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Map;
 import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
@@ -18,6 +19,7 @@ import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.entity.ByteArrayEntity;
@@ -124,6 +126,77 @@ public class HashsplitHttpTransport {
         }
     }
 
+    /**
+     * Find the length of the resource at the given path with a HEAD request,
+     * so the content doesnt need to be transferred
+     *
+     * If the server doesnt return a Content-Length header then this falls back
+     * to a GET
+     *
+     * @param path
+     * @return the content length, or -1 if the resource does not exist
+     */
+    public long getContentLength(String path) {
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+        HttpClientContext localContext = HttpClientContext.create();
+        localContext.setAuthCache(authCache);
+
+        RequestConfig reqConfig = RequestConfig.custom()
+                .setSocketTimeout(timeout)
+                .setConnectTimeout(timeout)
+                .setCookieSpec(CookieSpecs.STANDARD)
+                .build();
+        CloseableHttpClient client = HttpClients.custom()
+                .setDefaultCredentialsProvider(credsProvider)
+                .setDefaultRequestConfig(reqConfig)
+                .setDefaultCookieStore(cookieStore)
+                .build();
+        long tm = System.currentTimeMillis();
+        Long contentLength;
+        try {
+            URI uri = new URI("http", null, server, port, path, null, null);
+            HttpHead m = new HttpHead(uri);
+            ResponseHandler<Long> responseHandler = new ResponseHandler<Long>() {
+
+                @Override
+                public Long handleResponse(final HttpResponse response) throws ClientProtocolException, IOException {
+                    int status = response.getStatusLine().getStatusCode();
+                    if (status >= 200 && status < 300) {
+                        Header h = response.getFirstHeader("Content-Length");
+                        if (h == null) {
+                            return null; // exists, but need to GET it to find the length
+                        }
+                        try {
+                            return Long.parseLong(h.getValue().trim());
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                    } else if (status == 404) {
+                        return -1L;
+                    } else {
+                        throw new ClientProtocolException("Unexpected response status: " + status);
+                    }
+                }
+
+            };
+            contentLength = client.execute(m, responseHandler, localContext);
+        } catch (java.net.SocketTimeoutException ex) {
+            tm = System.currentTimeMillis() - tm;
+            throw new RuntimeException("Socket timeout: server=" + server + "; port=" + port + "Configured timeout=" + timeout + " actual time=" + tm + "ms", ex);
+        } catch (URISyntaxException | IOException ex) {
+            throw new RuntimeException("server=" + server + "; port=" + port + "; path=" + path, ex);
+        } finally {
+            IOUtils.closeQuietly(client);
+        }
+        if (contentLength != null) {
+            return contentLength;
+        }
+        byte[] arr = get(path);
+        return arr == null ? -1 : arr.length;
+    }
+
     public void put(String path, byte[] bytes) {
         HttpClientContext localContext = HttpClientContext.create();
         localContext.setAuthCache(authCache);
@@ -0,0 +1,72 @@
+package org.hashsplit4j.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default SimpleFileDbIndex, a ConcurrentHashMap of keys to items. Simple,
+ * but costs around 150 bytes of heap per key
+ *
+ * @author brad
+ */
+public class HeapSimpleFileDbIndex implements SimpleFileDbIndex {
+
+    private final ConcurrentHashMap<String, SimpleFileDb.DbItem> map = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(String key, long start, long finish, long crc) {
+        map.put(key, new SimpleFileDb.DbItem(start, finish, crc));
+    }
+
+    @Override
+    public SimpleFileDb.DbItem get(String key) {
+        return map.get(key);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public SimpleFileDbIndex newEmpty() {
+        return new HeapSimpleFileDbIndex();
+    }
+
+    @Override
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, SimpleFileDb.DbItem> e : map.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeLong(e.getValue().getStart());
+            out.writeLong(e.getValue().getFinish());
+            out.writeLong(e.getValue().getCrc());
+        }
+    }
+
+    @Override
+    public void readFrom(DataInputStream in) throws IOException {
+        map.clear();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            long start = in.readLong();
+            long finish = in.readLong();
+            long crc = in.readLong();
+            map.put(key, new SimpleFileDb.DbItem(start, finish, crc));
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.hashsplit4j.store;
 
 import io.milton.common.Path;
 import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.HashCache;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -17,6 +18,7 @@ public class HttpBlobStore implements BlobStore {
     private Path basePath;
     private long gets;
     private long sets;
+    private HashCache hashCache;
 
     public HttpBlobStore(String server, int port, String rootPath, String username, String password) {
         httpTransport = new HashsplitHttpTransport(server, port, username, password);
@@ -40,12 +42,27 @@ public class HttpBlobStore implements BlobStore {
         }
         Path destPath = basePath.child(hash + "");
         httpTransport.put(destPath.toString(), bytes);
+        if (hashCache != null) {
+            hashCache.setHash(hash);
+        }
     }
 
     @Override
     public boolean hasBlob(String hash) {
-        byte[] bytes = getBlob(hash);
-        return bytes != null;
+        if (hashCache != null && hashCache.hasHash(hash)) {
+            return true;
+        }
+        boolean b = getBlobLength(hash) >= 0;
+        if (b && hashCache != null) {
+            hashCache.setHash(hash);
+        }
+        return b;
+    }
+
+    @Override
+    public long getBlobLength(String hash) {
+        Path destPath = basePath.child(hash);
+        return httpTransport.getContentLength(destPath.toString());
     }
 
     @Override
@@ -85,6 +102,20 @@ public class HttpBlobStore implements BlobStore {
         return sets;
     }
 
+    public HashCache getHashCache() {
+        return hashCache;
+    }
+
+    /**
+     * Hashes known to be on the server, so setBlob and hasBlob don't need to
+     * ask it. See DigestHashCache
+     *
+     * @param hashCache
+     */
+    public void setHashCache(HashCache hashCache) {
+        this.hashCache = hashCache;
+    }
+
     @Override
     public String toString() {
         return "HttpBlobStore: " + httpTransport.toString();
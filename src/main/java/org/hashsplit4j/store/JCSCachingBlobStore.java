@@ -101,8 +101,16 @@ public class JCSCachingBlobStore extends AbstractBlobStore implements BlobStore
 
     @Override
     public boolean hasBlob(String hash) {
-        byte[] arr = getBlob(hash);
-        return arr != null;
+        return getBlobLength(hash) >= 0;
+    }
+
+    @Override
+    public long getBlobLength(String hash) {
+        byte[] arr = (byte[]) cache.get(hash);
+        if (arr != null) {
+            return arr.length;
+        }
+        return blobStore.getBlobLength(hash);
     }
 
 
@@ -6,13 +6,17 @@
 package org.hashsplit4j.store;
 
 import java.io.File;
+import java.util.stream.Stream;
 import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.DeletableBlobStore;
+import org.hashsplit4j.api.KeyEnumerable;
+import org.hashsplit4j.utils.KeyStreams;
 
 /**
  *
  * @author dylan
  */
-public class MapDbBlobStore implements BlobStore {
+public class MapDbBlobStore implements BlobStore, KeyEnumerable, DeletableBlobStore {
 
     private final MapDbEnv<String, byte[]> blobDb;
 
@@ -36,4 +40,15 @@ public class MapDbBlobStore implements BlobStore {
         return this.blobDb.hasHash(hash);
     }
 
+    @Override
+    public boolean deleteBlob(String hash) {
+        return this.blobDb.remove(hash);
+    }
+
+    @Override
+    public Stream<String> keys(String prefix, String afterKey) {
+        // HTreeMap is a hash map, so has no useful order. Keys are small so take a sorted snapshot
+        return KeyStreams.sortedSnapshot(this.blobDb.keys(), prefix, afterKey);
+    }
+
 }
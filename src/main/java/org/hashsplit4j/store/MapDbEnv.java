@@ -6,6 +6,7 @@
 package org.hashsplit4j.store;
 
 import java.io.File;
+import java.util.Set;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
@@ -60,4 +61,12 @@ public class MapDbEnv<K, V> {
     public boolean hasHash(K key) {
         return this.map.containsKey(key);
     }
+
+    public boolean remove(K key) {
+        return this.map.remove(key) != null;
+    }
+
+    public Set<K> keys() {
+        return this.map.keySet();
+    }
 }
@@ -8,15 +8,19 @@ package org.hashsplit4j.store;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
+import org.hashsplit4j.api.DeletableHashStore;
 import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.FanoutKeyEnumerable;
 import org.hashsplit4j.api.FanoutImpl;
 import org.hashsplit4j.api.HashStore;
+import org.hashsplit4j.utils.KeyStreams;
 
 /**
  *
  * @author dylan
  */
-public class MapDbHashStore implements HashStore {
+public class MapDbHashStore implements HashStore, FanoutKeyEnumerable, DeletableHashStore {
 
     private final MapDbEnv<String, String> fileDb;
     private final MapDbEnv<String, String> chunkDb;
@@ -69,6 +73,26 @@ public class MapDbHashStore implements HashStore {
         return this.fileDb.hasHash(fileHash);
     }
 
+    @Override
+    public boolean deleteChunkFanout(String fanoutHash) {
+        return this.chunkDb.remove(fanoutHash);
+    }
+
+    @Override
+    public boolean deleteFileFanout(String fileHash) {
+        return this.fileDb.remove(fileHash);
+    }
+
+    @Override
+    public Stream<String> chunkKeys(String prefix, String afterKey) {
+        return KeyStreams.sortedSnapshot(this.chunkDb.keys(), prefix, afterKey);
+    }
+
+    @Override
+    public Stream<String> fileKeys(String prefix, String afterKey) {
+        return KeyStreams.sortedSnapshot(this.fileDb.keys(), prefix, afterKey);
+    }
+
     private String formatFanout(List<String> blobHashes, long actualContentLength) {
         StringBuilder sb = new StringBuilder();
 
@@ -0,0 +1,164 @@
+package org.hashsplit4j.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read only memory mapping of a SimpleFileDb values file. A single mapping
+ * is limited to 2GB, so the file is mapped in fixed size segments. A value
+ * which lies within a segment can be returned as a slice of the mapping, one
+ * which crosses a segment boundary is copied.
+ *
+ * The file is only appended to, so when a read goes past what has been
+ * mapped the last (partial) segment and any new ones are mapped again. Reads
+ * within the mapping don't need any system calls.
+ *
+ * Mappings are made from a channel supplied by the caller, so they are of the
+ * file that channel has open even if the path has since been replaced. The
+ * caller must make sure the file is not truncated while it might be read,
+ * since accessing a mapping past the end of the file crashes the JVM
+ *
+ * @author brad
+ */
+class MappedValuesFile {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30; // 1GB
+
+    interface ChannelSource {
+
+        /**
+         * @return an open channel for the file, which the caller won't close
+         */
+        FileChannel channel() throws IOException;
+    }
+
+    private final File file;
+    private final ChannelSource channelSource;
+    private final int segmentShift;
+    private final long segmentMask;
+
+    // segments and the size they cover are published together, so a reader
+    // never sees a size with segments that don't cover it (eg after close)
+    private volatile Mapping mapping = Mapping.EMPTY;
+
+    /**
+     *
+     * @param file - only used in messages
+     * @param channelSource
+     * @param segmentSize - must be a power of two, no more than 1GB
+     */
+    MappedValuesFile(File file, ChannelSource channelSource, int segmentSize) {
+        if (Integer.bitCount(segmentSize) != 1 || segmentSize > DEFAULT_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be a power of two, up to 1GB: " + segmentSize);
+        }
+        this.file = file;
+        this.channelSource = channelSource;
+        this.segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+        this.segmentMask = segmentSize - 1;
+    }
+
+    /**
+     * Copy a value from the mapping
+     */
+    byte[] read(long start, int length) throws IOException {
+        MappedByteBuffer[] segs = ensureMapped(start + length);
+        byte[] arr = new byte[length];
+        int copied = 0;
+        long pos = start;
+        while (copied < length) {
+            ByteBuffer seg = segs[(int) (pos >>> segmentShift)].duplicate();
+            int off = (int) (pos & segmentMask);
+            int n = Math.min(length - copied, seg.capacity() - off);
+            seg.position(off);
+            seg.get(arr, copied, n);
+            copied += n;
+            pos += n;
+        }
+        return arr;
+    }
+
+    /**
+     * Get a value as a read only buffer, which is a view of the mapping if
+     * possible, otherwise a copy
+     */
+    ByteBuffer slice(long start, int length) throws IOException {
+        if (length == 0) {
+            // may start at the end of the mapping, so there is no segment for it
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        MappedByteBuffer[] segs = ensureMapped(start + length);
+        MappedByteBuffer seg = segs[(int) (start >>> segmentShift)];
+        int off = (int) (start & segmentMask);
+        if (off + length > seg.capacity()) {
+            return ByteBuffer.wrap(read(start, length)).asReadOnlyBuffer();
+        }
+        ByteBuffer dup = seg.duplicate();
+        dup.position(off);
+        dup.limit(off + length);
+        return dup.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Drop the mappings, eg before the file is replaced. They are released
+     * when garbage collected, so reads already using them are unaffected
+     */
+    synchronized void close() {
+        mapping = Mapping.EMPTY;
+    }
+
+    long getMappedSize() {
+        return mapping.size;
+    }
+
+    private MappedByteBuffer[] ensureMapped(long end) throws IOException {
+        Mapping m = mapping;
+        if (end > m.size) {
+            m = remap(end);
+        }
+        return m.segments;
+    }
+
+    private synchronized Mapping remap(long required) throws IOException {
+        Mapping current = mapping;
+        if (required <= current.size) {
+            return current;
+        }
+        FileChannel chan = channelSource.channel();
+        long size = chan.size();
+        if (size < required) {
+            throw new IOException("Values file " + file.getAbsolutePath() + " is shorter than expected. size=" + size + " required=" + required);
+        }
+        MappedByteBuffer[] oldSegs = current.segments;
+        long segmentSize = segmentMask + 1;
+        int count = (int) ((size + segmentMask) >>> segmentShift);
+        MappedByteBuffer[] newSegs = Arrays.copyOf(oldSegs, count);
+        int first = oldSegs.length;
+        if (first > 0 && oldSegs[first - 1].capacity() < segmentSize) {
+            first--; // last segment was partial, so map it again to include the new data
+        }
+        for (int i = first; i < count; i++) {
+            long pos = (long) i << segmentShift;
+            newSegs[i] = chan.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(segmentSize, size - pos));
+        }
+        Mapping m = new Mapping(newSegs, size);
+        mapping = m;
+        return m;
+    }
+
+    private static class Mapping {
+
+        static final Mapping EMPTY = new Mapping(new MappedByteBuffer[0], 0);
+
+        final MappedByteBuffer[] segments;
+        final long size;
+
+        Mapping(MappedByteBuffer[] segments, long size) {
+            this.segments = segments;
+            this.size = size;
+        }
+    }
+}
@@ -2,13 +2,17 @@ package org.hashsplit4j.store;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.stream.Stream;
 import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.DeletableBlobStore;
+import org.hashsplit4j.api.KeyEnumerable;
+import org.hashsplit4j.utils.KeyStreams;
 
 /**
  *
  * @author brad
  */
-public class MemoryBlobStore implements BlobStore {
+public class MemoryBlobStore implements BlobStore, KeyEnumerable, DeletableBlobStore {
 
     private final Map<String, Chunk> mapOfChunks = new HashMap<>();
 
@@ -29,6 +33,15 @@ public class MemoryBlobStore implements BlobStore {
         }
     }
 
+    @Override
+    public long getBlobLength(String hash) {
+        Chunk chunk = mapOfChunks.get(hash);
+        if (chunk == null) {
+            return -1;
+        }
+        return chunk.length;
+    }
+
     @Override
     public void setBlob(String hash, byte[] bytes) {
         Chunk chunk = new Chunk();
@@ -41,6 +54,16 @@ public class MemoryBlobStore implements BlobStore {
         //System.out.println("setBlob: " + hash + " size: " + bytes.length);
     }
 
+    @Override
+    public boolean deleteBlob(String hash) {
+        return mapOfChunks.remove(hash) != null;
+    }
+
+    @Override
+    public Stream<String> keys(String prefix, String afterKey) {
+        return KeyStreams.sortedSnapshot(mapOfChunks.keySet(), prefix, afterKey);
+    }
+
     public long getTotalSize() {
         return totalSize;
     }
@@ -3,9 +3,13 @@ package org.hashsplit4j.store;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
+import org.hashsplit4j.api.DeletableHashStore;
 import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.FanoutKeyEnumerable;
 import org.hashsplit4j.api.FanoutImpl;
 import org.hashsplit4j.api.HashStore;
+import org.hashsplit4j.utils.KeyStreams;
 
 /**
  * This class is just for debugging and development. It holds all information
@@ -13,7 +17,7 @@ import org.hashsplit4j.api.HashStore;
  *
  * @author brad
  */
-public class MemoryHashStore implements HashStore{
+public class MemoryHashStore implements HashStore, FanoutKeyEnumerable, DeletableHashStore {
     
     private final Map<String,Fanout> mapOfChunkFanouts = new HashMap<>(); // keyed by the SHA1 of the fanout chunk, gives a list of chunk SHA1's
     private final Map<String,Fanout> mapOfFileFanouts = new HashMap<>(); // keyed by the crc of the fanout chunk, gives a list of chunk SHA1's
@@ -54,4 +58,24 @@ public class MemoryHashStore implements HashStore{
     public boolean hasFile(String fileHash) {
         return getFileFanout(fileHash) != null;
     }
+
+    @Override
+    public boolean deleteChunkFanout(String fanoutHash) {
+        return mapOfChunkFanouts.remove(fanoutHash) != null;
+    }
+
+    @Override
+    public boolean deleteFileFanout(String fileHash) {
+        return mapOfFileFanouts.remove(fileHash) != null;
+    }
+
+    @Override
+    public Stream<String> chunkKeys(String prefix, String afterKey) {
+        return KeyStreams.sortedSnapshot(mapOfChunkFanouts.keySet(), prefix, afterKey);
+    }
+
+    @Override
+    public Stream<String> fileKeys(String prefix, String afterKey) {
+        return KeyStreams.sortedSnapshot(mapOfFileFanouts.keySet(), prefix, afterKey);
+    }
 }
@@ -86,6 +86,25 @@ public class MigratingBlobStore implements BlobStore {
         return false;
     }
 
+    @Override
+    public long getBlobLength(String hash) {
+        try {
+            long length = newBlobStore.getBlobLength(hash);
+            if (length >= 0) {
+                return length;
+            }
+        } catch (Exception ex) {
+            log.warn("getBlobLength Failed on newBlobStore {} because of:{}", newBlobStore, ex.getMessage(), ex);
+        }
+
+        try {
+            return oldBlobStore.getBlobLength(hash);
+        } catch (Exception ex) {
+            log.warn("getBlobLength Failed on oldBlobStore {} because of:{}", oldBlobStore, ex.getMessage(), ex);
+        }
+        return -1;
+    }
+
     private void enqueue(String hash, byte[] bytes) {
         log.trace("Enqueuing blob={}", hash);
         queue.addBlob(hash, bytes);
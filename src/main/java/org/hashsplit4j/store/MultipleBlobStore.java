@@ -57,4 +57,19 @@ public class MultipleBlobStore implements BlobStore {
         }
         return null;
     }
+
+    @Override
+    public long getBlobLength(String hash) {
+        if (hash == null) {
+            return -1;
+        }
+
+        for (BlobStore store : stores) {
+            long length = store.getBlobLength(hash);
+            if (length >= 0) {
+                return length;
+            }
+        }
+        return -1;
+    }
 }
@@ -0,0 +1,99 @@
+package org.hashsplit4j.store;
+
+import java.util.Map;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.cache.NegativeCache;
+
+/**
+ * Remembers which hashes the wrapped store doesn't have, for a while, so
+ * repeated lookups of missing hashes (eg checking whether uploaded blobs
+ * already exist, or probing each store of a MultipleBlobStore) don't each
+ * go to a remote store.
+ *
+ * Writes through this store invalidate the hash, but writes made directly to
+ * the wrapped store can't be seen, so they might not be visible until the
+ * ttl has passed
+ *
+ * @author brad
+ */
+public class NegativeCachingBlobStore implements BlobStore {
+
+    private final BlobStore wrapped;
+    private final NegativeCache negativeCache;
+
+    /**
+     *
+     * @param wrapped
+     * @param capacity - maximum number of missing hashes to remember
+     * @param ttlMillis - how long to remember them
+     */
+    public NegativeCachingBlobStore(BlobStore wrapped, int capacity, long ttlMillis) {
+        this.wrapped = wrapped;
+        this.negativeCache = new NegativeCache(capacity, ttlMillis);
+    }
+
+    @Override
+    public void setBlob(String hash, byte[] bytes) {
+        try {
+            wrapped.setBlob(hash, bytes);
+        } finally {
+            negativeCache.invalidate(hash);
+        }
+    }
+
+    @Override
+    public byte[] getBlob(String hash) {
+        if (negativeCache.isMissing(hash)) {
+            return null;
+        }
+        long token = negativeCache.beginLookup();
+        byte[] arr = wrapped.getBlob(hash);
+        if (arr == null) {
+            negativeCache.missing(hash, token);
+        }
+        return arr;
+    }
+
+    @Override
+    public boolean hasBlob(String hash) {
+        if (negativeCache.isMissing(hash)) {
+            return false;
+        }
+        long token = negativeCache.beginLookup();
+        boolean b = wrapped.hasBlob(hash);
+        if (!b) {
+            negativeCache.missing(hash, token);
+        }
+        return b;
+    }
+
+    @Override
+    public long getBlobLength(String hash) {
+        if (negativeCache.isMissing(hash)) {
+            return -1;
+        }
+        long token = negativeCache.beginLookup();
+        long length = wrapped.getBlobLength(hash);
+        if (length < 0) {
+            negativeCache.missing(hash, token);
+        }
+        return length;
+    }
+
+    public Map<String, Object> getCacheStats() {
+        return negativeCache.getStats();
+    }
+
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    public BlobStore getWrapped() {
+        return wrapped;
+    }
+
+    @Override
+    public String toString() {
+        return "NegativeCachingBlobStore(" + wrapped + ")";
+    }
+}
@@ -0,0 +1,124 @@
+package org.hashsplit4j.store;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.HashStore;
+import org.hashsplit4j.cache.NegativeCache;
+
+/**
+ * Remembers which chunk and file fanouts the wrapped store doesn't have, for
+ * a while. See NegativeCachingBlobStore
+ *
+ * @author brad
+ */
+public class NegativeCachingHashStore implements HashStore {
+
+    private final HashStore wrapped;
+    private final NegativeCache chunks;
+    private final NegativeCache files;
+
+    /**
+     *
+     * @param wrapped
+     * @param capacity - maximum number of missing hashes to remember, of each
+     * type
+     * @param ttlMillis - how long to remember them
+     */
+    public NegativeCachingHashStore(HashStore wrapped, int capacity, long ttlMillis) {
+        this.wrapped = wrapped;
+        this.chunks = new NegativeCache(capacity, ttlMillis);
+        this.files = new NegativeCache(capacity, ttlMillis);
+    }
+
+    @Override
+    public void setChunkFanout(String hash, List<String> blobHashes, long actualContentLength) {
+        try {
+            wrapped.setChunkFanout(hash, blobHashes, actualContentLength);
+        } finally {
+            chunks.invalidate(hash);
+        }
+    }
+
+    @Override
+    public void setFileFanout(String hash, List<String> fanoutHashes, long actualContentLength) {
+        try {
+            wrapped.setFileFanout(hash, fanoutHashes, actualContentLength);
+        } finally {
+            files.invalidate(hash);
+        }
+    }
+
+    @Override
+    public Fanout getFileFanout(String fileHash) {
+        if (files.isMissing(fileHash)) {
+            return null;
+        }
+        long token = files.beginLookup();
+        Fanout f = wrapped.getFileFanout(fileHash);
+        if (f == null) {
+            files.missing(fileHash, token);
+        }
+        return f;
+    }
+
+    @Override
+    public Fanout getChunkFanout(String fanoutHash) {
+        if (chunks.isMissing(fanoutHash)) {
+            return null;
+        }
+        long token = chunks.beginLookup();
+        Fanout f = wrapped.getChunkFanout(fanoutHash);
+        if (f == null) {
+            chunks.missing(fanoutHash, token);
+        }
+        return f;
+    }
+
+    @Override
+    public boolean hasChunk(String fanoutHash) {
+        if (chunks.isMissing(fanoutHash)) {
+            return false;
+        }
+        long token = chunks.beginLookup();
+        boolean b = wrapped.hasChunk(fanoutHash);
+        if (!b) {
+            chunks.missing(fanoutHash, token);
+        }
+        return b;
+    }
+
+    @Override
+    public boolean hasFile(String fileHash) {
+        if (files.isMissing(fileHash)) {
+            return false;
+        }
+        long token = files.beginLookup();
+        boolean b = wrapped.hasFile(fileHash);
+        if (!b) {
+            files.missing(fileHash, token);
+        }
+        return b;
+    }
+
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> e : chunks.getStats().entrySet()) {
+            stats.put("chunks." + e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, Object> e : files.getStats().entrySet()) {
+            stats.put("files." + e.getKey(), e.getValue());
+        }
+        return stats;
+    }
+
+    public HashStore getWrapped() {
+        return wrapped;
+    }
+
+    @Override
+    public String toString() {
+        return "NegativeCachingHashStore(" + wrapped + ")";
+    }
+}
@@ -24,4 +24,9 @@ public class NullBlobStore implements BlobStore{
         return false;
     }
 
+    @Override
+    public long getBlobLength(String hash) {
+        return -1;
+    }
+
 }
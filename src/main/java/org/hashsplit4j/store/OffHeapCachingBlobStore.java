@@ -0,0 +1,678 @@
+package org.hashsplit4j.store;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import org.hashsplit4j.api.BlobImpl;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.DeletableBlobStore;
+import org.hashsplit4j.api.EvictingBlobStore;
+import org.hashsplit4j.utils.HashBytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A BlobStore which caches blobs from a wrapped store in direct (off heap)
+ * memory, so a cache of many GB adds nothing to the heap for the garbage
+ * collector to scan or copy, and large blobs don't end up as humongous
+ * objects.
+ *
+ * Blobs are stored in blocks of a fixed size for their size class (each 25%
+ * larger than the last), in slabs of slabSize allocated from a budget of
+ * maxBytes as they are needed. Each block starts with the 128 bit digest of
+ * its hash, so the index entry can be removed when it is evicted, then the
+ * hash itself (in HashBytes form, 21 bytes for a SHA1). The index
+ * maps the digest of each hash to its block and length, in an open addressing
+ * table also in direct memory, split across buffers of 32MB so it isn't
+ * limited by the 2GB size of a buffer. When a size class needs a block and
+ * the budget is used up, or the index has maxEntries entries, a block of that
+ * class is evicted with the CLOCK algorithm:
+ * blocks read since the hand last passed are skipped once. Memory isn't moved
+ * between size classes once allocated, so if the mix of blob sizes changes a
+ * lot some classes may be smaller than ideal.
+ *
+ * Blobs are copied out on read. Reads are optimistic, using a StampedLock, so
+ * they don't block unless they overlap an add, in which case they retry with
+ * the read lock. Adds and evictions hold the write lock.
+ *
+ * If there is an eviction listener, evicted blobs are copied out and passed to
+ * it, as are blobs which couldn't be cached.
+ *
+ * Heap use is about 5 bytes per block. Note that the JVM's direct memory
+ * limit (-XX:MaxDirectMemorySize) must allow for maxBytes plus the index, 32
+ * bytes per slot at a load of up to 70%. If the index can't grow it stops at
+ * its current size, as if maxEntries had been reached
+ *
+ * @author brad
+ */
+public class OffHeapCachingBlobStore implements EvictingBlobStore, DeletableBlobStore {
+
+    private static final Logger log = LoggerFactory.getLogger(OffHeapCachingBlobStore.class);
+
+    private static final HashFunction DIGEST = Hashing.murmur3_128();
+    private static final int HEADER = 17; // digest of the hash, and length of the hash
+    private static final int MAX_KEY = 255;
+    private static final int MIN_BLOCK = 1024;
+    public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_BLOB_SIZE = 1024 * 1024;
+
+    private static final byte FREE = 0;
+    private static final byte USED = 1;
+    private static final byte REFERENCED = 2;
+
+    private final BlobStore wrapped;
+    private final long maxBytes;
+    private final int maxBlobSize;
+    private final SizeClass[] classes;
+    private final StampedLock lock = new StampedLock();
+    private volatile Index index = new Index(1024, Index.BUFFER_SLOTS);
+    private long allocatedBytes; // only changed while holding the write lock
+    private volatile long maxEntries = Integer.MAX_VALUE;
+    int indexBufferSlots = Index.BUFFER_SLOTS; // smaller in tests
+    private volatile int size;
+    private volatile EvictionListener evictionListener;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public OffHeapCachingBlobStore(BlobStore wrapped, long maxBytes) {
+        this(wrapped, maxBytes, DEFAULT_SLAB_SIZE, DEFAULT_MAX_BLOB_SIZE);
+    }
+
+    /**
+     *
+     * @param wrapped
+     * @param maxBytes - total size of slabs to allocate
+     * @param slabSize - unit of allocation, a slab is only ever used for one
+     * size class
+     * @param maxBlobSize - larger blobs are not cached
+     */
+    public OffHeapCachingBlobStore(BlobStore wrapped, long maxBytes, int slabSize, int maxBlobSize) {
+        this.wrapped = wrapped;
+        this.maxBytes = maxBytes;
+        this.maxBlobSize = maxBlobSize;
+        List<SizeClass> list = new ArrayList<>();
+        int blockSize = MIN_BLOCK;
+        while (true) {
+            list.add(new SizeClass(list.size(), blockSize, Math.max(1, slabSize / blockSize)));
+            if (blockSize >= maxBlobSize + HEADER + MAX_KEY) {
+                break;
+            }
+            blockSize = Math.min(maxBlobSize + HEADER + MAX_KEY, (blockSize + blockSize / 4 + 63) & ~63);
+        }
+        this.classes = list.toArray(new SizeClass[list.size()]);
+    }
+
+    @Override
+    public void setBlob(String hash, byte[] bytes) {
+        wrapped.setBlob(hash, bytes);
+        add(hash, bytes);
+    }
+
+    @Override
+    public byte[] getBlob(String hash) {
+        byte[] arr = read(hash);
+        if (arr != null) {
+            hits.increment();
+            return arr;
+        }
+        arr = wrapped.getBlob(hash);
+        if (arr == null) {
+            notFound.increment();
+            return null;
+        }
+        misses.increment();
+        add(hash, arr);
+        return arr;
+    }
+
+    @Override
+    public boolean hasBlob(String hash) {
+        return getBlobLength(hash) >= 0;
+    }
+
+    /**
+     * Doesn't load the blob if it isn't cached
+     */
+    @Override
+    public long getBlobLength(String hash) {
+        HashCode hc = DIGEST.hashString(hash, StandardCharsets.UTF_8);
+        long d1 = hc.asLong();
+        long d2 = secondLong(hc);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Index idx = index;
+            long slot = idx.find(d1, d2);
+            long length = slot >= 0 ? idx.length(slot) : -1;
+            if (lock.validate(stamp)) {
+                return length >= 0 ? length : wrapped.getBlobLength(hash);
+            }
+        }
+        long length;
+        stamp = lock.readLock();
+        try {
+            Index idx = index;
+            long slot = idx.find(d1, d2);
+            length = slot >= 0 ? idx.length(slot) : -1;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return length >= 0 ? length : wrapped.getBlobLength(hash);
+    }
+
+    public boolean isCached(String hash) {
+        HashCode hc = DIGEST.hashString(hash, StandardCharsets.UTF_8);
+        long stamp = lock.readLock();
+        try {
+            return index.find(hc.asLong(), secondLong(hc)) >= 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("notFound", notFound.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("entries", size);
+        stats.put("allocatedBytes", getAllocatedBytes());
+        stats.put("maxBytes", maxBytes);
+        stats.put("indexBytes", index.capacity * Index.SLOT_SIZE);
+        return stats;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @return bytes of direct memory allocated to slabs
+     */
+    public long getAllocatedBytes() {
+        long stamp = lock.readLock();
+        try {
+            return allocatedBytes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * The most blobs to cache, after which adding one evicts another of its
+     * size class. Default Integer.MAX_VALUE
+     *
+     * @param maxEntries
+     */
+    public void setMaxEntries(long maxEntries) {
+        this.maxEntries = Math.min(maxEntries, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Remove the blob from the cache, without notifying the eviction
+     * listener
+     *
+     * @param hash
+     * @return true if it was cached
+     */
+    @Override
+    public boolean invalidate(String hash) {
+        HashCode hc = DIGEST.hashString(hash, StandardCharsets.UTF_8);
+        long stamp = lock.writeLock();
+        try {
+            Index idx = index;
+            long slot = idx.find(hc.asLong(), secondLong(hc));
+            if (slot < 0) {
+                return false;
+            }
+            long addr = idx.address(slot);
+            SizeClass c = classes[(int) (addr >>> 32)];
+            int block = (int) addr;
+            idx.remove(slot);
+            size--;
+            c.state[block] = FREE;
+            c.free[c.freeCount++] = block;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove from the cache, and from the wrapped store if it supports that
+     */
+    @Override
+    public boolean deleteBlob(String hash) {
+        boolean removed = invalidate(hash);
+        if (wrapped instanceof DeletableBlobStore) {
+            removed |= ((DeletableBlobStore) wrapped).deleteBlob(hash);
+        }
+        return removed;
+    }
+
+    public EvictionListener getEvictionListener() {
+        return evictionListener;
+    }
+
+    @Override
+    public void setEvictionListener(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    public BlobStore getWrapped() {
+        return wrapped;
+    }
+
+    private byte[] read(String hash) {
+        HashCode hc = DIGEST.hashString(hash, StandardCharsets.UTF_8);
+        long d1 = hc.asLong();
+        long d2 = secondLong(hc);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                byte[] arr = readBlock(d1, d2);
+                if (lock.validate(stamp)) {
+                    return arr;
+                }
+            } catch (RuntimeException ex) {
+                // inconsistent state from overlapping an add, so retry with the lock
+                if (lock.validate(stamp)) {
+                    throw ex;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return readBlock(d1, d2);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private byte[] readBlock(long d1, long d2) {
+        Index idx = index;
+        long slot = idx.find(d1, d2);
+        if (slot < 0) {
+            return null;
+        }
+        long addr = idx.address(slot);
+        int length = (int) idx.length(slot);
+        SizeClass c = classes[(int) (addr >>> 32)];
+        int block = (int) addr;
+        ByteBuffer slab = c.slabs[block / c.blocksPerSlab];
+        int off = (block % c.blocksPerSlab) * c.blockSize;
+        int keyLength = slab.get(off + 16) & 0xff;
+        if (length < 0 || HEADER + keyLength + length > c.blockSize) {
+            throw new IllegalStateException("Invalid length " + length + " for block size " + c.blockSize);
+        }
+        byte[] arr = new byte[length];
+        ByteBuffer dup = slab.duplicate();
+        dup.position(off + HEADER + keyLength);
+        dup.get(arr);
+        byte[] state = c.state;
+        if (block < state.length) {
+            // a hint for eviction, so a lost update doesn't matter
+            state[block] = REFERENCED;
+        }
+        return arr;
+    }
+
+    private void add(String hash, byte[] bytes) {
+        byte[] key = HashBytes.encode(hash);
+        if (bytes.length > maxBlobSize || key.length > MAX_KEY) {
+            rejected.increment();
+            notifyEvicted(hash, bytes);
+            return;
+        }
+        HashCode hc = DIGEST.hashString(hash, StandardCharsets.UTF_8);
+        long d1 = hc.asLong();
+        long d2 = secondLong(hc);
+        if (d1 == 0 && d2 == 0) {
+            d2 = 1; // all zeros marks an empty slot
+        }
+        SizeClass c = classFor(HEADER + key.length + bytes.length);
+        List<BlobImpl> evicted = evictionListener != null ? new ArrayList<>(1) : null;
+        boolean noSpace = false;
+        long stamp = lock.writeLock();
+        try {
+            if (index.find(d1, d2) < 0) {
+                int block = size >= maxEntries ? clock(c, evicted) : allocate(c, evicted);
+                if (block >= 0) {
+                    write(c, block, d1, d2, key, bytes);
+                } else {
+                    rejected.increment();
+                    noSpace = true;
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (evicted != null) {
+            for (BlobImpl blob : evicted) {
+                notifyEvicted(blob.getHash(), blob.getBytes());
+            }
+        }
+        if (noSpace) {
+            notifyEvicted(hash, bytes);
+        }
+    }
+
+    // must only be called while holding the write lock
+    private void write(SizeClass c, int block, long d1, long d2, byte[] key, byte[] bytes) {
+        ByteBuffer dup = c.slabs[block / c.blocksPerSlab].duplicate();
+        dup.position((block % c.blocksPerSlab) * c.blockSize);
+        dup.putLong(d1);
+        dup.putLong(d2);
+        dup.put((byte) key.length);
+        dup.put(key);
+        dup.put(bytes);
+        c.state[block] = USED;
+        Index idx = index;
+        idx.set(~idx.find(d1, d2), d1, d2, ((long) c.index << 32) | block, bytes.length);
+        size++;
+        if (size > idx.capacity * Index.LOAD_FACTOR) {
+            try {
+                index = idx.resize(indexBufferSlots);
+            } catch (OutOfMemoryError ex) {
+                // out of direct memory, so keep to this size rather than failing adds
+                maxEntries = size;
+                log.warn("write: couldnt grow the index beyond {} slots, limiting to {} entries", idx.capacity, size, ex);
+            }
+        }
+    }
+
+    // must not be called while holding the lock
+    private void notifyEvicted(String hash, byte[] bytes) {
+        EvictionListener l = evictionListener;
+        if (l != null) {
+            try {
+                l.onEvicted(hash, bytes);
+            } catch (RuntimeException ex) {
+                log.warn("notifyEvicted: eviction listener failed for {}", hash, ex);
+            }
+        }
+    }
+
+    private SizeClass classFor(int blockSize) {
+        for (SizeClass c : classes) {
+            if (c.blockSize >= blockSize) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("Too large: " + blockSize);
+    }
+
+    /**
+     * Get a free block of the class, from a new slab if there is budget for
+     * it, otherwise by evicting one. Must only be called while holding the
+     * write lock
+     *
+     * @param evicted - if not null, the blob evicted, if any, is added
+     * @return the block number, or -1 if the class has no blocks to evict
+     */
+    private int allocate(SizeClass c, List<BlobImpl> evicted) {
+        if (c.freeCount > 0) {
+            return c.free[--c.freeCount];
+        }
+        long slabBytes = (long) c.blocksPerSlab * c.blockSize;
+        if (allocatedBytes + slabBytes <= maxBytes) {
+            c.addSlab();
+            allocatedBytes += slabBytes;
+            return c.free[--c.freeCount];
+        }
+        return clock(c, evicted);
+    }
+
+    /**
+     * Evict a block of the class. Must only be called while holding the
+     * write lock
+     *
+     * @return the block number, or -1 if the class has no blocks to evict
+     */
+    private int clock(SizeClass c, List<BlobImpl> evicted) {
+        int blocks = c.state.length;
+        if (blocks == 0) {
+            return -1;
+        }
+        // CLOCK, after one turn every referenced block has been cleared
+        for (int i = 0; i <= 2 * blocks; i++) {
+            int block = c.hand;
+            c.hand = (c.hand + 1) % blocks;
+            if (c.state[block] == REFERENCED) {
+                c.state[block] = USED;
+            } else if (c.state[block] == USED) {
+                evict(c, block, evicted);
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private void evict(SizeClass c, int block, List<BlobImpl> evicted) {
+        ByteBuffer slab = c.slabs[block / c.blocksPerSlab];
+        int off = (block % c.blocksPerSlab) * c.blockSize;
+        long d1 = slab.getLong(off);
+        long d2 = slab.getLong(off + 8);
+        Index idx = index;
+        long slot = idx.find(d1, d2);
+        if (slot >= 0) {
+            if (evicted != null) {
+                ByteBuffer dup = slab.duplicate();
+                dup.position(off + 16);
+                byte[] key = new byte[dup.get() & 0xff];
+                dup.get(key);
+                byte[] bytes = new byte[(int) idx.length(slot)];
+                dup.get(bytes);
+                evicted.add(new BlobImpl(HashBytes.decode(key), bytes));
+            }
+            idx.remove(slot);
+            size--;
+        } else {
+            log.warn("evict: block {} of size {} was not in the index", block, c.blockSize);
+        }
+        c.state[block] = FREE;
+        evictions.increment();
+    }
+
+    private static long secondLong(HashCode hc) {
+        byte[] b = hc.asBytes();
+        long v = 0;
+        for (int i = 15; i >= 8; i--) {
+            v = (v << 8) | (b[i] & 0xff);
+        }
+        return v;
+    }
+
+    /**
+     * Blocks of one size. Arrays are replaced rather than modified when
+     * slabs are added, so optimistic readers see a consistent (if stale)
+     * view
+     */
+    private static class SizeClass {
+
+        private final int index;
+        private final int blockSize;
+        private final int blocksPerSlab;
+        private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+        private volatile byte[] state = new byte[0];
+        // only used while holding the write lock
+        private int[] free = new int[0];
+        private int freeCount;
+        private int hand;
+
+        SizeClass(int index, int blockSize, int blocksPerSlab) {
+            this.index = index;
+            this.blockSize = blockSize;
+            this.blocksPerSlab = blocksPerSlab;
+        }
+
+        void addSlab() {
+            int first = state.length;
+            ByteBuffer[] newSlabs = Arrays.copyOf(slabs, slabs.length + 1);
+            newSlabs[slabs.length] = ByteBuffer.allocateDirect(blocksPerSlab * blockSize);
+            byte[] newState = Arrays.copyOf(state, first + blocksPerSlab);
+            free = Arrays.copyOf(free, first + blocksPerSlab);
+            for (int i = first + blocksPerSlab - 1; i >= first; i--) {
+                free[freeCount++] = i;
+            }
+            slabs = newSlabs;
+            state = newState;
+        }
+    }
+
+    /**
+     * Open addressing table of digest to block address and length, with
+     * linear probing. Each slot is four longs: the digest, the address (size
+     * class and block number) and the length. Slots are spread over buffers of
+     * up to bufferSlots each
+     */
+    private static class Index {
+
+        private static final int SLOT_SIZE = 32;
+        private static final int BUFFER_SLOTS = 1 << 20; // 32MB buffers
+        private static final double LOAD_FACTOR = 0.7;
+
+        private final long capacity;
+        private final long mask;
+        private final ByteBuffer[] bufs;
+        private final int bufferShift;
+        private final long bufferMask;
+
+        /**
+         * @param capacity - a power of two
+         * @param bufferSlots - a power of two
+         */
+        Index(long capacity, int bufferSlots) {
+            int slotsPerBuffer = (int) Math.min(capacity, bufferSlots);
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.bufs = new ByteBuffer[(int) (capacity / slotsPerBuffer)];
+            for (int i = 0; i < bufs.length; i++) {
+                bufs[i] = ByteBuffer.allocateDirect(slotsPerBuffer * SLOT_SIZE);
+            }
+            this.bufferShift = Integer.numberOfTrailingZeros(slotsPerBuffer);
+            this.bufferMask = slotsPerBuffer - 1;
+        }
+
+        /**
+         * @return the slot with the digest, or the complement of the empty
+         * slot where it would go
+         */
+        long find(long d1, long d2) {
+            if (d1 == 0 && d2 == 0) {
+                d2 = 1;
+            }
+            long slot = home(d1);
+            for (long i = 0; i < capacity; i++) {
+                ByteBuffer buf = buf(slot);
+                int off = offset(slot);
+                long s1 = buf.getLong(off);
+                long s2 = buf.getLong(off + 8);
+                if (s1 == 0 && s2 == 0) {
+                    return ~slot;
+                }
+                if (s1 == d1 && s2 == d2) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            throw new IllegalStateException("Index is full");
+        }
+
+        long address(long slot) {
+            return buf(slot).getLong(offset(slot) + 16);
+        }
+
+        long length(long slot) {
+            return buf(slot).getLong(offset(slot) + 24);
+        }
+
+        void set(long slot, long d1, long d2, long address, long length) {
+            ByteBuffer buf = buf(slot);
+            int off = offset(slot);
+            buf.putLong(off + 16, address);
+            buf.putLong(off + 24, length);
+            buf.putLong(off + 8, d2);
+            buf.putLong(off, d1);
+        }
+
+        /**
+         * Remove by shifting back later entries of the same probe sequence,
+         * so no tombstones are needed
+         */
+        void remove(long slot) {
+            long hole = slot;
+            long next = (hole + 1) & mask;
+            while (true) {
+                ByteBuffer buf = buf(next);
+                int off = offset(next);
+                long d1 = buf.getLong(off);
+                long d2 = buf.getLong(off + 8);
+                if (d1 == 0 && d2 == 0) {
+                    break;
+                }
+                long home = home(d1);
+                // move it back if its home is not cyclically between the hole and it
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    set(hole, d1, d2, buf.getLong(off + 16), buf.getLong(off + 24));
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            set(hole, 0, 0, 0, 0);
+        }
+
+        Index resize(int bufferSlots) {
+            Index idx = new Index(capacity * 2, bufferSlots);
+            for (long slot = 0; slot < capacity; slot++) {
+                ByteBuffer buf = buf(slot);
+                int off = offset(slot);
+                long d1 = buf.getLong(off);
+                long d2 = buf.getLong(off + 8);
+                if (d1 != 0 || d2 != 0) {
+                    idx.set(~idx.find(d1, d2), d1, d2, buf.getLong(off + 16), buf.getLong(off + 24));
+                }
+            }
+            return idx;
+        }
+
+        private ByteBuffer buf(long slot) {
+            return bufs[(int) (slot >>> bufferShift)];
+        }
+
+        private int offset(long slot) {
+            return (int) (slot & bufferMask) * SLOT_SIZE;
+        }
+
+        private long home(long d1) {
+            long h = d1;
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return h & mask;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package org.hashsplit4j.store;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * SimpleFileDbIndex which keeps its table in direct (off heap) buffers, so
+ * it uses almost no heap regardless of the number of keys, and adds nothing
+ * for the garbage collector to scan.
+ *
+ * Keys are not stored, only a 128 bit murmur3 digest of them, which is
+ * treated as unique. Each slot of the open addressing table holds the digest,
+ * start, and the length and checksum packed into one long, as four longs (32
+ * bytes), and the table is kept below 70%
+ * full, so a key costs about 46 bytes off heap compared with ~150 bytes of
+ * heap for HeapSimpleFileDbIndex.
+ *
+ * Reads are optimistic, using a StampedLock, so they don't write to shared
+ * memory and never block unless they overlap a put, in which case they retry
+ * holding the read lock
+ *
+ * @author brad
+ */
+public class OffHeapSimpleFileDbIndex implements SimpleFileDbIndex {
+
+    private static final HashFunction DIGEST = Hashing.murmur3_128();
+    private static final int SLOT_SIZE = 32;
+    private static final int BUFFER_SLOTS_SHIFT = 20; // 1M slots, 32MB, per direct buffer
+    private static final double LOAD_FACTOR = 0.7;
+
+    private final StampedLock lock = new StampedLock();
+    private volatile Table table;
+    private volatile int size;
+
+    public OffHeapSimpleFileDbIndex(int expectedKeys) {
+        this.table = new Table(capacityFor(expectedKeys));
+    }
+
+    public OffHeapSimpleFileDbIndex() {
+        this(1024);
+    }
+
+    @Override
+    public void put(String key, long start, long finish, long crc) {
+        long lengthAndCrc = pack(finish - start, crc);
+        HashCode hc = DIGEST.hashString(key, StandardCharsets.UTF_8);
+        long d1 = hc.asLong();
+        long d2 = secondLong(hc);
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            long slot = t.find(d1, d2);
+            if (slot >= 0) {
+                t.set(slot, d1, d2, start, lengthAndCrc);
+                return;
+            }
+            t.set(~slot, d1, d2, start, lengthAndCrc);
+            size++;
+            if (size > t.capacity * LOAD_FACTOR) {
+                table = t.resize();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public SimpleFileDb.DbItem get(String key) {
+        HashCode hc = DIGEST.hashString(key, StandardCharsets.UTF_8);
+        long d1 = hc.asLong();
+        long d2 = secondLong(hc);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            Table t = table;
+            long slot = t.find(d1, d2);
+            long start = 0;
+            long lengthAndCrc = 0;
+            if (slot >= 0) {
+                start = t.start(slot);
+                lengthAndCrc = t.lengthAndCrc(slot);
+            }
+            if (lock.validate(stamp)) {
+                return slot >= 0 ? item(start, lengthAndCrc) : null;
+            }
+        }
+        // overlapped a put, so read again with the lock
+        stamp = lock.readLock();
+        try {
+            Table t = table;
+            long slot = t.find(d1, d2);
+            return slot >= 0 ? item(t.start(slot), t.lengthAndCrc(slot)) : null;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            table = new Table(table.capacity);
+            size = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sized for as many keys as this one has, since replacement data is
+     * usually of a similar size
+     */
+    @Override
+    public SimpleFileDbIndex newEmpty() {
+        return new OffHeapSimpleFileDbIndex(Math.max(1024, size));
+    }
+
+    /**
+     * Writes the raw table, so loading it needs no rehashing
+     */
+    @Override
+    public void writeTo(DataOutputStream out) throws IOException {
+        Table t = table;
+        out.writeInt(size);
+        out.writeLong(t.capacity);
+        byte[] buf = new byte[64 * 1024];
+        for (ByteBuffer bb : t.buffers) {
+            ByteBuffer dup = bb.duplicate();
+            dup.clear();
+            while (dup.hasRemaining()) {
+                int n = Math.min(buf.length, dup.remaining());
+                dup.get(buf, 0, n);
+                out.write(buf, 0, n);
+            }
+        }
+    }
+
+    @Override
+    public void readFrom(DataInputStream in) throws IOException {
+        int newSize = in.readInt();
+        long capacity = in.readLong();
+        if (Long.bitCount(capacity) != 1) {
+            throw new IOException("Invalid index capacity: " + capacity);
+        }
+        Table t = new Table(capacity);
+        byte[] buf = new byte[64 * 1024];
+        for (ByteBuffer bb : t.buffers) {
+            ByteBuffer dup = bb.duplicate();
+            dup.clear();
+            while (dup.hasRemaining()) {
+                int n = Math.min(buf.length, dup.remaining());
+                in.readFully(buf, 0, n);
+                dup.put(buf, 0, n);
+            }
+        }
+        long stamp = lock.writeLock();
+        try {
+            table = t;
+            size = newSize;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     *
+     * @return bytes of direct memory used by the table
+     */
+    public long getMemoryUsed() {
+        return table.capacity * SLOT_SIZE;
+    }
+
+    /**
+     * Values are byte arrays so the length fits in 31 bits, and the top bit
+     * marks whether there is a checksum
+     */
+    private static long pack(long length, long crc) {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+        long v = length << 32;
+        if (crc >= 0) {
+            v |= Long.MIN_VALUE | (crc & 0xffffffffL);
+        }
+        return v;
+    }
+
+    private static SimpleFileDb.DbItem item(long start, long lengthAndCrc) {
+        long length = (lengthAndCrc >>> 32) & Integer.MAX_VALUE;
+        long crc = lengthAndCrc < 0 ? lengthAndCrc & 0xffffffffL : -1;
+        return new SimpleFileDb.DbItem(start, start + length, crc);
+    }
+
+    private static long capacityFor(int expectedKeys) {
+        long cap = 16;
+        while (cap * LOAD_FACTOR < expectedKeys) {
+            cap <<= 1;
+        }
+        return cap;
+    }
+
+    private static long secondLong(HashCode hc) {
+        byte[] b = hc.asBytes();
+        long v = 0;
+        for (int i = 15; i >= 8; i--) {
+            v = (v << 8) | (b[i] & 0xff);
+        }
+        return v;
+    }
+
+    /**
+     * An immutable-size table. Resizing makes a new one, so a reader holding
+     * a reference to the old one still sees consistent (if stale) data, which
+     * the lock validation then rejects
+     */
+    private static class Table {
+
+        private final long capacity;
+        private final long mask;
+        private final ByteBuffer[] buffers;
+        private final int bufferShift;
+        private final long bufferMask;
+
+        Table(long capacity) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            int slotsShift = Long.numberOfTrailingZeros(capacity);
+            this.bufferShift = Math.min(slotsShift, BUFFER_SLOTS_SHIFT);
+            this.bufferMask = (1L << bufferShift) - 1;
+            int numBuffers = (int) (capacity >>> bufferShift);
+            this.buffers = new ByteBuffer[numBuffers];
+            for (int i = 0; i < numBuffers; i++) {
+                buffers[i] = ByteBuffer.allocateDirect((1 << bufferShift) * SLOT_SIZE);
+            }
+        }
+
+        /**
+         * @return the slot with the digest, or the complement of the empty
+         * slot where it would go
+         */
+        long find(long d1, long d2) {
+            if (d1 == 0 && d2 == 0) {
+                d2 = 1; // all zeros marks an empty slot
+            }
+            long slot = mix(d1) & mask;
+            while (true) {
+                ByteBuffer bb = buffers[(int) (slot >>> bufferShift)];
+                int off = (int) (slot & bufferMask) * SLOT_SIZE;
+                long s1 = bb.getLong(off);
+                long s2 = bb.getLong(off + 8);
+                if (s1 == 0 && s2 == 0) {
+                    return ~slot;
+                }
+                if (s1 == d1 && s2 == d2) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        void set(long slot, long d1, long d2, long start, long lengthAndCrc) {
+            if (d1 == 0 && d2 == 0) {
+                d2 = 1;
+            }
+            ByteBuffer bb = buffers[(int) (slot >>> bufferShift)];
+            int off = (int) (slot & bufferMask) * SLOT_SIZE;
+            bb.putLong(off + 16, start);
+            bb.putLong(off + 24, lengthAndCrc);
+            bb.putLong(off + 8, d2);
+            bb.putLong(off, d1);
+        }
+
+        long start(long slot) {
+            return buffers[(int) (slot >>> bufferShift)].getLong((int) (slot & bufferMask) * SLOT_SIZE + 16);
+        }
+
+        long lengthAndCrc(long slot) {
+            return buffers[(int) (slot >>> bufferShift)].getLong((int) (slot & bufferMask) * SLOT_SIZE + 24);
+        }
+
+        Table resize() {
+            Table t = new Table(capacity * 2);
+            for (ByteBuffer bb : buffers) {
+                for (int off = 0; off < bb.capacity(); off += SLOT_SIZE) {
+                    long d1 = bb.getLong(off);
+                    long d2 = bb.getLong(off + 8);
+                    if (d1 != 0 || d2 != 0) {
+                        t.set(~t.find(d1, d2), d1, d2, bb.getLong(off + 16), bb.getLong(off + 24));
+                    }
+                }
+            }
+            return t;
+        }
+
+        private static long mix(long h) {
+            // the digest is already well distributed, but cheap to make sure
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
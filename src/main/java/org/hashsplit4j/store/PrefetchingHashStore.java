@@ -0,0 +1,247 @@
+package org.hashsplit4j.store;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.HashStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reading a file is almost always getFileFanout, then getChunkFanout for each
+ * of its fanouts, then getBlob for each of their blobs. So when a file fanout
+ * is loaded through this store, its chunk fanouts and the first few blobs are
+ * loaded in the background, to warm the caching stores they come from, so the
+ * reader doesn't wait for the backend.
+ *
+ * The wrapped store and the blob store should be the caching stores the reader
+ * uses, eg a CachingHashStore and a TieredBlobStore, or prefetching has no
+ * effect.
+ *
+ * At most maxConcurrent files are prefetched at once, with a bounded queue
+ * after which new prefetches are dropped. Only one prefetch runs per file,
+ * and a reader which stops reading a file should call cancel so the rest of
+ * its prefetch is skipped
+ *
+ * @author brad
+ */
+public class PrefetchingHashStore implements HashStore {
+
+    private static final Logger log = LoggerFactory.getLogger(PrefetchingHashStore.class);
+
+    private final HashStore wrapped;
+    private final BlobStore blobStore;
+    private final ThreadPoolExecutor exService;
+    private final Map<String, Prefetch> inProgress = new ConcurrentHashMap<>();
+    private int maxChunkFanouts = 100;
+    private int blobFanouts = 2;
+    private int blobsPerFanout = 8;
+
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder chunkFanoutsLoaded = new LongAdder();
+    private final LongAdder blobsLoaded = new LongAdder();
+
+    /**
+     *
+     * @param wrapped
+     * @param blobStore - blobs are loaded from here, may be null to only
+     * prefetch chunk fanouts
+     * @param maxConcurrent - number of files prefetched at once
+     * @param maxQueued - number of files waiting to be prefetched, after which
+     * further prefetches are dropped
+     */
+    public PrefetchingHashStore(HashStore wrapped, BlobStore blobStore, int maxConcurrent, int maxQueued) {
+        this.wrapped = wrapped;
+        this.blobStore = blobStore;
+        this.exService = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxQueued));
+        this.exService.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public Fanout getFileFanout(String fileHash) {
+        Fanout f = wrapped.getFileFanout(fileHash);
+        if (f != null) {
+            prefetch(fileHash, f.getHashes());
+        }
+        return f;
+    }
+
+    /**
+     * Skip the rest of the prefetch for this file, if any, eg because the
+     * reader has gone away
+     *
+     * @param fileHash
+     * @return true if there was a prefetch to cancel
+     */
+    public boolean cancel(String fileHash) {
+        Prefetch p = inProgress.remove(fileHash);
+        if (p == null) {
+            return false;
+        }
+        p.cancelled = true;
+        cancelled.increment();
+        return true;
+    }
+
+    public void shutdown() {
+        for (Prefetch p : inProgress.values()) {
+            p.cancelled = true;
+        }
+        exService.shutdownNow();
+    }
+
+    @Override
+    public void setChunkFanout(String hash, List<String> blobHashes, long actualContentLength) {
+        wrapped.setChunkFanout(hash, blobHashes, actualContentLength);
+    }
+
+    @Override
+    public void setFileFanout(String hash, List<String> fanoutHashes, long actualContentLength) {
+        wrapped.setFileFanout(hash, fanoutHashes, actualContentLength);
+    }
+
+    @Override
+    public Fanout getChunkFanout(String fanoutHash) {
+        return wrapped.getChunkFanout(fanoutHash);
+    }
+
+    @Override
+    public boolean hasChunk(String fanoutHash) {
+        return wrapped.hasChunk(fanoutHash);
+    }
+
+    @Override
+    public boolean hasFile(String fileHash) {
+        return wrapped.hasFile(fileHash);
+    }
+
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("scheduled", scheduled.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("cancelled", cancelled.sum());
+        stats.put("inProgress", inProgress.size());
+        stats.put("chunkFanouts", chunkFanoutsLoaded.sum());
+        stats.put("blobs", blobsLoaded.sum());
+        return stats;
+    }
+
+    public int getMaxChunkFanouts() {
+        return maxChunkFanouts;
+    }
+
+    /**
+     * Maximum number of chunk fanouts of a file to prefetch, from the start of
+     * the file. Default 100
+     *
+     * @param maxChunkFanouts
+     */
+    public void setMaxChunkFanouts(int maxChunkFanouts) {
+        this.maxChunkFanouts = maxChunkFanouts;
+    }
+
+    public int getBlobFanouts() {
+        return blobFanouts;
+    }
+
+    /**
+     * Number of chunk fanouts, from the start of the file, to prefetch blobs
+     * for. Default 2
+     *
+     * @param blobFanouts
+     */
+    public void setBlobFanouts(int blobFanouts) {
+        this.blobFanouts = blobFanouts;
+    }
+
+    public int getBlobsPerFanout() {
+        return blobsPerFanout;
+    }
+
+    /**
+     * Number of blobs to prefetch from the start of each of those fanouts.
+     * Default 8
+     *
+     * @param blobsPerFanout
+     */
+    public void setBlobsPerFanout(int blobsPerFanout) {
+        this.blobsPerFanout = blobsPerFanout;
+    }
+
+    public HashStore getWrapped() {
+        return wrapped;
+    }
+
+    private void prefetch(String fileHash, List<String> fanoutHashes) {
+        if (fanoutHashes == null || fanoutHashes.isEmpty()) {
+            return;
+        }
+        Prefetch p = new Prefetch(fileHash, fanoutHashes);
+        if (inProgress.putIfAbsent(fileHash, p) != null) {
+            return;
+        }
+        try {
+            exService.execute(p);
+            scheduled.increment();
+        } catch (RejectedExecutionException ex) {
+            inProgress.remove(fileHash, p);
+            dropped.increment();
+        }
+    }
+
+    private class Prefetch implements Runnable {
+
+        private final String fileHash;
+        private final List<String> fanoutHashes;
+        private volatile boolean cancelled;
+
+        Prefetch(String fileHash, List<String> fanoutHashes) {
+            this.fileHash = fileHash;
+            this.fanoutHashes = fanoutHashes;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // chunk fanouts first, they are small and needed to find the blobs
+                int numFanouts = Math.min(maxChunkFanouts, fanoutHashes.size());
+                Fanout[] fanouts = new Fanout[Math.min(blobFanouts, numFanouts)];
+                for (int i = 0; i < numFanouts && !cancelled; i++) {
+                    Fanout f = wrapped.getChunkFanout(fanoutHashes.get(i));
+                    chunkFanoutsLoaded.increment();
+                    if (i < fanouts.length) {
+                        fanouts[i] = f;
+                    }
+                }
+                if (blobStore == null) {
+                    return;
+                }
+                for (int i = 0; i < fanouts.length && !cancelled; i++) {
+                    if (fanouts[i] == null) {
+                        continue;
+                    }
+                    List<String> blobHashes = fanouts[i].getHashes();
+                    int numBlobs = Math.min(blobsPerFanout, blobHashes.size());
+                    for (int j = 0; j < numBlobs && !cancelled; j++) {
+                        blobStore.getBlob(blobHashes.get(j));
+                        blobsLoaded.increment();
+                    }
+                }
+            } catch (RuntimeException ex) {
+                log.warn("prefetch: failed for file " + fileHash, ex);
+            } finally {
+                inProgress.remove(fileHash, this);
+            }
+        }
+    }
+}
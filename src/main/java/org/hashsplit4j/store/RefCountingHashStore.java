@@ -0,0 +1,219 @@
+package org.hashsplit4j.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import org.hashsplit4j.api.DeletableBlobStore;
+import org.hashsplit4j.api.DeletableHashStore;
+import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.FanoutKeyEnumerable;
+import org.hashsplit4j.api.HashStore;
+import org.hashsplit4j.gc.RefCountIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maintains reference counts for files, chunks and blobs as fanouts are
+ * stored, so that deleteFile can reclaim chunks and blobs as soon as nothing
+ * refers to them. This is an alternative to periodic garbage collection (see
+ * GarbageCollector) for stores where files are deleted often.
+ *
+ * A file's count is the number of times it has been stored, ie its number of
+ * owners. A chunk's count is the number of distinct files referring to it,
+ * and a blob's count is the number of distinct chunks referring to it. So
+ * children are only counted when a file or chunk is first stored.
+ *
+ * Counts must cover everything in the store, otherwise data stored before
+ * the index existed could be reclaimed while still in use. So when adding
+ * this to a store with existing data, call rebuild() first.
+ *
+ * Races between stores and deletes in this class are prevented with a lock,
+ * but not races with clients which have checked hasChunk or hasBlob before
+ * a delete, and then store a file referring to them after the delete.
+ * Concurrent stores of the same new chunk can double count, which just
+ * means its blobs are not reclaimed
+ *
+ * @author brad
+ */
+public class RefCountingHashStore implements HashStore {
+
+    private static final Logger log = LoggerFactory.getLogger(RefCountingHashStore.class);
+
+    private final DeletableHashStore hashStore;
+    private final DeletableBlobStore blobStore;
+    private final RefCountIndex index;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     *
+     * @param hashStore
+     * @param blobStore - where reclaimed blobs are deleted from
+     * @param index - must have been initialised
+     */
+    public RefCountingHashStore(DeletableHashStore hashStore, DeletableBlobStore blobStore, RefCountIndex index) {
+        this.hashStore = hashStore;
+        this.blobStore = blobStore;
+        this.index = index;
+    }
+
+    @Override
+    public void setChunkFanout(String hash, List<String> blobHashes, long actualContentLength) {
+        lock.readLock().lock();
+        try {
+            if (!hashStore.hasChunk(hash)) {
+                for (String blobHash : blobHashes) {
+                    index.increment(RefCountIndex.BLOBS, blobHash);
+                }
+                // write ahead of the fanout, but leave forcing to disk until the file is stored
+                index.flush(false);
+            }
+            hashStore.setChunkFanout(hash, blobHashes, actualContentLength);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setFileFanout(String hash, List<String> fanoutHashes, long actualContentLength) {
+        lock.readLock().lock();
+        try {
+            if (index.increment(RefCountIndex.FILES, hash) == 1) {
+                for (String chunkHash : fanoutHashes) {
+                    index.increment(RefCountIndex.CHUNKS, chunkHash);
+                }
+            }
+            index.flush(true);
+            hashStore.setFileFanout(hash, fanoutHashes, actualContentLength);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove one reference to the file. If that was the last reference the
+     * file fanout is deleted, and any chunks and blobs which are no longer
+     * referenced are deleted
+     *
+     * @param fileHash
+     * @return true if the file fanout was deleted
+     */
+    public boolean deleteFile(String fileHash) {
+        lock.writeLock().lock();
+        try {
+            if (index.decrement(RefCountIndex.FILES, fileHash) != 0) {
+                return false;
+            }
+            Fanout fileFanout = hashStore.getFileFanout(fileHash);
+            if (fileFanout == null) {
+                log.warn("deleteFile: file fanout not found {}", fileHash);
+                return false;
+            }
+            List<String> deadChunks = new ArrayList<>();
+            List<String> deadBlobs = new ArrayList<>();
+            for (String chunkHash : fileFanout.getHashes()) {
+                if (index.decrement(RefCountIndex.CHUNKS, chunkHash) == 0) {
+                    Fanout chunkFanout = hashStore.getChunkFanout(chunkHash);
+                    if (chunkFanout == null) {
+                        continue;
+                    }
+                    deadChunks.add(chunkHash);
+                    for (String blobHash : chunkFanout.getHashes()) {
+                        if (index.decrement(RefCountIndex.BLOBS, blobHash) == 0) {
+                            deadBlobs.add(blobHash);
+                        }
+                    }
+                }
+            }
+            // log the decrements before deleting, so a crash can only leave garbage behind
+            index.flush(true);
+
+            hashStore.deleteFileFanout(fileHash);
+            for (String chunkHash : deadChunks) {
+                hashStore.deleteChunkFanout(chunkHash);
+            }
+            for (String blobHash : deadBlobs) {
+                blobStore.deleteBlob(blobHash);
+            }
+            log.info("deleteFile: {} reclaimed chunks={} blobs={}", fileHash, deadChunks.size(), deadBlobs.size());
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Recalculate all counts from the fanouts in the store. This must be
+     * done before using a new index with a store which already has data. The
+     * store must be FanoutKeyEnumerable. Existing files are counted as having
+     * one owner
+     */
+    public void rebuild() {
+        if (!(hashStore instanceof FanoutKeyEnumerable)) {
+            throw new RuntimeException("Cant rebuild reference counts, hash store is not enumerable: " + hashStore);
+        }
+        FanoutKeyEnumerable enumerable = (FanoutKeyEnumerable) hashStore;
+        lock.writeLock().lock();
+        try {
+            long startTime = System.currentTimeMillis();
+            index.clear();
+            try (Stream<String> chunks = enumerable.chunkKeys(null, null)) {
+                chunks.forEach(chunkHash -> {
+                    Fanout chunkFanout = hashStore.getChunkFanout(chunkHash);
+                    if (chunkFanout != null) {
+                        for (String blobHash : chunkFanout.getHashes()) {
+                            index.increment(RefCountIndex.BLOBS, blobHash);
+                        }
+                    }
+                });
+            }
+            try (Stream<String> files = enumerable.fileKeys(null, null)) {
+                files.forEach(fileHash -> {
+                    Fanout fileFanout = hashStore.getFileFanout(fileHash);
+                    if (fileFanout != null) {
+                        index.increment(RefCountIndex.FILES, fileHash);
+                        for (String chunkHash : fileFanout.getHashes()) {
+                            index.increment(RefCountIndex.CHUNKS, chunkHash);
+                        }
+                    }
+                });
+            }
+            index.checkpoint();
+            log.info("rebuild: completed in {}ms", System.currentTimeMillis() - startTime);
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldnt save rebuilt reference counts", ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Fanout getFileFanout(String fileHash) {
+        return hashStore.getFileFanout(fileHash);
+    }
+
+    @Override
+    public Fanout getChunkFanout(String fanoutHash) {
+        return hashStore.getChunkFanout(fanoutHash);
+    }
+
+    @Override
+    public boolean hasChunk(String fanoutHash) {
+        return hashStore.hasChunk(fanoutHash);
+    }
+
+    @Override
+    public boolean hasFile(String fileHash) {
+        return hashStore.hasFile(fileHash);
+    }
+
+    public RefCountIndex getIndex() {
+        return index;
+    }
+
+    public DeletableHashStore getHashStore() {
+        return hashStore;
+    }
+}
@@ -1,6 +1,10 @@
 package org.hashsplit4j.store;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -9,32 +13,96 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 import org.apache.commons.io.IOUtils;
+import org.hashsplit4j.api.BlobImpl;
+import org.hashsplit4j.api.KeyEnumerable;
+import org.hashsplit4j.utils.KeysFileParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Just class to save byte[] to a file with a key for efficient lookup
  *
+ * The index is built by reading the keys file, which for a large db can take
+ * a long time. So the index is periodically written to a binary snapshot,
+ * which records how much of the keys file it covers. On startup the snapshot
+ * is loaded and only the part of the keys file written after it is parsed.
+ * The snapshot has a checksum, and a checksum of the end of the keys file it
+ * covers, and if either doesn't match it is ignored and the whole keys file
+ * is parsed as before
+ *
+ * Each key line has a CRC32 of its value. The snapshot is the checkpoint:
+ * data it covers was synced before it was written, so on startup only the
+ * lines after it are checked, that they are complete and their values are
+ * intact. At the first line which isn't, eg because the process or OS crashed
+ * part way through a put, the keys file is truncated, as is any part of the
+ * values file after the last good value. Checksums can optionally be verified
+ * on every read too, see setVerifyReads
+ *
  * @author brad
  */
-public class SimpleFileDb {
+public class SimpleFileDb implements KeyEnumerable {
 
     private static final Logger log = LoggerFactory.getLogger(SimpleFileDb.class);
 
+    private static final int SNAPSHOT_MAGIC = 0x53464449; // SFDI
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int SNAPSHOT_TAIL_CHECK = 64; // bytes of keys file checked before using a snapshot
+
     private final String name;
     private final File keysFile;
     private final File valuesFile;
+    private final File snapshotFile;
 
-    private final Map<String, DbItem> mapOfItems = new HashMap<>();
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
     private volatile boolean enabled = false;
 
+    // the index and the files it refers to, only replaced while holding the write lock
+    private volatile Generation generation;
+
+    // Channels are kept open rather than opened per operation
+    private FileChannel valuesAppendChannel; // only used while holding the write lock
+    private FileChannel keysAppendChannel; // only used while holding the write lock
+
+    private int mappedSegmentSize; // zero if not memory mapped
+
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+    private long fsyncIntervalMillis = 1000;
+    private long lastFsync; // only used while holding the write lock
+
+    private final List<KeyListener> keyListeners = new CopyOnWriteArrayList<>();
+
+    private boolean verifyOnRecovery = true;
+    private long recoveryVerifyBytes = 64 * 1024 * 1024;
+    private volatile boolean verifyReads;
+    private final AtomicLong corruptReads = new AtomicLong();
+
+    private final Object snapshotLock = new Object();
+    private int snapshotInterval = 100000;
+    private long keysFileLength; // only changed while holding the write lock
+    private volatile int linesSinceSnapshot;
+
     /**
      *
      * @param name - just an identifier for this instance
@@ -42,9 +110,23 @@ public class SimpleFileDb {
      * @param valuesFile
      */
     public SimpleFileDb(String name, File keysFile, File valuesFile) {
+        this(name, keysFile, valuesFile, new HeapSimpleFileDbIndex());
+    }
+
+    /**
+     *
+     * @param name - just an identifier for this instance
+     * @param keysFile
+     * @param valuesFile
+     * @param index - holds the location of each key in memory, eg
+     * OffHeapSimpleFileDbIndex for large numbers of keys
+     */
+    public SimpleFileDb(String name, File keysFile, File valuesFile, SimpleFileDbIndex index) {
         this.name = name;
         this.keysFile = keysFile;
         this.valuesFile = valuesFile;
+        this.generation = new Generation(index, valuesFile, 0);
+        this.snapshotFile = new File(keysFile.getPath() + ".snapshot");
     }
 
     public String getKeysFilePath() {
@@ -75,19 +157,71 @@ public class SimpleFileDb {
         return name;
     }
 
+    /**
+     * Replace the contents of this db with the given files. A new index is
+     * loaded from the new keys file while reads continue to be served from
+     * the old data, then the files are renamed into place and readers are
+     * switched to the new data at once. The old files are closed when reads
+     * in progress have finished.
+     *
+     * The new files are consumed: they are moved into place, or copied if
+     * they are on another filesystem, and the caller must not use them
+     * afterwards. Their records are checked as on init, so a torn tail is
+     * truncated. Values put while the new index is being loaded are lost
+     *
+     * @param newKeysFile - given up by the caller
+     * @param newValsFile - given up by the caller
+     */
     public void replaceData(File newKeysFile, File newValsFile) {
-        lock.writeLock().lock();
+        long startTime = System.currentTimeMillis();
         try {
-            enabled = false;
-            mapOfItems.clear();
-            replaceFileContent(newKeysFile, keysFile);
-            replaceFileContent(newValsFile, valuesFile);
-            initLocked();
+            File stagedKeys = stage(newKeysFile, keysFile);
+            File stagedVals = stage(newValsFile, valuesFile);
+            Generation current = generation;
+            SimpleFileDbIndex newIndex = current.index.newEmpty();
+            KeysFileParser parser = new KeysFileParser(newIndex::put);
+            long newKeysFileLength = replayKeys(parser, stagedKeys, stagedVals, 0);
+
+            lock.writeLock().lock();
+            try {
+                Generation old = generation;
+                closeAppendChannels();
+                // keep reading the old file, even once it has been replaced
+                old.pin();
+                Files.deleteIfExists(snapshotFile.toPath());
+                Files.move(stagedVals.toPath(), valuesFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(stagedKeys.toPath(), keysFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                generation = new Generation(newIndex, valuesFile, mappedSegmentSize);
+                keysFileLength = newKeysFileLength;
+                linesSinceSnapshot = parser.getLines();
+                enabled = true;
+                old.retire();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            log.info("replaceData: loaded {} keys from {} in {}ms", newIndex.size(), newKeysFile.getAbsolutePath(), System.currentTimeMillis() - startTime);
         } catch (IOException ex) {
             throw new RuntimeException("Couldnt initialise SimpleDb", ex);
-        } finally {
-            lock.writeLock().unlock();
         }
+        fireReset();
+        checkSnapshot();
+    }
+
+    /**
+     * Move the source file next to dest, so it can be renamed into place.
+     * Moving avoids copying what may be many GB, but means the source is
+     * consumed. Not a link, since the db appends to and may truncate its
+     * files, which would change the caller's files if they were shared
+     */
+    private File stage(File source, File dest) throws IOException {
+        File staged = new File(dest.getPath() + ".new");
+        try {
+            Files.move(source.toPath(), staged.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            // a different filesystem
+            Files.copy(source.toPath(), staged.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return staged;
     }
 
     public void init() throws FileNotFoundException, IOException {
@@ -97,27 +231,342 @@ public class SimpleFileDb {
         } finally {
             lock.writeLock().unlock();
         }
+        fireReset();
+        checkSnapshot();
+    }
+
+    /**
+     * Notified of changes to the keys in a db, eg to maintain an index across
+     * several dbs
+     */
+    public interface KeyListener {
+
+        /**
+         * Called after the key has been added, while holding the write lock
+         */
+        void onAdded(SimpleFileDb db, String key);
+
+        /**
+         * Called after the db has been loaded, replaced or deleted, so any
+         * keys previously known for it should be forgotten and, if it is
+         * enabled, its current keys loaded with keys()
+         */
+        void onReset(SimpleFileDb db);
+    }
+
+    public void addKeyListener(KeyListener l) {
+        keyListeners.add(l);
+    }
+
+    public void removeKeyListener(KeyListener l) {
+        keyListeners.remove(l);
+    }
+
+    private void fireReset() {
+        for (KeyListener l : keyListeners) {
+            l.onReset(this);
+        }
     }
 
     // must only be called while holding the write lock
     private void initLocked() throws FileNotFoundException, IOException {
         if (keysFile.exists()) {
             log.warn("init: using keysfile {}", keysFile.getAbsolutePath() );
-            try (FileInputStream fin = new FileInputStream(keysFile)) {
-                InputStreamReader r1 = new InputStreamReader(fin);
-                BufferedReader reader = new BufferedReader(r1);
-                String line = reader.readLine();
-                while (line != null) {
-                    parseAndAdd(line);
-                    line = reader.readLine();
-                }
-            }
+            long startTime = System.currentTimeMillis();
+            long offset = loadSnapshot();
+            int snapshotKeys = generation.index.size();
+            KeysFileParser parser = new KeysFileParser(generation.index::put);
+            keysFileLength = replayKeys(parser, keysFile, valuesFile, offset);
+            int lines = parser.getLines();
+            linesSinceSnapshot = lines;
+            log.info("init: loaded {} keys from snapshot and {} lines from keysfile in {}ms", snapshotKeys, lines, System.currentTimeMillis() - startTime);
         } else {
             log.warn("init: keysfile does not exist: {}", keysFile.getAbsolutePath() );
+            keysFileLength = 0;
+            linesSinceSnapshot = 0;
         }
         enabled = true;
     }
 
+    /**
+     * Parse the keys file from the given offset, adding entries to the index
+     * through the parser's listener. Lines are checked against the values
+     * file, and bad ones are left out of the index. If the file ends with bad
+     * lines (a torn tail) it is truncated after the last good one, and the
+     * values file after its value
+     *
+     * @return the length of the keys file
+     */
+    private long replayKeys(KeysFileParser parser, File keys, File values, long offset) throws IOException {
+        long valuesLength = values.length();
+        long[] lastFinish = {-1};
+        long length;
+        try (FileChannel chan = values.exists() ? FileChannel.open(values.toPath(), StandardOpenOption.READ) : null) {
+            parser.setValidator((key, start, finish, crc) -> {
+                if (!isValidRecord(chan, valuesLength, start, finish, crc)) {
+                    return false;
+                }
+                lastFinish[0] = Math.max(lastFinish[0], finish);
+                return true;
+            });
+            length = parser.parse(keys, offset);
+        }
+        if (parser.getInvalidLines() > 0) {
+            log.warn("replayKeys: skipped {} invalid records in {}", parser.getInvalidLines(), keys.getAbsolutePath());
+        }
+        if (parser.isTorn()) {
+            log.warn("replayKeys: invalid or incomplete records at the end of {}, truncating to {}", keys.getAbsolutePath(), length);
+            truncate(keys, length);
+        }
+        // values are appended in the same order as their keys, so anything after
+        // the last value is from a put which didn't complete
+        if (lastFinish[0] >= 0 && valuesLength > lastFinish[0]) {
+            log.warn("replayKeys: truncating {} unreferenced bytes from {}", valuesLength - lastFinish[0], values.getAbsolutePath());
+            truncate(values, lastFinish[0]);
+        }
+        return length;
+    }
+
+    private boolean isValidRecord(FileChannel values, long valuesLength, long start, long finish, long crc) throws IOException {
+        if (start < 0 || finish < start || finish - start > Integer.MAX_VALUE || finish > valuesLength) {
+            return false;
+        }
+        if (crc < 0 || !verifyOnRecovery) {
+            return true; // written before checksums were added
+        }
+        if (finish <= valuesLength - recoveryVerifyBytes) {
+            return true; // a torn write can only be near the end
+        }
+        return checksum(values, start, (int) (finish - start)) == crc;
+    }
+
+    private static long checksum(FileChannel chan, long start, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer bb = ByteBuffer.allocate(Math.min(length, 64 * 1024));
+        long pos = start;
+        long end = start + length;
+        while (pos < end) {
+            bb.clear();
+            bb.limit((int) Math.min(bb.capacity(), end - pos));
+            readFully(chan, bb, pos);
+            crc.update(bb.array(), 0, bb.limit());
+            pos += bb.limit();
+        }
+        return crc.getValue();
+    }
+
+    private static long checksum(ByteBuffer value) {
+        CRC32 crc = new CRC32();
+        if (value.hasArray()) {
+            crc.update(value.array(), value.arrayOffset() + value.position(), value.remaining());
+        } else {
+            byte[] buf = new byte[Math.min(value.remaining(), 64 * 1024)];
+            ByteBuffer dup = value.duplicate();
+            while (dup.hasRemaining()) {
+                int n = Math.min(buf.length, dup.remaining());
+                dup.get(buf, 0, n);
+                crc.update(buf, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (FileChannel chan = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            chan.truncate(length);
+            chan.force(true);
+        }
+    }
+
+    /**
+     * Write a snapshot of the index, so that the next init only needs to
+     * parse keys added after this. Puts are blocked while this runs, reads
+     * are not
+     */
+    public void writeSnapshot() {
+        synchronized (snapshotLock) {
+            lock.readLock().lock();
+            try {
+                if (!enabled || !keysFile.exists()) {
+                    return;
+                }
+                long startTime = System.currentTimeMillis();
+                writeSnapshotLocked();
+                linesSinceSnapshot = 0;
+                log.info("writeSnapshot: wrote {} keys covering {} bytes of keysfile in {}ms", generation.index.size(), keysFileLength, System.currentTimeMillis() - startTime);
+            } catch (IOException ex) {
+                log.warn("writeSnapshot: couldnt write index snapshot " + snapshotFile.getAbsolutePath(), ex);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    private void writeSnapshotLocked() throws IOException {
+        // the snapshot is a checkpoint, data it covers isn't checked on startup, so
+        // must be on disk first
+        if (valuesAppendChannel != null) {
+            valuesAppendChannel.force(false);
+        }
+        if (keysAppendChannel != null) {
+            keysAppendChannel.force(false);
+        }
+        SimpleFileDbIndex index = generation.index;
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream fout = new FileOutputStream(tmp)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fout, 1024 * 1024), crc));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeUTF(index.getClass().getName());
+            out.writeLong(keysFileLength);
+            out.writeLong(keysFileTailChecksum(keysFileLength));
+            index.writeTo(out);
+            out.writeLong(crc.getValue());
+            out.flush();
+            fout.getFD().sync();
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load the snapshot into the index, if there is a valid one
+     *
+     * @return the offset in the keys file to continue parsing from, zero if
+     * there is no usable snapshot
+     */
+    private long loadSnapshot() {
+        SimpleFileDbIndex index = generation.index;
+        index.clear();
+        if (!snapshotFile.exists()) {
+            return 0;
+        }
+        try (FileInputStream fin = new FileInputStream(snapshotFile)) {
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(fin, 1024 * 1024), crc));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                log.warn("loadSnapshot: not a valid snapshot, ignoring: {}", snapshotFile.getAbsolutePath());
+                return 0;
+            }
+            String indexClass = in.readUTF();
+            if (!indexClass.equals(index.getClass().getName())) {
+                log.warn("loadSnapshot: snapshot is for index {} but using {}, ignoring", indexClass, index.getClass().getName());
+                return 0;
+            }
+            long offset = in.readLong();
+            long tailChecksum = in.readLong();
+            if (offset > keysFile.length() || tailChecksum != keysFileTailChecksum(offset)) {
+                log.warn("loadSnapshot: keysfile doesnt match snapshot, ignoring: {}", snapshotFile.getAbsolutePath());
+                return 0;
+            }
+            index.readFrom(in);
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                log.warn("loadSnapshot: checksum failed, ignoring: {}", snapshotFile.getAbsolutePath());
+                index.clear();
+                return 0;
+            }
+            return offset;
+        } catch (IOException | RuntimeException ex) {
+            log.warn("loadSnapshot: couldnt read snapshot, ignoring: " + snapshotFile.getAbsolutePath(), ex);
+            index.clear();
+            return 0;
+        }
+    }
+
+    /**
+     * Checksum of the bytes just before the offset, so a snapshot isn't used
+     * with a different keys file
+     */
+    private long keysFileTailChecksum(long offset) throws IOException {
+        int n = (int) Math.min(SNAPSHOT_TAIL_CHECK, offset);
+        byte[] arr = new byte[n];
+        try (RandomAccessFile raf = new RandomAccessFile(keysFile, "r")) {
+            raf.seek(offset - n);
+            raf.readFully(arr);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(arr);
+        return crc.getValue();
+    }
+
+    // must not be called while holding the lock
+    private void checkSnapshot() {
+        if (snapshotInterval > 0 && linesSinceSnapshot >= snapshotInterval) {
+            writeSnapshot();
+        }
+    }
+
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * A snapshot of the index is written after this many keys have been added
+     * since the last one, and on init if at least this many keys had to be
+     * parsed from the keys file. Zero disables automatic snapshots
+     *
+     * @param snapshotInterval
+     */
+    public void setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    public boolean isVerifyOnRecovery() {
+        return verifyOnRecovery;
+    }
+
+    /**
+     * Whether init reads the values of lines after the snapshot to check
+     * their checksums, which is the default. Only values within
+     * recoveryVerifyBytes of the end of the values file are read, since that
+     * is where a crash can leave incomplete writes. If disabled only the
+     * lengths are checked
+     *
+     * @param verifyOnRecovery
+     */
+    public void setVerifyOnRecovery(boolean verifyOnRecovery) {
+        this.verifyOnRecovery = verifyOnRecovery;
+    }
+
+    public long getRecoveryVerifyBytes() {
+        return recoveryVerifyBytes;
+    }
+
+    /**
+     * How far from the end of the values file init checks checksums, see
+     * setVerifyOnRecovery. Default 64MB
+     *
+     * @param recoveryVerifyBytes
+     */
+    public void setRecoveryVerifyBytes(long recoveryVerifyBytes) {
+        this.recoveryVerifyBytes = recoveryVerifyBytes;
+    }
+
+    public boolean isVerifyReads() {
+        return verifyReads;
+    }
+
+    /**
+     * Check the checksum of every value read, so corruption after it was
+     * written (eg by the disk) is reported as an IOException rather than
+     * returning bad data. Costs about a CRC32 of each value read. Off by
+     * default
+     *
+     * @param verifyReads
+     */
+    public void setVerifyReads(boolean verifyReads) {
+        this.verifyReads = verifyReads;
+    }
+
+    /**
+     *
+     * @return number of reads which failed verification, see setVerifyReads
+     */
+    public long getCorruptReads() {
+        return corruptReads.get();
+    }
+
     // deliberately not locked - callers use this to decide whether to fall through
     // to the primary store while replaceData is swapping in new data, so it must
     // never block behind the write lock
@@ -125,13 +574,13 @@ public class SimpleFileDb {
         return enabled;
     }
 
-    // no lock - mapOfItems is only ever mutated while enabled is false (see
-    // replaceData/initLocked), so once enabled is true it's stable to read
+    // no lock - the index allows reads concurrently with put, and is only
+    // cleared while enabled is false (see replaceData/initLocked)
     public int size() {
         if (!enabled) {
             return 0;
         }
-        return mapOfItems.size();
+        return generation.index.size();
     }
 
     // no lock - see size()
@@ -139,47 +588,248 @@ public class SimpleFileDb {
         if (!enabled) {
             return false;
         }
-        return mapOfItems.containsKey(hash);
+        return generation.index.contains(hash);
+    }
+
+    /**
+     * Get the length of the value for the given key from the index, without
+     * reading the values file
+     *
+     * @param key
+     * @return length in bytes, or -1 if the key is not present
+     */
+    // no lock - see size()
+    public long getLength(String key) {
+        if (!enabled) {
+            return -1;
+        }
+        DbItem item = generation.index.get(key);
+        if (item == null) {
+            return -1;
+        }
+        return item.length();
+    }
+
+    /**
+     * Stream keys in the order they were added, by reading the keys file. So
+     * unlike most stores the keys are not sorted, but the order is stable and
+     * afterKey resumes from that key's position in the file. If afterKey is no
+     * longer present (eg the data was replaced) enumeration starts again from
+     * the beginning
+     *
+     * @param prefix
+     * @param afterKey
+     * @return
+     */
+    // no lock - see size(). The keys file is only appended to, and lines are
+    // only returned if they match the index, so partial writes are ignored
+    @Override
+    public Stream<String> keys(String prefix, String afterKey) {
+        if (!enabled || !keysFile.exists()) {
+            return Stream.empty();
+        }
+        SimpleFileDbIndex index = generation.index;
+        long afterPos = -1;
+        if (afterKey != null) {
+            DbItem afterItem = index.get(afterKey);
+            if (afterItem != null) {
+                afterPos = afterItem.start;
+            }
+        }
+        final long minStart = afterPos;
+        // zero length values share their start with the next value, so
+        // resuming skips lines at minStart up to and including afterKey's
+        final boolean[] resumed = {afterPos < 0};
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(keysFile)));
+        } catch (FileNotFoundException ex) {
+            throw new RuntimeException(ex);
+        }
+        return reader.lines().onClose(() -> IOUtils.closeQuietly(reader)).map(line -> {
+            String[] arr = line.split(",");
+            if (arr.length != 3 && arr.length != 4) {
+                return null;
+            }
+            String key = arr[0];
+            long start;
+            try {
+                start = Long.parseLong(arr[1]);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            if (!resumed[0]) {
+                if (start < minStart) {
+                    return null;
+                }
+                if (start == minStart) {
+                    if (key.equals(afterKey)) {
+                        resumed[0] = true;
+                    }
+                    return null;
+                }
+                resumed[0] = true;
+            }
+            if (prefix != null && !key.startsWith(prefix)) {
+                return null;
+            }
+            // only the line matching the current index entry, to skip duplicates
+            DbItem item = index.get(key);
+            if (item == null || item.start != start) {
+                return null;
+            }
+            return key;
+        }).filter(key -> key != null);
     }
 
     public DbItem put(String key, byte[] val) throws FileNotFoundException, IOException {
+        DbItem item;
         lock.writeLock().lock();
         try {
-            if (mapOfItems.containsKey(key)) {
+            if (generation.index.contains(key)) {
                 throw new RuntimeException("Key " + key + " is already present");
             }
+            item = appendLocked(Collections.singletonList(key), Collections.singletonList(val)).get(0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        checkSnapshot();
+        return item;
+    }
 
-            long startPos;
-            long finishPos;
-            try (FileOutputStream fout = new FileOutputStream(valuesFile, true)) { //open in append mode
-                FileChannel chan = fout.getChannel();
-                startPos = chan.position();
-                ByteBuffer bb = ByteBuffer.wrap(val);
-                chan.write(bb);
-                finishPos = chan.position();
+    /**
+     * Add a batch of values with a single write to each file, and a single
+     * fsync according to the fsync policy, which is much faster than adding
+     * them one at a time. Keys which are already present, or repeated in the
+     * batch, are skipped. Entries are only added to the index once they have
+     * been written
+     *
+     * @param blobs
+     * @return the number of values added
+     * @throws IOException
+     */
+    public int putAll(List<BlobImpl> blobs) throws IOException {
+        int added;
+        lock.writeLock().lock();
+        try {
+            List<String> keys = new ArrayList<>(blobs.size());
+            List<byte[]> vals = new ArrayList<>(blobs.size());
+            Set<String> batchKeys = new HashSet<>();
+            for (BlobImpl blob : blobs) {
+                if (!generation.index.contains(blob.getHash()) && batchKeys.add(blob.getHash())) {
+                    keys.add(blob.getHash());
+                    vals.add(blob.getBytes());
+                }
             }
-            long length = finishPos - startPos;
-            if (length != val.length) {
-                throw new RuntimeException("Inserting blob into simplefiledb failed, lengths differ. Should be " + val.length + " but is " + length + ", for key=" + key);
+            if (keys.isEmpty()) {
+                return 0;
             }
-            DbItem dbItem = new DbItem(startPos, finishPos);
+            added = appendLocked(keys, vals).size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        checkSnapshot();
+        return added;
+    }
 
-            log.info("put: start={} finish={} key={}", startPos, finishPos, key);
-            try (FileOutputStream fout = new FileOutputStream(keysFile, true)) { //open in append mode
-                try (FileChannel chan = fout.getChannel()) {
-                    String line = key + "," + startPos + "," + finishPos + "\n"; // use text for ease of troubleshooting
-                    ByteBuffer bb = ByteBuffer.wrap(line.getBytes());
-                    chan.write(bb);
-                }
-            }
+    // must only be called while holding the write lock
+    private List<DbItem> appendLocked(List<String> keys, List<byte[]> vals) throws IOException {
+        if (valuesAppendChannel == null) {
+            valuesAppendChannel = FileChannel.open(valuesFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        if (keysAppendChannel == null) {
+            keysAppendChannel = FileChannel.open(keysFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        long startPos = valuesAppendChannel.size();
+        ByteBuffer[] valBuffers = new ByteBuffer[vals.size()];
+        long total = 0;
+        for (int i = 0; i < valBuffers.length; i++) {
+            valBuffers[i] = ByteBuffer.wrap(vals.get(i));
+            total += vals.get(i).length;
+        }
+        writeFully(valuesAppendChannel, valBuffers);
+        long finishPos = valuesAppendChannel.size();
+        if (finishPos - startPos != total) {
+            throw new RuntimeException("Inserting blobs into simplefiledb failed, lengths differ. Should be " + total + " but is " + (finishPos - startPos) + ", for " + keys.size() + " keys starting " + keys.get(0));
+        }
 
-            mapOfItems.put(key, dbItem);
-            enabled = true;
+        List<DbItem> items = new ArrayList<>(keys.size());
+        StringBuilder lines = new StringBuilder(keys.size() * 72);
+        CRC32 crc = new CRC32();
+        long pos = startPos;
+        for (int i = 0; i < keys.size(); i++) {
+            long finish = pos + vals.get(i).length;
+            crc.reset();
+            crc.update(vals.get(i));
+            long valCrc = crc.getValue();
+            log.info("put: start={} finish={} key={}", pos, finish, keys.get(i));
+            // use text for ease of troubleshooting
+            lines.append(keys.get(i)).append(',').append(pos).append(',').append(finish).append(',').append(Long.toHexString(valCrc)).append('\n');
+            items.add(new DbItem(pos, finish, valCrc));
+            pos = finish;
+        }
+        // values are synced before the keys which point to them are written
+        boolean sync = shouldFsync();
+        if (sync) {
+            valuesAppendChannel.force(false);
+        }
+        byte[] lineBytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+        writeFully(keysAppendChannel, ByteBuffer.wrap(lineBytes));
+        if (sync) {
+            keysAppendChannel.force(false);
+            lastFsync = System.currentTimeMillis();
+        }
+        keysFileLength += lineBytes.length;
+        linesSinceSnapshot += keys.size();
 
-            return dbItem;
-        } finally {
-            lock.writeLock().unlock();
+        for (int i = 0; i < keys.size(); i++) {
+            DbItem item = items.get(i);
+            generation.index.put(keys.get(i), item.start, item.finish, item.crc);
+            for (KeyListener l : keyListeners) {
+                l.onAdded(this, keys.get(i));
+            }
         }
+        enabled = true;
+        return items;
+    }
+
+    private boolean shouldFsync() {
+        switch (fsyncPolicy) {
+            case BATCH:
+                return true;
+            case INTERVAL:
+                return System.currentTimeMillis() - lastFsync >= fsyncIntervalMillis;
+            default:
+                return false;
+        }
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * When to force written data to disk, so it survives a crash of the OS.
+     * The default is NONE, where data is only lost if the OS crashes before
+     * writing it out itself
+     *
+     * @param fsyncPolicy
+     */
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    public long getFsyncIntervalMillis() {
+        return fsyncIntervalMillis;
+    }
+
+    /**
+     * For FsyncPolicy.INTERVAL, the minimum time between fsyncs
+     *
+     * @param fsyncIntervalMillis
+     */
+    public void setFsyncIntervalMillis(long fsyncIntervalMillis) {
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
     }
 
     // no lock - see size()
@@ -187,68 +837,374 @@ public class SimpleFileDb {
         if (!enabled) {
             return null;
         }
-        DbItem item = mapOfItems.get(key);
-        if (item == null) {
+        Generation g = acquire();
+        try {
+            DbItem item = g.index.get(key);
+            if (item == null) {
+                return null;
+            }
+            return g.read(item);
+        } finally {
+            g.release();
+        }
+    }
+
+    /**
+     * Get the value as a read only buffer. If memory mapped this is usually a
+     * view of the mapping, so nothing is copied. The mapping stays valid
+     * after replaceData, so the buffer still holds the old value
+     *
+     * @param key
+     * @return the value, or null if not present
+     * @throws IOException
+     */
+    public ByteBuffer getBuffer(String key) throws IOException {
+        if (!enabled) {
             return null;
         }
-        return getLocked(item);
+        Generation g = acquire();
+        try {
+            DbItem item = g.index.get(key);
+            if (item == null) {
+                return null;
+            }
+            MappedValuesFile mapped = g.mapped;
+            if (mapped != null) {
+                ByteBuffer bb = mapped.slice(item.start, (int) item.length());
+                if (verifyReads && item.crc >= 0) {
+                    verify(item, checksum(bb));
+                }
+                return bb;
+            }
+            return ByteBuffer.wrap(g.read(item)).asReadOnlyBuffer();
+        } finally {
+            g.release();
+        }
     }
 
+    public boolean isMemoryMapped() {
+        return mappedSegmentSize > 0;
+    }
+
+    /**
+     * Serve reads from a memory mapping of the values file instead of reading
+     * through a channel. This avoids system calls and copying for hot data, but
+     * the mapping is not unmapped until garbage collected
+     *
+     * @param memoryMapped
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        setMemoryMapped(memoryMapped, MappedValuesFile.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     *
+     * @param memoryMapped
+     * @param segmentSize - size of each mapping, must be a power of two and
+     * no more than 1GB
+     */
+    public void setMemoryMapped(boolean memoryMapped, int segmentSize) {
+        lock.writeLock().lock();
+        try {
+            mappedSegmentSize = memoryMapped ? segmentSize : 0;
+            generation.setMapped(mappedSegmentSize);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read the value at the location given, which must be from the current
+     * data, eg as returned from put
+     *
+     * @param item
+     * @return
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
     public byte[] get(DbItem item) throws FileNotFoundException, IOException {
-        lock.readLock().lock();
+        Generation g = acquire();
         try {
-            return getLocked(item);
+            return g.read(item);
         } finally {
-            lock.readLock().unlock();
+            g.release();
         }
     }
 
-    private byte[] getLocked(DbItem item) throws FileNotFoundException, IOException {
-        RandomAccessFile raf = new RandomAccessFile(valuesFile, "r");
-        try (FileChannel chan = raf.getChannel()) {
-            int size = (int) (item.finish - item.start);
-            ByteBuffer bb = ByteBuffer.allocate(size);
-            chan.position(item.start).read(bb);
-            bb.flip();
-            byte[] arr = bb.array();
-            return arr;
+    private void verify(DbItem item, long crc) throws IOException {
+        if (crc != item.crc) {
+            corruptReads.incrementAndGet();
+            log.warn("verify: checksum failed for value at {}-{} in {}", item.start, item.finish, valuesFile.getAbsolutePath());
+            throw new IOException("Checksum failed for value at " + item.start + " in db " + name);
         }
     }
 
-    private void parseAndAdd(String line) {
-        String[] arr = line.split(",");
-        if (arr.length != 3) {
-            log.info("Invalid line, not 3 parts: {}", line);
-        } else {
-            String key = arr[0];
-            long start = Long.parseLong(arr[1]);
-            long finish = Long.parseLong(arr[2]);
-            DbItem dbItem = new DbItem(start, finish);
-            mapOfItems.put(key, dbItem);
+    private Generation acquire() {
+        while (true) {
+            Generation g = generation;
+            if (g.acquire()) {
+                return g;
+            }
+            // retired and closed since we read it, so there must be a newer one
         }
     }
 
-    private void replaceFileContent(File source, File dest) throws FileNotFoundException, IOException {
-        log.info("replaceFileContent: replacing content of dest file {} with source file {}", dest.getAbsolutePath(), source.getAbsolutePath());
-        try( FileInputStream newFileIn = new FileInputStream(source)) {
-            try( FileOutputStream fileOut = new FileOutputStream(dest, false)) {
-                IOUtils.copyLarge(newFileIn, fileOut);
+    private static void readFully(FileChannel chan, ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()) {
+            int n = chan.read(bb, position + bb.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of values file at " + (position + bb.position()));
             }
         }
     }
 
-    public class DbItem {
+    private static void writeFully(FileChannel chan, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            chan.write(bb);
+        }
+    }
+
+    private static void writeFully(FileChannel chan, ByteBuffer[] bbs) throws IOException {
+        int first = 0;
+        while (first < bbs.length) {
+            chan.write(bbs, first, bbs.length - first);
+            while (first < bbs.length && !bbs[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+
+    /**
+     * Close open files, writing a snapshot of the index if keys have been
+     * added since the last one. The db can still be used, files are reopened
+     * as needed
+     */
+    public void close() {
+        if (snapshotInterval > 0 && linesSinceSnapshot > 0) {
+            writeSnapshot();
+        }
+        lock.writeLock().lock();
+        try {
+            closeChannels();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Disable the db and delete its files, eg when evicting a cache segment.
+     * Reads which are in progress may fail
+     */
+    public void delete() {
+        lock.writeLock().lock();
+        try {
+            enabled = false;
+            generation.index.clear();
+            closeChannels();
+            linesSinceSnapshot = 0;
+            Files.deleteIfExists(snapshotFile.toPath());
+            Files.deleteIfExists(keysFile.toPath());
+            Files.deleteIfExists(valuesFile.toPath());
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldnt delete files of db " + name, ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        fireReset();
+    }
+
+    // must only be called while holding the write lock
+    private void closeChannels() {
+        generation.closeChannel();
+        closeAppendChannels();
+    }
+
+    // must only be called while holding the write lock
+    private void closeAppendChannels() {
+        IOUtils.closeQuietly(valuesAppendChannel);
+        valuesAppendChannel = null;
+        IOUtils.closeQuietly(keysAppendChannel);
+        keysAppendChannel = null;
+    }
+
+    public enum FsyncPolicy {
+        /**
+         * Never fsync, leave it to the OS
+         */
+        NONE,
+        /**
+         * Fsync after every put or batch of puts
+         */
+        BATCH,
+        /**
+         * Fsync after a put or batch if the last fsync was more than
+         * fsyncIntervalMillis ago
+         */
+        INTERVAL
+    }
+
+    public static class DbItem {
 
         private final long start;
         private final long finish;
+        private final long crc;
 
         public DbItem(long start, long finish) {
+            this(start, finish, -1);
+        }
+
+        public DbItem(long start, long finish, long crc) {
             this.start = start;
             this.finish = finish;
+            this.crc = crc;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getFinish() {
+            return finish;
         }
 
-        byte[] data() throws IOException {
-            return SimpleFileDb.this.get(this);
+        /**
+         *
+         * @return CRC32 of the value, or -1 if not known
+         */
+        public long getCrc() {
+            return crc;
+        }
+
+        long length() {
+            return finish - start;
+        }
+    }
+
+    /**
+     * An index and the values file it refers to. replaceData loads a new
+     * generation then switches readers to it, and the old one is closed when
+     * the last read using it finishes, which is tracked by reference counting
+     */
+    private class Generation implements MappedValuesFile.ChannelSource {
+
+        private final SimpleFileDbIndex index;
+        private final File file;
+        // one for the db while this is current, plus one for each read in progress
+        private final AtomicInteger refs = new AtomicInteger(1);
+        private final Object channelLock = new Object();
+        // Reads use positional reads, which are thread safe, so all readers share one channel
+        private volatile FileChannel readChannel;
+        // if not null, reads are served from a memory mapping of the values file
+        private volatile MappedValuesFile mapped;
+        private volatile boolean retired;
+
+        Generation(SimpleFileDbIndex index, File file, int mappedSegmentSize) {
+            this.index = index;
+            this.file = file;
+            setMapped(mappedSegmentSize);
+        }
+
+        boolean acquire() {
+            int r;
+            do {
+                r = refs.get();
+                if (r == 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(r, r + 1));
+            return true;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                closeChannel();
+            }
+        }
+
+        /**
+         * Make sure the values file is open, so it can still be read once the
+         * path refers to a new file
+         */
+        void pin() throws IOException {
+            if (file.exists()) {
+                channel();
+            }
+        }
+
+        /**
+         * No longer current, so close once reads in progress have finished
+         */
+        void retire() {
+            retired = true;
+            release();
+        }
+
+        final void setMapped(int segmentSize) {
+            if (mapped != null) {
+                mapped.close();
+            }
+            mapped = segmentSize > 0 ? new MappedValuesFile(file, this, segmentSize) : null;
+        }
+
+        byte[] read(DbItem item) throws IOException {
+            byte[] arr = readUnverified(item);
+            if (verifyReads && item.crc >= 0) {
+                CRC32 crc = new CRC32();
+                crc.update(arr);
+                verify(item, crc.getValue());
+            }
+            return arr;
+        }
+
+        private byte[] readUnverified(DbItem item) throws IOException {
+            int size = (int) item.length();
+            MappedValuesFile m = mapped;
+            if (m != null) {
+                return m.read(item.start, size);
+            }
+            ByteBuffer bb = ByteBuffer.allocate(size);
+            try {
+                readFully(channel(), bb, item.start);
+            } catch (ClosedChannelException ex) {
+                // the shared channel is closed if any reader is interrupted, so if we're
+                // still enabled open it again and retry
+                if (!enabled || retired || Thread.currentThread().isInterrupted()) {
+                    throw ex;
+                }
+                bb.clear();
+                readFully(channel(), bb, item.start);
+            }
+            return bb.array();
+        }
+
+        @Override
+        public FileChannel channel() throws IOException {
+            FileChannel chan = readChannel;
+            if (chan != null && chan.isOpen()) {
+                return chan;
+            }
+            synchronized (channelLock) {
+                chan = readChannel;
+                if (chan == null || !chan.isOpen()) {
+                    if (retired) {
+                        // the path now refers to the new file
+                        throw new ClosedChannelException();
+                    }
+                    chan = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    readChannel = chan;
+                }
+                return chan;
+            }
+        }
+
+        void closeChannel() {
+            if (mapped != null) {
+                mapped.close();
+            }
+            synchronized (channelLock) {
+                IOUtils.closeQuietly(readChannel);
+                readChannel = null;
+            }
         }
     }
 }
@@ -15,6 +15,7 @@ public class SimpleFileDbBlobStore extends AbstractFileDbBlobStore implements Bl
     private static final Logger log = LoggerFactory.getLogger(SimpleFileDbBlobStore.class);
 
     private final BlobStore wrapped;
+    private boolean cacheOnSet;
 
     public SimpleFileDbBlobStore(BlobStore wrapped) {
         this.wrapped = wrapped;
@@ -28,9 +29,30 @@ public class SimpleFileDbBlobStore extends AbstractFileDbBlobStore implements Bl
         return "b-" + hash;
     }
 
+    public boolean isCacheOnSet() {
+        return cacheOnSet;
+    }
+
+    /**
+     * If true, and adding is enabled, blobs set through this store are also
+     * cached, not only those read from the wrapped store. Eg when this is a
+     * tier of a TieredBlobStore, over a NullBlobStore
+     *
+     * @param cacheOnSet
+     */
+    public void setCacheOnSet(boolean cacheOnSet) {
+        this.cacheOnSet = cacheOnSet;
+    }
+
     @Override
     public void setBlob(String hash, byte[] bytes) {
         wrapped.setBlob(hash, bytes);
+        if (cacheOnSet && enableAdd) {
+            String key = getBlobKey(hash);
+            if (!_hashKey(key)) {
+                saveToDb(key, bytes);
+            }
+        }
     }
 
     @Override
@@ -67,4 +89,14 @@ public class SimpleFileDbBlobStore extends AbstractFileDbBlobStore implements Bl
         }
         return wrapped.hasBlob(hash);
     }
+
+    @Override
+    public long getBlobLength(String hash) {
+        String key = getBlobKey(hash);
+        long length = _getLength(key);
+        if (length >= 0) {
+            return length;
+        }
+        return wrapped.getBlobLength(hash);
+    }
 }
@@ -0,0 +1,69 @@
+package org.hashsplit4j.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The in memory index of a SimpleFileDb, giving the location in the values
+ * file of each key.
+ *
+ * Implementations must allow get, contains and size to be called
+ * concurrently with put. Only one thread calls put or clear at a time
+ *
+ * @author brad
+ */
+public interface SimpleFileDbIndex {
+
+    /**
+     * Add the key, or replace its location if already present
+     *
+     * @param key
+     * @param start
+     * @param finish
+     * @param crc - CRC32 of the value, or -1 if not known
+     */
+    void put(String key, long start, long finish, long crc);
+
+    default void put(String key, long start, long finish) {
+        put(key, start, finish, -1);
+    }
+
+    /**
+     *
+     * @param key
+     * @return the location of the key, or null if not present
+     */
+    SimpleFileDb.DbItem get(String key);
+
+    boolean contains(String key);
+
+    int size();
+
+    void clear();
+
+    /**
+     * Create a new empty index of the same kind, eg to load replacement data
+     * into while this one is still in use
+     *
+     * @return
+     */
+    SimpleFileDbIndex newEmpty();
+
+    /**
+     * Write the whole index, for use as a snapshot. Must not be called
+     * concurrently with put
+     *
+     * @param out
+     * @throws IOException
+     */
+    void writeTo(DataOutputStream out) throws IOException;
+
+    /**
+     * Replace the contents of the index with what was written by writeTo
+     *
+     * @param in
+     * @throws IOException
+     */
+    void readFrom(DataInputStream in) throws IOException;
+}
@@ -0,0 +1,223 @@
+package org.hashsplit4j.store;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import org.hashsplit4j.utils.LongIntHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index across several SimpleFileDb's, mapping each key to the db which has
+ * it, so a lookup probes one db instead of each of them in turn, and a miss
+ * doesn't probe any.
+ *
+ * Only a 64 bit digest of each key is stored, with the id of its db, so an
+ * entry costs about 20 bytes of heap. If two keys in different dbs share a
+ * digest only one db is recorded, so route can return a db which doesn't
+ * have the key. Callers must then fall back to looking in each db. When a db
+ * is removed or reset the digests it shared are forgotten, which can only
+ * cause a cache miss.
+ *
+ * The index is kept up to date by listening to the dbs, see
+ * SimpleFileDb.KeyListener. While a db is being reset its keys are reloaded
+ * in batches, so a miss then doesn't mean none of the dbs have the key.
+ * Callers take a stamp before routing, and only trust a miss if the stamp is
+ * still valid afterwards, like StampedLock
+ *
+ * @author brad
+ */
+public class SimpleFileDbRouter implements SimpleFileDb.KeyListener {
+
+    private static final Logger log = LoggerFactory.getLogger(SimpleFileDbRouter.class);
+
+    private static final HashFunction DIGEST = Hashing.murmur3_128();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongIntHashMap map;
+    private final Map<SimpleFileDb, Integer> ids = new IdentityHashMap<>();
+    private volatile SimpleFileDb[] dbsById = new SimpleFileDb[0];
+    private final AtomicLong resetsStarted = new AtomicLong();
+    private final AtomicLong resetsFinished = new AtomicLong();
+
+    public SimpleFileDbRouter(int expectedKeys) {
+        this.map = new LongIntHashMap(expectedKeys);
+    }
+
+    /**
+     * Add the db's keys, and keep them up to date
+     *
+     * @param db
+     */
+    public void register(SimpleFileDb db) {
+        lock.writeLock().lock();
+        try {
+            if (ids.containsKey(db)) {
+                return;
+            }
+            int id = dbsById.length;
+            SimpleFileDb[] arr = Arrays.copyOf(dbsById, id + 1);
+            arr[id] = db;
+            dbsById = arr;
+            ids.put(db, id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        db.addKeyListener(this);
+        onReset(db);
+    }
+
+    /**
+     * Forget the db's keys, and stop listening to it
+     *
+     * @param db
+     */
+    public void unregister(SimpleFileDb db) {
+        db.removeKeyListener(this);
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.remove(db);
+            if (id == null) {
+                return;
+            }
+            removeEntries(id);
+            SimpleFileDb[] arr = Arrays.copyOf(dbsById, dbsById.length);
+            arr[id] = null; // ids are not reused
+            dbsById = arr;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     *
+     * @param key
+     * @return the db which probably has the key, or null if none of them do
+     */
+    public SimpleFileDb route(String key) {
+        long digest = digest(key);
+        int id;
+        lock.readLock().lock();
+        try {
+            id = map.get(digest);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (id == LongIntHashMap.NOT_FOUND) {
+            return null;
+        }
+        SimpleFileDb[] arr = dbsById;
+        return id < arr.length ? arr[id] : null;
+    }
+
+    /**
+     * Call before route
+     *
+     * @return a stamp for validate, or zero if a reset is in progress, so a
+     * miss can't be trusted
+     */
+    public long stamp() {
+        long started = resetsStarted.get();
+        return started == resetsFinished.get() ? started + 1 : 0;
+    }
+
+    /**
+     *
+     * @param stamp - from stamp()
+     * @return true if no reset has been in progress since the stamp was taken,
+     * so a miss from route means none of the dbs have the key
+     */
+    public boolean validate(long stamp) {
+        return stamp != 0 && resetsStarted.get() + 1 == stamp;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return map.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void onAdded(SimpleFileDb db, String key) {
+        long digest = digest(key);
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.get(db);
+            if (id != null) {
+                map.put(digest, id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void onReset(SimpleFileDb db) {
+        long startTime = System.currentTimeMillis();
+        int id;
+        // misses can't be trusted from here until the keys are loaded again
+        resetsStarted.incrementAndGet();
+        try {
+            lock.writeLock().lock();
+            try {
+                Integer i = ids.get(db);
+                if (i == null) {
+                    return;
+                }
+                id = i;
+                removeEntries(id);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            // add keys in batches, so lookups aren't blocked while a large db is read
+            long[] batch = new long[64 * 1024];
+            int[] count = new int[1];
+            try (Stream<String> keys = db.keys(null, null)) {
+                keys.forEach(key -> {
+                    batch[count[0]++] = digest(key);
+                    if (count[0] == batch.length) {
+                        addBatch(id, batch, count[0]);
+                        count[0] = 0;
+                    }
+                });
+            }
+            addBatch(id, batch, count[0]);
+        } finally {
+            resetsFinished.incrementAndGet();
+        }
+        log.info("onReset: loaded keys of db {} in {}ms, total keys={}", db.getName(), System.currentTimeMillis() - startTime, size());
+    }
+
+    private void addBatch(int id, long[] digests, int count) {
+        lock.writeLock().lock();
+        try {
+            if (id >= dbsById.length || dbsById[id] == null) {
+                return; // unregistered while loading
+            }
+            for (int i = 0; i < count; i++) {
+                map.put(digests[i], id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // must only be called while holding the write lock
+    private void removeEntries(int id) {
+        map.removeValue(id);
+    }
+
+    private static long digest(String key) {
+        return DIGEST.hashString(key, StandardCharsets.UTF_8).asLong();
+    }
+}
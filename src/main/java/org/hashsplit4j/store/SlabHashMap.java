@@ -0,0 +1,489 @@
+package org.hashsplit4j.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.hashsplit4j.utils.HashBytes;
+
+/**
+ * Concurrent map from hash to byte[] which keeps its keys and values packed
+ * into large byte array slabs, rather than an object (and a boxed key) per
+ * entry. This is the storage for ConcurrentMemoryBlobStore and
+ * ConcurrentMemoryHashStore.
+ *
+ * The map is split into stripes by key hash, each with its own read/write
+ * lock, open addressing table and slabs. The table holds the slab address of
+ * each entry, and entries are laid out as [keyLen:2][key][valueLen:4][value]
+ * with keys in their HashBytes form.
+ *
+ * Values are immutable once added, as with the other stores, so a second put
+ * of the same key is ignored. Space from removed entries is reclaimed by
+ * compacting a stripe's slabs once most of them is dead.
+ *
+ * Memory actually allocated, ie slabs (including unused space at their ends
+ * and removed entries awaiting compaction) and tables, is counted against a
+ * byte budget which may be shared by several maps. A put which would need to
+ * allocate past the budget fails with an exception. Slabs start small and
+ * double up to slabSize, so a stripe with few entries doesn't hold a whole
+ * slab. Compaction briefly holds both the old and new slabs of one stripe
+ *
+ * @author brad
+ */
+public class SlabHashMap {
+
+    public static final int DEFAULT_STRIPES = 64;
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    private static final int MIN_SLAB_SIZE = 1024;
+    private static final int INITIAL_SLOTS = 16;
+    private static final int SLOT_BYTES = 12; // long address + int hash
+
+    /**
+     * Reads a value directly from its slab, so callers needing only part of
+     * it (eg the length) don't have to copy it
+     *
+     * @param <T>
+     */
+    public interface ValueReader<T> {
+
+        T read(byte[] slab, int offset, int length);
+    }
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+    private final int slabSize;
+    private final long maxBytes;
+    private final AtomicLong usedBytes;
+
+    /**
+     *
+     * @param numStripes - must be a power of two
+     * @param slabSize - size of each slab. Values larger than this get a slab
+     * of their own
+     * @param maxBytes - the budget
+     * @param usedBytes - bytes counted against the budget, may be shared with
+     * other maps
+     */
+    public SlabHashMap(int numStripes, int slabSize, long maxBytes, AtomicLong usedBytes) {
+        if (Integer.bitCount(numStripes) != 1) {
+            throw new IllegalArgumentException("Number of stripes must be a power of two: " + numStripes);
+        }
+        this.stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.stripeShift = 32 - Integer.numberOfTrailingZeros(numStripes);
+        this.slabSize = slabSize;
+        this.maxBytes = maxBytes;
+        this.usedBytes = usedBytes;
+        usedBytes.addAndGet((long) numStripes * INITIAL_SLOTS * SLOT_BYTES);
+    }
+
+    public SlabHashMap(long maxBytes) {
+        this(DEFAULT_STRIPES, DEFAULT_SLAB_SIZE, maxBytes, new AtomicLong());
+    }
+
+    /**
+     *
+     * @param key
+     * @param value
+     * @return false if the key was already present, in which case the value
+     * is not changed
+     */
+    public boolean putIfAbsent(String key, byte[] value) {
+        byte[] k = HashBytes.encode(key);
+        if (k.length > 0xffff) {
+            throw new IllegalArgumentException("Key is too long: " + key.length());
+        }
+        int h = hash(k);
+        Stripe s = stripeFor(h);
+        s.lock.writeLock().lock();
+        try {
+            int i = s.find(k, h);
+            if (i >= 0) {
+                return false;
+            }
+            int entrySize = 2 + k.length + 4 + value.length;
+            reserve(s.slabBytesFor(entrySize) + s.tableBytesFor(s.size + 1));
+            long addr = s.append(k, value, entrySize);
+            s.insert(~i, addr, h);
+            return true;
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    public byte[] get(String key) {
+        return read(key, (slab, offset, length) -> {
+            byte[] arr = new byte[length];
+            System.arraycopy(slab, offset, arr, 0, length);
+            return arr;
+        });
+    }
+
+    /**
+     *
+     * @param <T>
+     * @param key
+     * @param reader - called while holding the stripe's read lock
+     * @return the result of the reader, or null if the key is not present
+     */
+    public <T> T read(String key, ValueReader<T> reader) {
+        byte[] k = HashBytes.encode(key);
+        int h = hash(k);
+        Stripe s = stripeFor(h);
+        s.lock.readLock().lock();
+        try {
+            int i = s.find(k, h);
+            if (i < 0) {
+                return null;
+            }
+            long addr = s.addrs[i];
+            byte[] slab = s.slabs.get(slabIndex(addr));
+            int off = offset(addr);
+            int keyLen = readShort(slab, off);
+            int valOff = off + 2 + keyLen;
+            int valLen = readInt(slab, valOff);
+            return reader.read(slab, valOff + 4, valLen);
+        } finally {
+            s.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     *
+     * @param key
+     * @return length of the value, or -1 if not present
+     */
+    public int length(String key) {
+        Integer len = read(key, (slab, offset, length) -> length);
+        return len == null ? -1 : len;
+    }
+
+    public boolean contains(String key) {
+        byte[] k = HashBytes.encode(key);
+        int h = hash(k);
+        Stripe s = stripeFor(h);
+        s.lock.readLock().lock();
+        try {
+            return s.find(k, h) >= 0;
+        } finally {
+            s.lock.readLock().unlock();
+        }
+    }
+
+    public boolean remove(String key) {
+        byte[] k = HashBytes.encode(key);
+        int h = hash(k);
+        Stripe s = stripeFor(h);
+        s.lock.writeLock().lock();
+        try {
+            int i = s.find(k, h);
+            if (i < 0) {
+                return false;
+            }
+            int entrySize = s.entrySize(s.addrs[i]);
+            s.delete(i);
+            s.liveBytes -= entrySize;
+            s.deadBytes += entrySize;
+            if (s.deadBytes > slabSize && s.deadBytes > s.liveBytes) {
+                long before = s.allocated;
+                s.compact();
+                usedBytes.addAndGet(s.allocated - before);
+            }
+            return true;
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     *
+     * @return all keys, in no particular order
+     */
+    public List<String> keys() {
+        List<String> list = new ArrayList<>();
+        for (Stripe s : stripes) {
+            s.lock.readLock().lock();
+            try {
+                for (long addr : s.addrs) {
+                    if (addr != 0) {
+                        byte[] slab = s.slabs.get(slabIndex(addr));
+                        int off = offset(addr);
+                        list.add(HashBytes.decode(slab, off + 2, readShort(slab, off)));
+                    }
+                }
+            } finally {
+                s.lock.readLock().unlock();
+            }
+        }
+        return list;
+    }
+
+    public int size() {
+        int n = 0;
+        for (Stripe s : stripes) {
+            s.lock.readLock().lock();
+            try {
+                n += s.size;
+            } finally {
+                s.lock.readLock().unlock();
+            }
+        }
+        return n;
+    }
+
+    /**
+     *
+     * @return bytes allocated for slabs and tables, including by any other
+     * maps sharing the budget
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private void reserve(long bytes) {
+        long used = usedBytes.addAndGet(bytes);
+        if (used > maxBytes) {
+            usedBytes.addAndGet(-bytes);
+            throw new RuntimeException("Memory store budget of " + maxBytes + " bytes exceeded, used=" + (used - bytes) + " requested=" + bytes);
+        }
+    }
+
+    private Stripe stripeFor(int h) {
+        return stripes.length == 1 ? stripes[0] : stripes[h >>> stripeShift];
+    }
+
+    private static int hash(byte[] k) {
+        int h = 1;
+        for (byte b : k) {
+            h = 31 * h + b;
+        }
+        // murmur3 finalizer, so both the high bits (stripe) and low bits (slot) are well mixed
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int slabIndex(long addr) {
+        return (int) (addr >>> 32) - 1;
+    }
+
+    private static int offset(long addr) {
+        return (int) addr;
+    }
+
+    private static long address(int slabIndex, int offset) {
+        return ((long) (slabIndex + 1) << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int readShort(byte[] arr, int off) {
+        return ((arr[off] & 0xff) << 8) | (arr[off + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] arr, int off) {
+        return ((arr[off] & 0xff) << 24) | ((arr[off + 1] & 0xff) << 16) | ((arr[off + 2] & 0xff) << 8) | (arr[off + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] arr, int off, int v) {
+        arr[off] = (byte) (v >>> 24);
+        arr[off + 1] = (byte) (v >>> 16);
+        arr[off + 2] = (byte) (v >>> 8);
+        arr[off + 3] = (byte) v;
+    }
+
+    private class Stripe {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private long[] addrs = new long[INITIAL_SLOTS]; // 0 means empty
+        private int[] hashes = new int[INITIAL_SLOTS];
+        private int mask = INITIAL_SLOTS - 1;
+        private int size;
+        private List<byte[]> slabs = new ArrayList<>();
+        private byte[] current;
+        private int currentIndex;
+        private int pos;
+        private long liveBytes;
+        private long deadBytes;
+        private long allocated; // slab bytes
+
+        /**
+         * @return the slot holding the key, or the complement of the empty
+         * slot where it would go
+         */
+        int find(byte[] k, int h) {
+            int i = h & mask;
+            while (addrs[i] != 0) {
+                if (hashes[i] == h && keyEquals(addrs[i], k)) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return ~i;
+        }
+
+        boolean keyEquals(long addr, byte[] k) {
+            byte[] slab = slabs.get(slabIndex(addr));
+            int off = offset(addr);
+            if (readShort(slab, off) != k.length) {
+                return false;
+            }
+            off += 2;
+            for (int j = 0; j < k.length; j++) {
+                if (slab[off + j] != k[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int entrySize(long addr) {
+            byte[] slab = slabs.get(slabIndex(addr));
+            int off = offset(addr);
+            int keyLen = readShort(slab, off);
+            return 2 + keyLen + 4 + readInt(slab, off + 2 + keyLen);
+        }
+
+        /**
+         * @return the size of the slab append will allocate for the entry,
+         * or zero if it fits in the current one
+         */
+        int slabBytesFor(int entrySize) {
+            if (entrySize > slabSize) {
+                return entrySize;
+            }
+            if (current != null && pos + entrySize <= current.length) {
+                return 0;
+            }
+            int next = current == null ? MIN_SLAB_SIZE : current.length * 2;
+            return Math.min(slabSize, Math.max(entrySize, next));
+        }
+
+        /**
+         * @return the bytes resizing will add to the table when it holds
+         * newSize entries, or zero
+         */
+        long tableBytesFor(int newSize) {
+            return newSize > addrs.length * 2 / 3 ? (long) addrs.length * SLOT_BYTES : 0;
+        }
+
+        long append(byte[] k, byte[] value, int entrySize) {
+            byte[] slab;
+            int slabIdx;
+            int off;
+            int newSlab = slabBytesFor(entrySize);
+            allocated += newSlab;
+            if (entrySize > slabSize) {
+                slab = new byte[entrySize];
+                slabs.add(slab);
+                slabIdx = slabs.size() - 1;
+                off = 0;
+            } else {
+                if (newSlab > 0) {
+                    current = new byte[newSlab];
+                    slabs.add(current);
+                    currentIndex = slabs.size() - 1;
+                    pos = 0;
+                }
+                slab = current;
+                slabIdx = currentIndex;
+                off = pos;
+                pos += entrySize;
+            }
+            slab[off] = (byte) (k.length >>> 8);
+            slab[off + 1] = (byte) k.length;
+            System.arraycopy(k, 0, slab, off + 2, k.length);
+            writeInt(slab, off + 2 + k.length, value.length);
+            System.arraycopy(value, 0, slab, off + 2 + k.length + 4, value.length);
+            liveBytes += entrySize;
+            return address(slabIdx, off);
+        }
+
+        void insert(int slot, long addr, int h) {
+            addrs[slot] = addr;
+            hashes[slot] = h;
+            size++;
+            if (size > addrs.length * 2 / 3) {
+                resize();
+            }
+        }
+
+        void resize() {
+            long[] oldAddrs = addrs;
+            int[] oldHashes = hashes;
+            addrs = new long[oldAddrs.length * 2];
+            hashes = new int[oldAddrs.length * 2];
+            mask = addrs.length - 1;
+            for (int j = 0; j < oldAddrs.length; j++) {
+                if (oldAddrs[j] != 0) {
+                    int i = oldHashes[j] & mask;
+                    while (addrs[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    addrs[i] = oldAddrs[j];
+                    hashes[i] = oldHashes[j];
+                }
+            }
+        }
+
+        /**
+         * Remove the entry at the slot, shifting later entries in the probe
+         * sequence back so there are no gaps
+         */
+        void delete(int gap) {
+            int i = gap;
+            while (true) {
+                i = (i + 1) & mask;
+                if (addrs[i] == 0) {
+                    break;
+                }
+                int home = hashes[i] & mask;
+                boolean move = gap <= i ? (home <= gap || home > i) : (home <= gap && home > i);
+                if (move) {
+                    addrs[gap] = addrs[i];
+                    hashes[gap] = hashes[i];
+                    gap = i;
+                }
+            }
+            addrs[gap] = 0;
+            hashes[gap] = 0;
+            size--;
+        }
+
+        /**
+         * Copy live entries into new slabs, dropping the space used by
+         * removed entries
+         */
+        void compact() {
+            List<byte[]> oldSlabs = slabs;
+            slabs = new ArrayList<>();
+            current = null;
+            pos = 0;
+            liveBytes = 0;
+            deadBytes = 0;
+            allocated = 0;
+            for (int j = 0; j < addrs.length; j++) {
+                long addr = addrs[j];
+                if (addr != 0) {
+                    byte[] slab = oldSlabs.get(slabIndex(addr));
+                    int off = offset(addr);
+                    int keyLen = readShort(slab, off);
+                    byte[] k = new byte[keyLen];
+                    System.arraycopy(slab, off + 2, k, 0, keyLen);
+                    int valLen = readInt(slab, off + 2 + keyLen);
+                    byte[] value = new byte[valLen];
+                    System.arraycopy(slab, off + 2 + keyLen + 4, value, 0, valLen);
+                    addrs[j] = append(k, value, 2 + keyLen + 4 + valLen);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package org.hashsplit4j.store;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.EvictingBlobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages several caches of an origin store as tiers, fastest first, eg
+ * memory, then local disk, then the origin over HTTP. Each tier is a
+ * BlobStore used only as a cache, so normally wraps a NullBlobStore, eg
+ * WeightedCachingBlobStore, OffHeapCachingBlobStore or SimpleFileDbBlobStore
+ * (with cacheOnSet). The size of each tier is set when it is created.
+ *
+ * Lookups go to each tier in turn, then the origin. A blob found in a lower
+ * tier is promoted to the tiers above it, and one from the origin is added to
+ * the top tier. Tiers which report evictions (EvictingBlobStore) pass evicted
+ * blobs down to the next tier, so a blob is normally only added to one tier
+ * at a time, and it is invalidated in the tier it was promoted from, so it
+ * isn't cached twice. Invalidating only drops it from that tier's cache, never
+ * from a store the tier wraps.
+ * Tiers which can't report evictions can't demote, so blobs added to them are
+ * also added to the next tier.
+ *
+ * Each tier can have a maximum blob size, so that eg large blobs skip a small
+ * memory tier
+ *
+ * @author brad
+ */
+public class TieredBlobStore implements BlobStore {
+
+    private static final Logger log = LoggerFactory.getLogger(TieredBlobStore.class);
+
+    private final BlobStore origin;
+    private final List<Tier> tiers = new CopyOnWriteArrayList<>();
+    private boolean exclusive = true;
+
+    private final LongAdder originHits = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+
+    public TieredBlobStore(BlobStore origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * Add a tier below those already added
+     *
+     * @param name - for stats
+     * @param cache
+     * @param maxBlobSize - larger blobs bypass this tier, zero for no limit
+     * @return this
+     */
+    public TieredBlobStore addTier(String name, BlobStore cache, long maxBlobSize) {
+        Tier tier = new Tier(name, cache, maxBlobSize);
+        int level = tiers.size();
+        if (cache instanceof EvictingBlobStore) {
+            ((EvictingBlobStore) cache).setEvictionListener((hash, bytes) -> demote(level, hash, bytes));
+        }
+        tiers.add(tier);
+        return this;
+    }
+
+    @Override
+    public void setBlob(String hash, byte[] bytes) {
+        origin.setBlob(hash, bytes);
+        insert(hash, bytes, 0, tiers.size());
+    }
+
+    @Override
+    public byte[] getBlob(String hash) {
+        for (int i = 0; i < tiers.size(); i++) {
+            Tier tier = tiers.get(i);
+            byte[] arr = tier.cache.getBlob(hash);
+            if (arr != null) {
+                tier.hits.increment();
+                if (i > 0) {
+                    promote(hash, arr, i);
+                }
+                return arr;
+            }
+        }
+        byte[] arr = origin.getBlob(hash);
+        if (arr == null) {
+            notFound.increment();
+            return null;
+        }
+        originHits.increment();
+        insert(hash, arr, 0, tiers.size());
+        return arr;
+    }
+
+    @Override
+    public boolean hasBlob(String hash) {
+        return getBlobLength(hash) >= 0;
+    }
+
+    /**
+     * Doesn't load the blob
+     */
+    @Override
+    public long getBlobLength(String hash) {
+        for (Tier tier : tiers) {
+            long length = tier.cache.getBlobLength(hash);
+            if (length >= 0) {
+                return length;
+            }
+        }
+        return origin.getBlobLength(hash);
+    }
+
+    /**
+     * Stats of each tier, prefixed by its name, and of the origin
+     *
+     * @return
+     */
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long tierHits = 0;
+        for (Tier tier : tiers) {
+            stats.put(tier.name + ".hits", tier.hits.sum());
+            stats.put(tier.name + ".added", tier.added.sum());
+            stats.put(tier.name + ".promoted", tier.promoted.sum());
+            stats.put(tier.name + ".demoted", tier.demoted.sum());
+            stats.put(tier.name + ".bypassed", tier.bypassed.sum());
+            tierHits += tier.hits.sum();
+        }
+        stats.put("origin.hits", originHits.sum());
+        stats.put("notFound", notFound.sum());
+        long total = tierHits + originHits.sum();
+        if (total > 0) {
+            stats.put("hitRatio", (double) tierHits / total);
+        }
+        return stats;
+    }
+
+    public boolean isExclusive() {
+        return exclusive;
+    }
+
+    /**
+     * If true (the default) a blob promoted from a tier which reports
+     * evictions is invalidated in that tier
+     *
+     * @param exclusive
+     */
+    public void setExclusive(boolean exclusive) {
+        this.exclusive = exclusive;
+    }
+
+    public BlobStore getOrigin() {
+        return origin;
+    }
+
+    public List<String> getTierNames() {
+        List<String> names = new ArrayList<>();
+        for (Tier tier : tiers) {
+            names.add(tier.name);
+        }
+        return names;
+    }
+
+    /**
+     * Add to the first tier from the given one which accepts the blob's size,
+     * and to the ones after it until one which can demote
+     *
+     * @return true if added to any tier
+     */
+    private boolean insert(String hash, byte[] bytes, int from, int to) {
+        boolean added = false;
+        for (int i = from; i < to; i++) {
+            Tier tier = tiers.get(i);
+            if (tier.maxBlobSize > 0 && bytes.length > tier.maxBlobSize) {
+                tier.bypassed.increment();
+                continue;
+            }
+            tier.cache.setBlob(hash, bytes);
+            tier.added.increment();
+            added = true;
+            if (tier.cache instanceof EvictingBlobStore) {
+                break;
+            }
+        }
+        return added;
+    }
+
+    private void promote(String hash, byte[] bytes, int foundIn) {
+        boolean fits = false;
+        for (int i = 0; i < foundIn && !fits; i++) {
+            long max = tiers.get(i).maxBlobSize;
+            fits = max <= 0 || bytes.length <= max;
+        }
+        if (!fits) {
+            return;
+        }
+        // removed first, because if a higher tier doesn't keep it, it is demoted back
+        Tier from = tiers.get(foundIn);
+        if (exclusive && from.cache instanceof EvictingBlobStore) {
+            ((EvictingBlobStore) from.cache).invalidate(hash);
+        }
+        insert(hash, bytes, 0, foundIn);
+        from.promoted.increment();
+    }
+
+    private void demote(int level, String hash, byte[] bytes) {
+        if (level + 1 >= tiers.size()) {
+            return; // dropped from the last tier
+        }
+        if (insert(hash, bytes, level + 1, tiers.size())) {
+            tiers.get(level).demoted.increment();
+        } else {
+            log.debug("demote: no tier below {} accepts {}", tiers.get(level).name, hash);
+        }
+    }
+
+    private static class Tier {
+
+        private final String name;
+        private final BlobStore cache;
+        private final long maxBlobSize;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder added = new LongAdder();
+        private final LongAdder promoted = new LongAdder(); // from this tier to a higher one
+        private final LongAdder demoted = new LongAdder(); // from this tier to a lower one
+        private final LongAdder bypassed = new LongAdder();
+
+        Tier(String name, BlobStore cache, long maxBlobSize) {
+            this.name = name;
+            this.cache = cache;
+            this.maxBlobSize = maxBlobSize;
+        }
+    }
+}
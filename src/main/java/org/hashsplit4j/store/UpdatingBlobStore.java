@@ -1,29 +1,44 @@
 package org.hashsplit4j.store;
 
 import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.HashCache;
 
 /**
+ * Only sends blobs which the remote doesn't already have. If a HashCache is
+ * given, hashes known to be on the remote aren't checked again
  *
  * @author brad
  */
 public class UpdatingBlobStore implements BlobStore{
 
     private final BlobStore remoteBlobStore;
+    private final HashCache hashCache;
 
     public UpdatingBlobStore(BlobStore remoteBlobStore) {
+        this(remoteBlobStore, null);
+    }
+
+    public UpdatingBlobStore(BlobStore remoteBlobStore, HashCache hashCache) {
         this.remoteBlobStore = remoteBlobStore;
+        this.hashCache = hashCache;
     }
     
     
     
     @Override
     public void setBlob(String hash, byte[] bytes) {
+        if( hashCache != null && hashCache.hasHash(hash)) {
+            return;
+        }
         if( !remoteBlobStore.hasBlob(hash) ) {
             //System.out.println("Remote does not have blob: " + hash);
             remoteBlobStore.setBlob(hash, bytes);
         } else {
             //System.out.println("Found existing blob: " + hash);
         }    
+        if( hashCache != null ) {
+            hashCache.setHash(hash);
+        }
     }
 
     @Override
@@ -33,7 +48,23 @@ public class UpdatingBlobStore implements BlobStore{
 
     @Override
     public boolean hasBlob(String hash) {
-        return remoteBlobStore.hasBlob(hash);
+        if( hashCache != null && hashCache.hasHash(hash)) {
+            return true;
+        }
+        boolean b = remoteBlobStore.hasBlob(hash);
+        if( b && hashCache != null ) {
+            hashCache.setHash(hash);
+        }
+        return b;
+    }
+
+    @Override
+    public long getBlobLength(String hash) {
+        return remoteBlobStore.getBlobLength(hash);
+    }
+
+    public HashCache getHashCache() {
+        return hashCache;
     }
     
     
@@ -2,28 +2,46 @@ package org.hashsplit4j.store;
 
 import java.util.List;
 import org.hashsplit4j.api.Fanout;
+import org.hashsplit4j.api.HashCache;
 import org.hashsplit4j.api.HashStore;
 
 /**
+ * Only sends fanouts which the remote doesn't already have. If HashCaches are
+ * given, hashes known to be on the remote aren't checked again. Chunk and file
+ * fanouts can have the same hash, so need separate caches
  *
  * @author brad
  */
 public class UpdatingHashStore implements HashStore{
 
     private final HashStore remoteHashStore;
+    private final HashCache chunkCache;
+    private final HashCache fileCache;
 
     public UpdatingHashStore(HashStore remoteHashStore) {
+        this(remoteHashStore, null, null);
+    }
+
+    public UpdatingHashStore(HashStore remoteHashStore, HashCache chunkCache, HashCache fileCache) {
         this.remoteHashStore = remoteHashStore;
+        this.chunkCache = chunkCache;
+        this.fileCache = fileCache;
     }
         
     
     @Override
     public void setChunkFanout(String hash, List<String> childCrcs, long actualContentLength) {
+        if( chunkCache != null && chunkCache.hasHash(hash)) {
+            return;
+        }
         if( !remoteHashStore.hasChunk(hash) ) {
             remoteHashStore.setChunkFanout(hash, childCrcs, actualContentLength);
         } else {
             //System.out.println("Remote has existing fanout: " + hash);
         }
+        if( chunkCache != null ) {
+            chunkCache.setHash(hash);
+        }
     }
 
     @Override
@@ -33,14 +51,27 @@ public class UpdatingHashStore implements HashStore{
 
     @Override
     public boolean hasChunk(String fanoutHash) {
-        return remoteHashStore.hasChunk(fanoutHash);
+        if( chunkCache != null && chunkCache.hasHash(fanoutHash)) {
+            return true;
+        }
+        boolean b = remoteHashStore.hasChunk(fanoutHash);
+        if( b && chunkCache != null ) {
+            chunkCache.setHash(fanoutHash);
+        }
+        return b;
     }
 
     @Override
     public void setFileFanout(String hash, List<String> fanoutHashes, long actualContentLength) {
+        if( fileCache != null && fileCache.hasHash(hash)) {
+            return;
+        }
         if( !remoteHashStore.hasFile(hash)) {
             remoteHashStore.setFileFanout(hash, fanoutHashes, actualContentLength);
         }
+        if( fileCache != null ) {
+            fileCache.setHash(hash);
+        }
     }
 
     @Override
@@ -50,7 +81,14 @@ public class UpdatingHashStore implements HashStore{
 
     @Override
     public boolean hasFile(String fileHash) {
-        return remoteHashStore.hasFile(fileHash);
+        if( fileCache != null && fileCache.hasHash(fileHash)) {
+            return true;
+        }
+        boolean b = remoteHashStore.hasFile(fileHash);
+        if( b && fileCache != null ) {
+            fileCache.setHash(fileHash);
+        }
+        return b;
     }
 
 }
@@ -0,0 +1,500 @@
+package org.hashsplit4j.store;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.hashsplit4j.api.BlobStore;
+import org.hashsplit4j.api.DeletableBlobStore;
+import org.hashsplit4j.api.EvictingBlobStore;
+import org.hashsplit4j.cache.FrequencySketch;
+import org.hashsplit4j.cache.NegativeCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A BlobStore which caches blobs from a wrapped store in memory, limited by
+ * the total size of the blobs rather than their number.
+ *
+ * Uses the W-TinyLFU policy. New blobs go into a small LRU window (1% of the
+ * capacity). Blobs leaving the window are only admitted to the main area if
+ * they have been used more often recently than the blob they would replace,
+ * as estimated by a FrequencySketch, so a scan of many blobs which are used
+ * once only displaces other blobs in the window. The main area is a segmented
+ * LRU, where blobs hit while on probation move to the protected segment (80%
+ * of the main area).
+ *
+ * Lookups don't block: the cache is a ConcurrentHashMap and the access order
+ * is only updated if the policy lock is free, otherwise that access is not
+ * recorded in the order (it is still counted in the sketch). Adds and
+ * evictions hold the lock.
+ *
+ * Hashes which the wrapped store doesn't have are remembered for
+ * negativeTtlMillis, in a NegativeCache, so repeated lookups of missing
+ * blobs don't go to the wrapped store. setBlob through this store removes the
+ * hash from the negative cache, and a miss which raced with it isn't
+ * remembered
+ *
+ * The eviction listener is told of blobs which are evicted or not admitted
+ *
+ * @author brad
+ */
+public class WeightedCachingBlobStore implements EvictingBlobStore, DeletableBlobStore {
+
+    private static final Logger log = LoggerFactory.getLogger(WeightedCachingBlobStore.class);
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int REMOVED = 3;
+
+    private final BlobStore wrapped;
+    private final long maxBytes;
+    private final long windowMax;
+    private final long protectedMax;
+    private final FrequencySketch sketch;
+    private final ConcurrentHashMap<String, Node> map = new ConcurrentHashMap<>();
+    private final NegativeCache negative;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // only used while holding the lock
+    private final AccessQueue window = new AccessQueue();
+    private final AccessQueue probation = new AccessQueue();
+    private final AccessQueue protectedQueue = new AccessQueue();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private volatile EvictionListener evictionListener;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notFound = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     *
+     * @param wrapped
+     * @param maxBytes - total size of the blobs to cache
+     */
+    public WeightedCachingBlobStore(BlobStore wrapped, long maxBytes) {
+        this(wrapped, maxBytes, (int) Math.max(1024, Math.min(Integer.MAX_VALUE, maxBytes / (8 * 1024))), 10000);
+    }
+
+    /**
+     *
+     * @param wrapped
+     * @param maxBytes - total size of the blobs to cache
+     * @param expectedBlobs - roughly how many blobs fit in maxBytes, to size
+     * the frequency sketch
+     * @param negativeCapacity - maximum number of missing hashes to remember,
+     * zero to disable
+     */
+    public WeightedCachingBlobStore(BlobStore wrapped, long maxBytes, int expectedBlobs, int negativeCapacity) {
+        this.wrapped = wrapped;
+        this.maxBytes = maxBytes;
+        this.windowMax = Math.max(1, maxBytes / 100);
+        this.protectedMax = (maxBytes - windowMax) * 8 / 10;
+        this.sketch = new FrequencySketch(expectedBlobs);
+        this.negative = negativeCapacity > 0 ? new NegativeCache(negativeCapacity, 10000) : null;
+    }
+
+    @Override
+    public void setBlob(String hash, byte[] bytes) {
+        try {
+            wrapped.setBlob(hash, bytes);
+        } finally {
+            if (negative != null) {
+                negative.invalidate(hash);
+            }
+        }
+        sketch.increment(hash);
+        add(hash, bytes);
+    }
+
+    @Override
+    public byte[] getBlob(String hash) {
+        sketch.increment(hash);
+        Node node = map.get(hash);
+        if (node != null) {
+            hits.increment();
+            recordAccess(node);
+            return node.bytes;
+        }
+        if (isKnownMissing(hash)) {
+            return null;
+        }
+        long token = beginLookup();
+        byte[] arr = wrapped.getBlob(hash);
+        if (arr == null) {
+            notFound.increment();
+            rememberMissing(hash, token);
+            return null;
+        }
+        misses.increment();
+        add(hash, arr);
+        return arr;
+    }
+
+    @Override
+    public boolean hasBlob(String hash) {
+        return getBlobLength(hash) >= 0;
+    }
+
+    /**
+     * Doesn't load the blob if it isn't cached
+     */
+    @Override
+    public long getBlobLength(String hash) {
+        Node node = map.get(hash);
+        if (node != null) {
+            return node.bytes.length;
+        }
+        if (isKnownMissing(hash)) {
+            return -1;
+        }
+        long token = beginLookup();
+        long length = wrapped.getBlobLength(hash);
+        if (length < 0) {
+            rememberMissing(hash, token);
+        }
+        return length;
+    }
+
+    public Map<String, Object> getCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("notFound", notFound.sum());
+        stats.put("negativeHits", negativeHits.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("entries", map.size());
+        stats.put("bytes", getWeightedSize());
+        stats.put("maxBytes", maxBytes);
+        return stats;
+    }
+
+    /**
+     *
+     * @return total size of the cached blobs
+     */
+    public long getWeightedSize() {
+        lock.lock();
+        try {
+            return windowBytes + probationBytes + protectedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isCached(String hash) {
+        return map.containsKey(hash);
+    }
+
+    /**
+     * Remove the blob from the cache, without notifying the eviction
+     * listener
+     *
+     * @param hash
+     * @return true if it was cached
+     */
+    @Override
+    public boolean invalidate(String hash) {
+        lock.lock();
+        try {
+            Node node = map.remove(hash);
+            if (node != null) {
+                unlink(node);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove from the cache, and from the wrapped store if it supports that
+     */
+    @Override
+    public boolean deleteBlob(String hash) {
+        boolean removed = invalidate(hash);
+        if (wrapped instanceof DeletableBlobStore) {
+            removed |= ((DeletableBlobStore) wrapped).deleteBlob(hash);
+        }
+        return removed;
+    }
+
+    public long getNegativeTtlMillis() {
+        return negative == null ? 0 : negative.getTtlMillis();
+    }
+
+    /**
+     * How long a hash which the wrapped store doesn't have is remembered as
+     * missing. Content addressed blobs are usually only added, so this can be
+     * long if all adds go through this store
+     *
+     * @param negativeTtlMillis
+     */
+    public void setNegativeTtlMillis(long negativeTtlMillis) {
+        if (negative != null) {
+            negative.setTtlMillis(negativeTtlMillis);
+        }
+    }
+
+    public EvictionListener getEvictionListener() {
+        return evictionListener;
+    }
+
+    @Override
+    public void setEvictionListener(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    public BlobStore getWrapped() {
+        return wrapped;
+    }
+
+    private boolean isKnownMissing(String hash) {
+        if (negative == null || !negative.isMissing(hash)) {
+            return false;
+        }
+        negativeHits.increment();
+        return true;
+    }
+
+    private long beginLookup() {
+        return negative == null ? 0 : negative.beginLookup();
+    }
+
+    private void rememberMissing(String hash, long token) {
+        if (negative != null) {
+            negative.missing(hash, token);
+        }
+    }
+
+    private void recordAccess(Node node) {
+        // never wait, the order is only a hint
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            switch (node.queue) {
+                case WINDOW:
+                    window.moveToTail(node);
+                    break;
+                case PROBATION:
+                    probation.remove(node);
+                    probationBytes -= node.bytes.length;
+                    node.queue = PROTECTED;
+                    protectedQueue.add(node);
+                    protectedBytes += node.bytes.length;
+                    demoteProtected();
+                    break;
+                case PROTECTED:
+                    protectedQueue.moveToTail(node);
+                    break;
+                default:
+                    break; // removed since it was looked up
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(String hash, byte[] bytes) {
+        List<Node> evicted = new ArrayList<>();
+        if (bytes.length > maxBytes - windowMax) {
+            // would never be admitted
+            rejected.increment();
+            evicted.add(new Node(hash, bytes));
+            notifyEvicted(evicted);
+            return;
+        }
+        lock.lock();
+        try {
+            if (map.containsKey(hash)) {
+                return;
+            }
+            Node node = new Node(hash, bytes);
+            map.put(hash, node);
+            node.queue = WINDOW;
+            window.add(node);
+            windowBytes += bytes.length;
+            while (windowBytes > windowMax) {
+                Node candidate = window.poll();
+                windowBytes -= candidate.bytes.length;
+                admit(candidate, evicted);
+            }
+        } finally {
+            lock.unlock();
+        }
+        notifyEvicted(evicted);
+    }
+
+    // must not be called while holding the lock
+    private void notifyEvicted(List<Node> evicted) {
+        EvictionListener l = evictionListener;
+        if (l != null) {
+            for (Node n : evicted) {
+                try {
+                    l.onEvicted(n.key, n.bytes);
+                } catch (RuntimeException ex) {
+                    log.warn("notifyEvicted: eviction listener failed for {}", n.key, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * The candidate has left the window, so either it goes on probation in
+     * the main area, or is evicted. Victims are taken from the LRU end of
+     * probation, then protected, and only evicted if the candidate is used
+     * more often
+     */
+    private void admit(Node candidate, List<Node> evicted) {
+        long mainMax = maxBytes - windowMax;
+        int candidateFreq = sketch.frequency(candidate.key);
+        while (probationBytes + protectedBytes + candidate.bytes.length > mainMax) {
+            Node victim = probation.peek();
+            if (victim == null) {
+                victim = protectedQueue.peek();
+            }
+            if (victim == null) {
+                break;
+            }
+            if (candidateFreq <= sketch.frequency(victim.key)) {
+                rejected.increment();
+                evict(candidate, evicted);
+                return;
+            }
+            unlink(victim);
+            evict(victim, evicted);
+        }
+        candidate.queue = PROBATION;
+        probation.add(candidate);
+        probationBytes += candidate.bytes.length;
+    }
+
+    private void demoteProtected() {
+        while (protectedBytes > protectedMax) {
+            Node n = protectedQueue.poll();
+            protectedBytes -= n.bytes.length;
+            n.queue = PROBATION;
+            probation.add(n);
+            probationBytes += n.bytes.length;
+        }
+    }
+
+    // must only be called while holding the lock, with the node already unlinked
+    private void evict(Node node, List<Node> evicted) {
+        node.queue = REMOVED;
+        map.remove(node.key, node);
+        evictions.increment();
+        evicted.add(node);
+    }
+
+    // must only be called while holding the lock
+    private void unlink(Node node) {
+        switch (node.queue) {
+            case WINDOW:
+                window.remove(node);
+                windowBytes -= node.bytes.length;
+                break;
+            case PROBATION:
+                probation.remove(node);
+                probationBytes -= node.bytes.length;
+                break;
+            case PROTECTED:
+                protectedQueue.remove(node);
+                protectedBytes -= node.bytes.length;
+                break;
+            default:
+                return;
+        }
+        node.queue = REMOVED;
+    }
+
+    private static class Node {
+
+        private final String key;
+        private final byte[] bytes;
+        // only used while holding the lock
+        private int queue;
+        private Node prev;
+        private Node next;
+
+        Node(String key, byte[] bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Doubly linked list of nodes, least recently used at the head
+     */
+    private static class AccessQueue {
+
+        private Node head;
+        private Node tail;
+
+        void add(Node n) {
+            n.prev = tail;
+            n.next = null;
+            if (tail == null) {
+                head = n;
+            } else {
+                tail.next = n;
+            }
+            tail = n;
+        }
+
+        Node peek() {
+            return head;
+        }
+
+        Node poll() {
+            Node n = head;
+            if (n != null) {
+                remove(n);
+            }
+            return n;
+        }
+
+        void remove(Node n) {
+            if (n.prev == null) {
+                head = n.next;
+            } else {
+                n.prev.next = n.next;
+            }
+            if (n.next == null) {
+                tail = n.prev;
+            } else {
+                n.next.prev = n.prev;
+            }
+            n.prev = null;
+            n.next = null;
+        }
+
+        void moveToTail(Node n) {
+            if (tail != n) {
+                remove(n);
+                add(n);
+            }
+        }
+    }
+}
@@ -38,6 +38,8 @@ public class BerkeleyDbAccessor {
 
     private final PrimaryIndex<String, Blob> blobByIndex;
 
+    private final PrimaryIndex<String, BlobInfo> blobInfoByIndex;
+
     private final PrimaryIndex<String, HashGroup> groupByIndex;
 
     private final PrimaryIndex<String, SubGroup> subGroupByIndex;
@@ -60,6 +62,7 @@ public class BerkeleyDbAccessor {
     public BerkeleyDbAccessor(EntityStore store) throws DatabaseException {
         this.blobByIndex = store.getPrimaryIndex(String.class, Blob.class);
         this.blobBySubGroup = store.getSecondaryIndex(blobByIndex, String.class, SUBGROUP_SECONDARY_INDEX);
+        this.blobInfoByIndex = store.getPrimaryIndex(String.class, BlobInfo.class);
         this.groupByIndex = store.getPrimaryIndex(String.class, HashGroup.class);
         this.groupByStatus = store.getSecondaryIndex(groupByIndex, String.class, STATUS_SECONDARY_INDEX);
         this.subGroupByIndex = store.getPrimaryIndex(String.class, SubGroup.class);
@@ -79,6 +82,10 @@ public class BerkeleyDbAccessor {
         return blobByIndex;
     }
 
+    public PrimaryIndex<String, BlobInfo> getBlobInfoByIndex() {
+        return blobInfoByIndex;
+    }
+
     public SecondaryIndex<String, String, Blob> getBlobBySubGroup() {
         return blobBySubGroup;
     }
@@ -18,12 +18,17 @@ package org.hashsplit4j.store.berkeleyDbEnv;
 
 import java.io.File;
 
+import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.persist.EntityCursor;
 import com.sleepycat.persist.EntityStore;
+import com.sleepycat.persist.PrimaryIndex;
 import com.sleepycat.persist.StoreConfig;
 import java.util.Date;
+import java.util.stream.Stream;
+import org.hashsplit4j.utils.KeyStreams;
 
 public class BerkeleyDbEnv {
 
@@ -112,6 +117,29 @@ public class BerkeleyDbEnv {
         }
     }
 
+    /**
+     * Stream the primary keys of the given index in key order, using a key
+     * only cursor so entities are not loaded. The cursor is read committed so
+     * it doesn't hold locks on records already passed over, and is closed when
+     * the stream is closed
+     *
+     * @param index
+     * @param prefix - may be null
+     * @param afterKey - may be null
+     * @return stream of keys
+     */
+    public static Stream<String> keys(PrimaryIndex<String, ?> index, String prefix, String afterKey) {
+        String from = prefix;
+        boolean fromInclusive = true;
+        if (afterKey != null && (prefix == null || afterKey.compareTo(prefix) >= 0)) {
+            from = afterKey;
+            fromInclusive = false;
+        }
+        String to = KeyStreams.upperBound(prefix);
+        EntityCursor<String> cursor = index.keys(null, from, fromInclusive, to, false, CursorConfig.READ_COMMITTED);
+        return KeyStreams.fromSortedIterator(cursor.iterator(), cursor::close);
+    }
+
     /**
      * Remove Berkeley DB File
      *
@@ -56,6 +56,10 @@ public class BerkeleyHashDbAccessor {
         return hashByIndex.contains(hash);
     }
 
+    public boolean deleteFromHashByIndex(String hash) {
+        return hashByIndex.delete(hash);
+    }
+
     public SecondaryIndex<String, String, Hash> getHashBySubGroup() {
         return hashBySubGroup;
     }
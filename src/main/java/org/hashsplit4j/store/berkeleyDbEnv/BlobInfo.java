@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) McEvoy Software Ltd
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hashsplit4j.store.berkeleyDbEnv;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+/**
+ * Metadata about a blob, stored separately from the Blob entity so that it
+ * can be looked up without reading the blob's bytes
+ *
+ * @author brad
+ */
+@Entity
+public class BlobInfo {
+
+    @PrimaryKey
+    private String hash;
+
+    private long length;
+
+    private BlobInfo() {
+    }
+
+    public BlobInfo(String hash, long length) {
+        this.hash = hash;
+        this.length = length;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public long getLength() {
+        return length;
+    }
+}
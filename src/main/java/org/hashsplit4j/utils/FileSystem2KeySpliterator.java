@@ -0,0 +1,173 @@
+package org.hashsplit4j.utils;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Walks a directory tree laid out by FileSystem2Utils, giving the hashes of
+ * the files it contains in key order.
+ *
+ * Directories are only listed as they are reached, and directories which
+ * cannot contain keys in the requested range are not listed at all. The
+ * spliterator splits on directory boundaries, so a parallel stream walks
+ * different parts of the tree on different threads
+ *
+ * @author brad
+ */
+public class FileSystem2KeySpliterator implements Spliterator<String> {
+
+    private final int splitLength;
+    private final String prefix;
+    private final String afterKey;
+    private final Deque<Node> pending;
+
+    /**
+     *
+     * @param dir - the directory to walk, ie the root with any dir prefix
+     * applied
+     * @param splitLength - the length of each directory name, see
+     * FileSystem2Utils
+     * @param prefix - may be null
+     * @param afterKey - may be null
+     */
+    public FileSystem2KeySpliterator(File dir, int splitLength, String prefix, String afterKey) {
+        this.splitLength = splitLength;
+        this.prefix = prefix;
+        this.afterKey = afterKey;
+        this.pending = new ArrayDeque<>();
+        if (dir.isDirectory()) {
+            pending.add(new Node(dir, "", true));
+        }
+    }
+
+    private FileSystem2KeySpliterator(int splitLength, String prefix, String afterKey, Deque<Node> pending) {
+        this.splitLength = splitLength;
+        this.prefix = prefix;
+        this.afterKey = afterKey;
+        this.pending = pending;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super String> action) {
+        Node n = pending.pollFirst();
+        while (n != null) {
+            if (n.dir) {
+                expand(n);
+            } else {
+                action.accept(n.path);
+                return true;
+            }
+            n = pending.pollFirst();
+        }
+        return false;
+    }
+
+    @Override
+    public Spliterator<String> trySplit() {
+        // a single directory can't be split, so open it up until there are
+        // at least two things to share out
+        while (pending.size() == 1 && pending.peekFirst().dir) {
+            expand(pending.pollFirst());
+        }
+        int size = pending.size();
+        if (size < 2) {
+            return null;
+        }
+        // must give away the first half to preserve encounter order
+        Deque<Node> first = new ArrayDeque<>();
+        for (int i = 0; i < size / 2; i++) {
+            first.addLast(pending.pollFirst());
+        }
+        return new FileSystem2KeySpliterator(splitLength, prefix, afterKey, first);
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | NONNULL;
+    }
+
+    /**
+     * List the directory and push its children, in order, onto the front of
+     * the queue
+     */
+    private void expand(Node n) {
+        String[] names = n.file.list();
+        if (names == null) {
+            return;
+        }
+        // files are named by their full hash but directories by a fragment, so
+        // compare files on the part of the hash after this directory's path
+        Arrays.sort(names, Comparator.comparing(name -> relativeName(name, n.path)));
+        for (int i = names.length - 1; i >= 0; i--) {
+            String name = names[i];
+            File child = new File(n.file, name);
+            if (name.length() == splitLength && child.isDirectory()) {
+                String path = n.path + name;
+                if (dirInRange(path)) {
+                    pending.addFirst(new Node(child, path, true));
+                }
+            } else if (isKeyName(name, n.path) && KeyStreams.inRange(name, prefix, afterKey)) {
+                if (child.isFile()) {
+                    pending.addFirst(new Node(child, name, false));
+                }
+            }
+        }
+    }
+
+    private String relativeName(String name, String dirPath) {
+        if (name.length() > splitLength && name.startsWith(dirPath)) {
+            return name.substring(dirPath.length());
+        }
+        return name;
+    }
+
+    /**
+     * A file is only a key if its in the directory FileSystem2Utils would
+     * put it in, anything else is something else, eg a temp file
+     */
+    private boolean isKeyName(String name, String dirPath) {
+        return name.startsWith(dirPath) && name.length() - dirPath.length() <= splitLength;
+    }
+
+    /**
+     * Check if a directory, whose files all start with the given path, can
+     * contain any keys in range
+     */
+    private boolean dirInRange(String path) {
+        if (prefix != null) {
+            if (!(path.startsWith(prefix) || prefix.startsWith(path))) {
+                return false;
+            }
+        }
+        if (afterKey != null) {
+            String afterPath = afterKey.length() > path.length() ? afterKey.substring(0, path.length()) : afterKey;
+            if (path.compareTo(afterPath) < 0) {
+                return false; // every key in here is before afterKey
+            }
+        }
+        return true;
+    }
+
+    private static class Node {
+
+        private final File file;
+        private final String path; // concatenated dir names for a directory, or the hash for a file
+        private final boolean dir;
+
+        public Node(File file, String path, boolean dir) {
+            this.file = file;
+            this.path = path;
+            this.dir = dir;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package org.hashsplit4j.utils;
 
 import java.io.File;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import org.apache.commons.lang.StringUtils;
 
 /**
@@ -34,4 +36,19 @@ public class FileSystem2Utils {
         }
         return new File(f, name);
     }
+
+    /**
+     * Enumerate the hashes of files stored under the root with the given dir
+     * prefix, in key order
+     *
+     * @param root
+     * @param dirPrefix - may be null
+     * @param prefix - if not null only hashes starting with this are returned
+     * @param afterKey - if not null resume after this hash
+     * @return stream of hashes
+     */
+    public static Stream<String> keys(final File root, final String dirPrefix, String prefix, String afterKey) {
+        File dir = new File(root, (StringUtils.isNotEmpty(dirPrefix) ? dirPrefix : ""));
+        return StreamSupport.stream(new FileSystem2KeySpliterator(dir, DEFAULT_SPLIT, prefix, afterKey), false);
+    }
 }
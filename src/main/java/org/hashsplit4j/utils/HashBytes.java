@@ -0,0 +1,77 @@
+package org.hashsplit4j.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary form of hash strings. Lower case hex hashes, which is what
+ * hashsplit4j produces, are packed two characters per byte, so a SHA1 takes 21
+ * bytes rather than a 40 character String (~100 bytes on the heap). Anything
+ * else is kept as UTF-8 so any key can be encoded and decoded exactly
+ *
+ * The first byte is a flag saying which form follows
+ *
+ * @author brad
+ */
+public class HashBytes {
+
+    private static final byte HEX = 0;
+    private static final byte TEXT = 1;
+
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    public static byte[] encode(String hash) {
+        if (isHex(hash)) {
+            byte[] arr = new byte[1 + hash.length() / 2];
+            arr[0] = HEX;
+            for (int i = 0; i < hash.length(); i += 2) {
+                arr[1 + i / 2] = (byte) ((Character.digit(hash.charAt(i), 16) << 4) | Character.digit(hash.charAt(i + 1), 16));
+            }
+            return arr;
+        }
+        byte[] text = hash.getBytes(StandardCharsets.UTF_8);
+        byte[] arr = new byte[1 + text.length];
+        arr[0] = TEXT;
+        System.arraycopy(text, 0, arr, 1, text.length);
+        return arr;
+    }
+
+    /**
+     *
+     * @param arr
+     * @param off
+     * @param len - length of the encoded form, including the flag byte
+     * @return the original hash string
+     */
+    public static String decode(byte[] arr, int off, int len) {
+        if (arr[off] == HEX) {
+            char[] chars = new char[(len - 1) * 2];
+            for (int i = 0; i < len - 1; i++) {
+                int b = arr[off + 1 + i] & 0xff;
+                chars[i * 2] = HEX_CHARS[b >>> 4];
+                chars[i * 2 + 1] = HEX_CHARS[b & 0xf];
+            }
+            return new String(chars);
+        }
+        return new String(arr, off + 1, len - 1, StandardCharsets.UTF_8);
+    }
+
+    public static String decode(byte[] arr) {
+        return decode(arr, 0, arr.length);
+    }
+
+    /**
+     * Only even length lower case hex can be packed and restored exactly
+     */
+    private static boolean isHex(String s) {
+        if (s.isEmpty() || s.length() % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,92 @@
+package org.hashsplit4j.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Helpers for implementing KeyEnumerable and FanoutKeyEnumerable
+ *
+ * @author brad
+ */
+public class KeyStreams {
+
+    /**
+     * Checks if the key should be included in an enumeration with the given
+     * prefix and afterKey, assuming keys are enumerated in sorted order
+     *
+     * @param key
+     * @param prefix - may be null
+     * @param afterKey - may be null
+     * @return true if the key is in range
+     */
+    public static boolean inRange(String key, String prefix, String afterKey) {
+        if (prefix != null && !key.startsWith(prefix)) {
+            return false;
+        }
+        return afterKey == null || key.compareTo(afterKey) > 0;
+    }
+
+    /**
+     * Gives the smallest string which is greater than all strings starting
+     * with the prefix, for use as an exclusive upper bound of a range query.
+     * Assumes keys are ascii, which is the case for hex hashes
+     *
+     * @param prefix
+     * @return upper bound, or null if prefix is null
+     */
+    public static String upperBound(String prefix) {
+        if (prefix == null) {
+            return null;
+        }
+        return prefix + Character.MAX_VALUE;
+    }
+
+    /**
+     * Enumerate from an in-memory collection of keys by taking a sorted
+     * snapshot of those in range. This is for stores which hold all keys in
+     * memory anyway, but don't have a stable iteration order
+     *
+     * The collection must be safe to iterate, ie either not concurrently
+     * modified or a concurrent collection
+     *
+     * @param keys
+     * @param prefix
+     * @param afterKey
+     * @return sorted stream of keys
+     */
+    public static Stream<String> sortedSnapshot(Collection<String> keys, String prefix, String afterKey) {
+        List<String> list = new ArrayList<>();
+        for (String key : keys) {
+            if (inRange(key, prefix, afterKey)) {
+                list.add(key);
+            }
+        }
+        Collections.sort(list);
+        return list.stream();
+    }
+
+    /**
+     * Create a stream from an iterator over sorted keys, such as a database
+     * cursor
+     *
+     * @param it
+     * @param onClose - called when the stream is closed, eg to close the
+     * cursor. May be null
+     * @return stream of keys
+     */
+    public static Stream<String> fromSortedIterator(Iterator<String> it, Runnable onClose) {
+        Spliterator<String> spliterator = Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL);
+        Stream<String> stream = StreamSupport.stream(spliterator, false);
+        if (onClose != null) {
+            stream = stream.onClose(onClose);
+        }
+        return stream;
+    }
+}
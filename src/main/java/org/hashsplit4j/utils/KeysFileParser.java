@@ -0,0 +1,235 @@
+package org.hashsplit4j.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parses the keys file of a SimpleFileDb or IndexedSfdb, which has a line of
+ * key,start,finish for each value, optionally followed by ,crc where crc is
+ * the CRC32 of the value in hex.
+ *
+ * Lines are parsed directly from bytes, which is much faster than decoding
+ * and splitting a String for each line, and matters when a file has millions
+ * of keys
+ *
+ * @author brad
+ */
+public class KeysFileParser {
+
+    private static final Logger log = LoggerFactory.getLogger(KeysFileParser.class);
+
+    public interface Listener {
+
+        /**
+         *
+         * @param key
+         * @param start
+         * @param finish
+         * @param crc - checksum of the value, or -1 if the line doesn't have
+         * one
+         */
+        void onKey(String key, long start, long finish, long crc);
+    }
+
+    /**
+     * Checks each line before it is passed to the listener, eg that the value
+     * it refers to was completely written
+     */
+    public interface Validator {
+
+        boolean isValid(String key, long start, long finish, long crc) throws IOException;
+    }
+
+    private final Listener listener;
+    private Validator validator;
+    private int lines;
+    private int invalidLines;
+    private boolean torn;
+
+    public KeysFileParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * If set, lines which are not valid or malformed are logged and skipped,
+     * as is an unterminated last line, and if any of these come after the last
+     * valid line the file is torn, eg by a crash while appending. See isTorn.
+     * Without a validator malformed lines are skipped and an unterminated last
+     * line is parsed
+     *
+     * @param validator
+     */
+    public void setValidator(Validator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * Parse the file from the given offset, which must be the start of a line
+     *
+     * @param keysFile
+     * @param offset
+     * @return the offset of the end of the file, ie where parsing should
+     * continue from next time. If the file is torn, the end of the last valid
+     * line, which is where the file should be truncated to
+     * @throws IOException
+     */
+    public long parse(File keysFile, long offset) throws IOException {
+        try (FileInputStream fin = new FileInputStream(keysFile)) {
+            if (offset > 0) {
+                fin.getChannel().position(offset);
+            }
+            byte[] buf = new byte[256 * 1024];
+            byte[] line = new byte[256];
+            int len = 0;
+            long pos = offset;
+            long validEnd = offset;
+            int n;
+            while ((n = fin.read(buf)) > 0) {
+                long bufStart = pos;
+                pos += n;
+                for (int i = 0; i < n; i++) {
+                    byte b = buf[i];
+                    if (b == '\n') {
+                        if (parseLine(line, len)) {
+                            validEnd = bufStart + i + 1;
+                        }
+                        len = 0;
+                    } else {
+                        if (len == line.length) {
+                            line = Arrays.copyOf(line, len * 2);
+                        }
+                        line[len++] = b;
+                    }
+                }
+            }
+            if (len > 0) {
+                // last line wasn't terminated
+                if (validator == null) {
+                    parseLine(line, len);
+                } else {
+                    log.info("Unterminated last line: {}", new String(line, 0, len, StandardCharsets.UTF_8));
+                    invalidLines++;
+                }
+            }
+            if (validator != null && validEnd < pos) {
+                torn = true;
+                return validEnd;
+            }
+            return pos;
+        }
+    }
+
+    /**
+     *
+     * @return number of lines parsed so far
+     */
+    public int getLines() {
+        return lines;
+    }
+
+    /**
+     *
+     * @return number of lines skipped because they were malformed, invalid or
+     * not terminated
+     */
+    public int getInvalidLines() {
+        return invalidLines;
+    }
+
+    /**
+     *
+     * @return true if there is a validator and the file ends with lines which
+     * aren't valid
+     */
+    public boolean isTorn() {
+        return torn;
+    }
+
+    /**
+     * @return false if the line was skipped
+     */
+    private boolean parseLine(byte[] line, int len) throws IOException {
+        if (len > 0 && line[len - 1] == '\r') {
+            len--;
+        }
+        int c1 = indexOf(line, 0, len);
+        int c2 = c1 < 0 ? -1 : indexOf(line, c1 + 1, len);
+        int c3 = c2 < 0 ? -1 : indexOf(line, c2 + 1, len);
+        if (c2 < 0 || (c3 >= 0 && indexOf(line, c3 + 1, len) >= 0)) {
+            return invalid(line, len);
+        }
+        String key = new String(line, 0, c1, StandardCharsets.UTF_8);
+        long start;
+        long finish;
+        long crc = -1;
+        try {
+            start = parseLong(line, c1 + 1, c2);
+            if (c3 < 0) {
+                finish = parseLong(line, c2 + 1, len);
+            } else {
+                finish = parseLong(line, c2 + 1, c3);
+                crc = parseHex(line, c3 + 1, len);
+            }
+        } catch (NumberFormatException ex) {
+            return invalid(line, len);
+        }
+        if (validator != null && !validator.isValid(key, start, finish, crc)) {
+            log.info("Invalid record: {}", new String(line, 0, len, StandardCharsets.UTF_8));
+            invalidLines++;
+            return false;
+        }
+        lines++;
+        listener.onKey(key, start, finish, crc);
+        return true;
+    }
+
+    private boolean invalid(byte[] line, int len) {
+        log.info("Invalid line: {}", new String(line, 0, len, StandardCharsets.UTF_8));
+        invalidLines++;
+        return false;
+    }
+
+    private static int indexOf(byte[] line, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line[i] == ',') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseLong(byte[] line, int from, int to) {
+        if (from >= to) {
+            throw new NumberFormatException("Empty number");
+        }
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = line[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException("For input string: " + new String(line, from, to - from, StandardCharsets.UTF_8));
+            }
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private static long parseHex(byte[] line, int from, int to) {
+        if (from >= to || to - from > 8) {
+            throw new NumberFormatException("Invalid checksum");
+        }
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = Character.digit(line[i], 16);
+            if (d < 0) {
+                throw new NumberFormatException("For input string: " + new String(line, from, to - from, StandardCharsets.UTF_8));
+            }
+            v = (v << 4) | d;
+        }
+        return v;
+    }
+}
@@ -0,0 +1,186 @@
+package org.hashsplit4j.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long to int, using two primitive arrays so
+ * entries cost 12 bytes rather than the ~80 bytes of a HashMap entry with
+ * boxed keys and values.
+ *
+ * Zero is used to mark an empty slot, so a zero key is stored as 1. That
+ * merges the counts for two keys, which callers must tolerate. Not thread
+ * safe
+ *
+ * @author brad
+ */
+public class LongIntHashMap {
+
+    public static final int NOT_FOUND = Integer.MIN_VALUE;
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public LongIntHashMap(int initialCapacity) {
+        int cap = Integer.highestOneBit(Math.max(16, (int) (initialCapacity / LOAD_FACTOR)) - 1) << 1;
+        allocate(cap);
+    }
+
+    private void allocate(int cap) {
+        keys = new long[cap];
+        values = new int[cap];
+        mask = cap - 1;
+        resizeAt = (int) (cap * LOAD_FACTOR);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(long key) {
+        key = fixKey(key);
+        int i = slot(key);
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return NOT_FOUND;
+    }
+
+    public void put(long key, int value) {
+        key = fixKey(key);
+        int i = slot(key);
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeAt) {
+            rehash();
+        }
+    }
+
+    /**
+     * Add delta to the value for key, treating a missing key as zero
+     *
+     * @return the new value
+     */
+    public int add(long key, int delta) {
+        int v = get(key);
+        int newVal = (v == NOT_FOUND ? 0 : v) + delta;
+        put(key, newVal);
+        return newVal;
+    }
+
+    public void remove(long key) {
+        key = fixKey(key);
+        int i = slot(key);
+        while (keys[i] != 0) {
+            if (keys[i] == key) {
+                shiftBack(i);
+                size--;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Remove every entry with the given value, without allocating
+     *
+     * @param value
+     * @return number of entries removed
+     */
+    public int removeValue(int value) {
+        int removed = 0;
+        int i = 0;
+        while (i < keys.length) {
+            if (keys[i] != 0 && values[i] == value) {
+                // a later entry may be shifted into this slot, so check it again. Entries
+                // are only shifted back into a slot already visited if they were visited
+                shiftBack(i);
+                size--;
+                removed++;
+            } else {
+                i++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove the entry at slot gap, moving later entries in the same probe
+     * run back so lookups don't stop early at the gap
+     */
+    private void shiftBack(int gap) {
+        int i = gap;
+        while (true) {
+            i = (i + 1) & mask;
+            long k = keys[i];
+            if (k == 0) {
+                break;
+            }
+            int home = slot(k);
+            // move k into the gap if its home slot is not between gap and i (cyclically)
+            boolean move = gap <= i ? (home <= gap || home > i) : (home <= gap && home > i);
+            if (move) {
+                keys[gap] = k;
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = 0;
+    }
+
+    public interface Visitor {
+
+        void visit(long key, int value);
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private int slot(long key) {
+        // keys are usually already hash derived, but mix anyway in case they aren't
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static long fixKey(long key) {
+        return key == 0 ? 1 : key;
+    }
+}
@@ -0,0 +1,64 @@
+package org.hashsplit4j.cache;
+
+import java.io.File;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class CuckooFilterTest {
+
+    @Test
+    public void testMembershipDeleteAndSnapshot() throws Exception {
+        CuckooFilter filter = new CuckooFilter(100000);
+        for (int i = 0; i < 100000; i++) {
+            Assert.assertTrue(filter.put("key" + i));
+        }
+        Assert.assertFalse(filter.isOverflowed());
+        for (int i = 0; i < 100000; i++) {
+            Assert.assertTrue(filter.mightContain("key" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("false positives: " + falsePositives, falsePositives < 100);
+
+        // put twice, so still present after one delete
+        filter.put("key1");
+        Assert.assertTrue(filter.delete("key1"));
+        Assert.assertTrue(filter.mightContain("key1"));
+        for (int i = 0; i < 50000; i++) {
+            Assert.assertTrue(filter.delete("key" + i));
+        }
+        Assert.assertEquals(50000, filter.size());
+
+        File file = File.createTempFile("cuckoo", ".snapshot");
+        try {
+            CuckooFilter.writeSnapshot(file, filter);
+            CuckooFilter loaded = CuckooFilter.readSnapshot(file, 1)[0];
+            Assert.assertEquals(50000, loaded.size());
+            for (int i = 50000; i < 100000; i++) {
+                Assert.assertTrue(loaded.mightContain("key" + i));
+            }
+            Assert.assertNull(CuckooFilter.readSnapshot(file, 2));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testOverflowSaysYes() {
+        CuckooFilter filter = new CuckooFilter(10);
+        int i = 0;
+        while (filter.put("key" + i)) {
+            i++;
+        }
+        Assert.assertTrue(filter.isOverflowed());
+        Assert.assertTrue(filter.mightContain("anything"));
+    }
+}
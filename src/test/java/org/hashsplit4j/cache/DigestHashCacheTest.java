@@ -0,0 +1,74 @@
+package org.hashsplit4j.cache;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hashsplit4j.store.MemoryBlobStore;
+import org.hashsplit4j.store.UpdatingBlobStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class DigestHashCacheTest {
+
+    @Test
+    public void testHashesAndPersistence() throws Exception {
+        File file = File.createTempFile("hashcache", ".dat");
+        file.delete();
+        try {
+            DigestHashCache cache = new DigestHashCache(16, DigestHashCache.SHA1_KEY_BYTES, file);
+            for (int i = 0; i < 10000; i++) {
+                cache.setHash(sha1(i));
+            }
+            cache.setHash(sha1(5)); // already there
+            cache.setHash("not-hex");
+            Assert.assertEquals(10001, cache.size());
+            for (int i = 0; i < 10000; i++) {
+                Assert.assertTrue(cache.hasHash(sha1(i)));
+                Assert.assertFalse(cache.hasHash(sha1(i + 10000)));
+            }
+            Assert.assertTrue(cache.hasHash("not-hex"));
+            Assert.assertFalse(cache.hasHash("not-he"));
+
+            // too long to remember, which is safe
+            String sha256 = sha1(1) + sha1(2).substring(0, 24);
+            cache.setHash(sha256);
+            Assert.assertFalse(cache.hasHash(sha256));
+
+            cache.save();
+            DigestHashCache loaded = new DigestHashCache(16, DigestHashCache.SHA1_KEY_BYTES, file);
+            Assert.assertEquals(10001, loaded.size());
+            Assert.assertTrue(loaded.hasHash(sha1(9999)));
+            Assert.assertFalse(loaded.hasHash(sha1(10000)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testUpdatingBlobStoreSkipsKnownHashes() {
+        final AtomicInteger checks = new AtomicInteger();
+        MemoryBlobStore remote = new MemoryBlobStore() {
+            @Override
+            public boolean hasBlob(String hash) {
+                checks.incrementAndGet();
+                return super.hasBlob(hash);
+            }
+        };
+        UpdatingBlobStore store = new UpdatingBlobStore(remote, new DigestHashCache(100));
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 10; i++) {
+                store.setBlob(sha1(i), new byte[1]);
+            }
+        }
+        Assert.assertEquals(10, checks.get());
+        Assert.assertTrue(store.hasBlob(sha1(3)));
+        Assert.assertEquals(10, checks.get());
+    }
+
+    private static String sha1(int i) {
+        return String.format("%040x", i * 2654435761L);
+    }
+}
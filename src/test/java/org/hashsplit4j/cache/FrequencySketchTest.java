@@ -0,0 +1,36 @@
+package org.hashsplit4j.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class FrequencySketchTest {
+
+    @Test
+    public void testFrequencyAndAging() {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        Assert.assertEquals(0, sketch.frequency("a"));
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("a");
+        }
+        sketch.increment("b");
+        Assert.assertEquals(5, sketch.frequency("a"));
+        Assert.assertEquals(1, sketch.frequency("b"));
+
+        // saturates
+        for (int i = 0; i < 20; i++) {
+            sketch.increment("c");
+        }
+        Assert.assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency("c"));
+
+        // enough other keys to trigger halving, so "a" fades
+        for (int i = 0; sketch.getResets() == 0; i++) {
+            sketch.increment("other" + i);
+        }
+        Assert.assertTrue(sketch.frequency("a") <= 3);
+        Assert.assertTrue(sketch.frequency("c") <= 8);
+    }
+}
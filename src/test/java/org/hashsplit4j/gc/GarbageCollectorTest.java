@@ -0,0 +1,81 @@
+package org.hashsplit4j.gc;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.commons.io.FileUtils;
+import org.hashsplit4j.store.MemoryBlobStore;
+import org.hashsplit4j.store.MemoryHashStore;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class GarbageCollectorTest {
+
+    private MemoryHashStore hashStore;
+    private MemoryBlobStore blobStore;
+
+    @Before
+    public void setUp() {
+        hashStore = new MemoryHashStore();
+        blobStore = new MemoryBlobStore();
+        // live file: f1 -> c1 -> b1, b2
+        blobStore.setBlob("b1", new byte[10]);
+        blobStore.setBlob("b2", new byte[10]);
+        hashStore.setChunkFanout("c1", Arrays.asList("b1", "b2"), 20);
+        hashStore.setFileFanout("f1", Arrays.asList("c1"), 20);
+        // dead file: f2 -> c2 -> b2, b3
+        blobStore.setBlob("b3", new byte[10]);
+        hashStore.setChunkFanout("c2", Arrays.asList("b2", "b3"), 20);
+        hashStore.setFileFanout("f2", Arrays.asList("c2"), 20);
+    }
+
+    @Test
+    public void testRun() {
+        GarbageCollector gc = new GarbageCollector(hashStore, blobStore, null);
+        gc.run(Collections.singletonList("f1"));
+
+        Assert.assertTrue(hashStore.hasFile("f1"));
+        Assert.assertTrue(hashStore.hasChunk("c1"));
+        Assert.assertTrue(blobStore.hasBlob("b1"));
+        Assert.assertTrue(blobStore.hasBlob("b2"));
+
+        Assert.assertFalse(hashStore.hasFile("f2"));
+        Assert.assertFalse(hashStore.hasChunk("c2"));
+        Assert.assertFalse(blobStore.hasBlob("b3"));
+        Assert.assertEquals(GarbageCollector.Phase.DONE, gc.getPhase());
+    }
+
+    @Test
+    public void testIncrementalResume() throws Exception {
+        File dir = Files.createTempDirectory("gc").toFile();
+        try {
+            File stateFile = new File(dir, "gc.properties");
+            GarbageCollector gc = new GarbageCollector(hashStore, blobStore, stateFile);
+            gc.setMaxItemsPerRun(1);
+            gc.mark(Collections.singletonList("f1"));
+            Assert.assertFalse(gc.sweep());
+            Assert.assertEquals(GarbageCollector.Phase.SWEEP_FILES, gc.getPhase());
+            Assert.assertEquals("f1", gc.getLastKey());
+
+            // a new instance carries on from the saved state
+            GarbageCollector gc2 = new GarbageCollector(hashStore, blobStore, stateFile);
+            Assert.assertTrue(gc2.isInProgress());
+            Assert.assertEquals("f1", gc2.getLastKey());
+            gc2.markLive("b3"); // eg written since marking
+            while (!gc2.sweep()) {
+            }
+            Assert.assertFalse(hashStore.hasFile("f2"));
+            Assert.assertFalse(hashStore.hasChunk("c2"));
+            Assert.assertTrue(blobStore.hasBlob("b3"));
+            Assert.assertTrue(blobStore.hasBlob("b1"));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.hashsplit4j.sfdb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class IndexedSfdbTest {
+
+    @Test
+    public void testPutGetAndReopen() throws Exception {
+        File dir = Files.createTempDirectory("sfdb").toFile();
+        File indexFile = new File(dir, "index");
+        File keysFile = new File(dir, "keys");
+        File valuesFile = new File(dir, "values");
+        try {
+            // sized for only a few keys, so it must overflow and rehash
+            HashIndex index = new HashIndex(indexFile, 10, false);
+            IndexedSfdb db = new IndexedSfdb("db1", index, keysFile, valuesFile);
+            db.init();
+            for (int i = 0; i < 2000; i++) {
+                db.put("key" + i, ("value" + i).getBytes());
+            }
+            Assert.assertEquals(2000, db.size());
+            Assert.assertTrue(index.getNumBuckets() > 1);
+            Assert.assertEquals("value1234", new String(db.get("key1234")));
+            Assert.assertEquals(6, db.getLength("key0"));
+            Assert.assertNull(db.get("notthere"));
+            try {
+                db.put("key5", "again".getBytes());
+                Assert.fail("Duplicate keys are not allowed");
+            } catch (RuntimeException ex) {
+                // expected
+            }
+            db.close();
+
+            // closed cleanly, so nothing to parse
+            IndexedSfdb db2 = new IndexedSfdb("db1", new HashIndex(indexFile, 10, false), keysFile, valuesFile);
+            db2.init();
+            Assert.assertEquals(2000, db2.size());
+            Assert.assertEquals("value1999", new String(db2.get("key1999")));
+            db2.put("more", "more".getBytes());
+
+            // not closed, so the index is rebuilt from the keys file
+            IndexedSfdb db3 = new IndexedSfdb("db1", new HashIndex(indexFile, 10, false), keysFile, valuesFile);
+            db3.init();
+            Assert.assertEquals(2001, db3.size());
+            Assert.assertEquals("more", new String(db3.get("more")));
+            Assert.assertEquals("value7", new String(db3.get("key7")));
+            db3.close();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testReadsRacingClose() throws Exception {
+        File dir = Files.createTempDirectory("sfdb").toFile();
+        try {
+            IndexedSfdb db = new IndexedSfdb("db1", new HashIndex(new File(dir, "index"), 10, false), new File(dir, "keys"), new File(dir, "values"));
+            db.init();
+            db.put("a", "aaa".getBytes());
+            AtomicReference<String> error = new AtomicReference<>();
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread reader = new Thread(() -> {
+                while (running.get()) {
+                    try {
+                        db.getLength("a");
+                        db.contains("a");
+                        db.size();
+                    } catch (Exception ex) {
+                        error.set(ex.toString());
+                    }
+                }
+            });
+            reader.start();
+            for (int i = 0; i < 200; i++) {
+                db.close();
+                db.init();
+            }
+            running.set(false);
+            reader.join();
+            Assert.assertNull(error.get());
+            Assert.assertEquals(3, db.getLength("a"));
+            db.close();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testTornTail() throws Exception {
+        File dir = Files.createTempDirectory("sfdb").toFile();
+        File indexFile = new File(dir, "index");
+        File keysFile = new File(dir, "keys");
+        File valuesFile = new File(dir, "values");
+        try {
+            IndexedSfdb db = new IndexedSfdb("db1", new HashIndex(indexFile, 10, false), keysFile, valuesFile);
+            db.init();
+            for (int i = 0; i < 10; i++) {
+                db.put("key" + i, ("value" + i).getBytes());
+            }
+            // not closed, and a put was interrupted
+            long keysLength = keysFile.length();
+            try (RandomAccessFile raf = new RandomAccessFile(keysFile, "rw")) {
+                raf.seek(raf.length());
+                raf.write("key10,60".getBytes());
+            }
+
+            IndexedSfdb db2 = new IndexedSfdb("db1", new HashIndex(indexFile, 10, false), keysFile, valuesFile);
+            db2.init();
+            Assert.assertEquals(10, db2.size());
+            Assert.assertFalse(db2.contains("key10"));
+            Assert.assertEquals(keysLength, keysFile.length());
+
+            // appends a complete line, so it survives a rebuild
+            db2.put("key10", "value10".getBytes());
+            IndexedSfdb db3 = new IndexedSfdb("db1", new HashIndex(indexFile, 10, false), keysFile, valuesFile);
+            db3.init();
+            Assert.assertEquals(11, db3.size());
+            Assert.assertEquals("value10", new String(db3.get("key10")));
+            Assert.assertEquals("value9", new String(db3.get("key9")));
+            db3.close();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
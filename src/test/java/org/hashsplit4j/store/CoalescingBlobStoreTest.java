@@ -0,0 +1,105 @@
+package org.hashsplit4j.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class CoalescingBlobStoreTest {
+
+    @Test
+    public void testConcurrentGetsShareOneCall() throws Exception {
+        final AtomicInteger backendCalls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        MemoryBlobStore mem = new MemoryBlobStore() {
+            @Override
+            public byte[] getBlob(String hash) {
+                backendCalls.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                return super.getBlob(hash);
+            }
+        };
+        mem.setBlob("a", new byte[5]);
+        final CoalescingBlobStore store = new CoalescingBlobStore(mem);
+
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(exec.submit(() -> store.getBlob("a")));
+            }
+            // wait until the other threads are waiting on the first
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((Long) store.getCacheStats().get("get.shared") < 7 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<byte[]> f : results) {
+                Assert.assertEquals(5, f.get().length);
+            }
+        } finally {
+            exec.shutdown();
+        }
+        Assert.assertEquals(1, backendCalls.get());
+
+        // not cached, so the next call goes to the backend
+        store.getBlob("a");
+        Assert.assertEquals(2, backendCalls.get());
+    }
+
+    @Test
+    public void testReadAfterSetSeesTheWrite() throws Exception {
+        final AtomicInteger backendCalls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        MemoryBlobStore mem = new MemoryBlobStore() {
+            @Override
+            public byte[] getBlob(String hash) {
+                byte[] b = super.getBlob(hash);
+                if (backendCalls.incrementAndGet() == 1) {
+                    // the first read has looked and is slow to return
+                    started.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+                return b;
+            }
+        };
+        final CoalescingBlobStore store = new CoalescingBlobStore(mem);
+
+        ExecutorService exec = Executors.newFixedThreadPool(2);
+        try {
+            Future<byte[]> before = exec.submit(() -> store.getBlob("b"));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            store.setBlob("b", new byte[3]);
+
+            // must not join the read which started before the write
+            Future<byte[]> after = exec.submit(() -> store.getBlob("b"));
+            byte[] b = after.get(2, TimeUnit.SECONDS);
+            Assert.assertNotNull(b);
+            Assert.assertEquals(3, b.length);
+            release.countDown();
+            Assert.assertNull(before.get());
+        } finally {
+            release.countDown();
+            exec.shutdown();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.hashsplit4j.store;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.hashsplit4j.api.Crypt;
+import org.hashsplit4j.api.Fanout;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class ConcurrentMemoryBlobStoreTest {
+
+    @Test
+    public void testParallelSetAndGet() {
+        // small slabs, so deleting triggers compaction
+        ConcurrentMemoryBlobStore store = new ConcurrentMemoryBlobStore(new SlabHashMap(4, 16 * 1024, 100 * 1024 * 1024, new AtomicLong()));
+        IntStream.range(0, 20000).parallel().forEach(i -> {
+            byte[] arr = blob(i);
+            store.setBlob(Crypt.toHexFromByte(arr), arr);
+        });
+        Assert.assertEquals(20000, store.size());
+        IntStream.range(0, 20000).parallel().forEach(i -> {
+            byte[] arr = blob(i);
+            String hash = Crypt.toHexFromByte(arr);
+            Assert.assertArrayEquals(arr, store.getBlob(hash));
+            Assert.assertEquals(arr.length, store.getBlobLength(hash));
+        });
+        Assert.assertNull(store.getBlob("notthere"));
+        Assert.assertEquals(-1, store.getBlobLength("0123"));
+
+        long usedBeforeDelete = store.getUsedBytes();
+
+        // delete most, which compacts, and check the rest are intact
+        for (int i = 0; i < 20000; i++) {
+            if (i % 10 != 0) {
+                Assert.assertTrue(store.deleteBlob(Crypt.toHexFromByte(blob(i))));
+            }
+        }
+        Assert.assertEquals(2000, store.size());
+        Assert.assertTrue(store.getUsedBytes() < usedBeforeDelete / 2);
+        for (int i = 0; i < 20000; i += 10) {
+            byte[] arr = blob(i);
+            Assert.assertArrayEquals(arr, store.getBlob(Crypt.toHexFromByte(arr)));
+        }
+        List<String> keys = store.keys(null, null).collect(Collectors.toList());
+        Assert.assertEquals(2000, keys.size());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testBudget() {
+        ConcurrentMemoryBlobStore store = new ConcurrentMemoryBlobStore(1000);
+        store.setBlob("aa", new byte[500]);
+        store.setBlob("bb", new byte[500]);
+    }
+
+    @Test
+    public void testBudgetCountsAllocatedSlabs() {
+        SlabHashMap map = new SlabHashMap(1, 16 * 1024, 2000, new AtomicLong());
+        long table = map.getUsedBytes();
+        Assert.assertTrue(map.putIfAbsent("aa", new byte[500]));
+        long afterFirst = map.getUsedBytes();
+        Assert.assertTrue(afterFirst - table >= 507); // the whole first slab, not just the entry
+        Assert.assertTrue(map.putIfAbsent("bb", new byte[500]));
+        Assert.assertEquals(afterFirst, map.getUsedBytes()); // fits in the same slab
+        try {
+            map.putIfAbsent("cc", new byte[500]);
+            Assert.fail("A new slab is over budget");
+        } catch (RuntimeException ex) {
+            Assert.assertEquals(afterFirst, map.getUsedBytes());
+        }
+
+        // removed entries still take space until their slab is compacted
+        Assert.assertTrue(map.remove("aa"));
+        Assert.assertEquals(afterFirst, map.getUsedBytes());
+    }
+
+    @Test
+    public void testHashStore() {
+        ConcurrentMemoryHashStore store = new ConcurrentMemoryHashStore(1024 * 1024);
+        List<String> hashes = Arrays.asList("36db9daa67c66d0217d8c8511e411dc90b882aff", "not-hex");
+        store.setChunkFanout("c1", hashes, 1234);
+        Fanout f = store.getChunkFanout("c1");
+        Assert.assertEquals(hashes, f.getHashes());
+        Assert.assertEquals(1234, f.getActualContentLength());
+        Assert.assertNull(store.getFileFanout("c1"));
+        Assert.assertTrue(store.deleteChunkFanout("c1"));
+        Assert.assertFalse(store.hasChunk("c1"));
+    }
+
+    private static byte[] blob(int i) {
+        byte[] arr = new byte[100 + (i % 300)];
+        Arrays.fill(arr, (byte) i);
+        arr[0] = (byte) (i >> 8);
+        arr[1] = (byte) (i >> 16);
+        return arr;
+    }
+}
@@ -0,0 +1,100 @@
+package org.hashsplit4j.store;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class CuckooFilterBlobStoreTest {
+
+    @Test
+    public void testFilterRebuildAndSnapshot() throws Exception {
+        MemoryBlobStore mem = new MemoryBlobStore();
+        for (int i = 0; i < 1000; i++) {
+            mem.setBlob("existing" + i, new byte[3]);
+        }
+        File snapshot = File.createTempFile("blobfilter", ".snapshot");
+        snapshot.delete();
+        try {
+            CuckooFilterBlobStore store = new CuckooFilterBlobStore(mem, 10000, snapshot);
+            store.init();
+            Assert.assertEquals(1000L, store.getCacheStats().get("keys"));
+
+            Assert.assertTrue(store.hasBlob("existing5"));
+            Assert.assertFalse(store.hasBlob("new1"));
+            store.setBlob("new1", new byte[4]);
+            Assert.assertEquals(4, store.getBlobLength("new1"));
+            Assert.assertTrue(store.deleteBlob("existing5"));
+            Assert.assertNull(store.getBlob("existing5"));
+            for (int i = 0; i < 1000; i++) {
+                store.hasBlob("missing" + i);
+            }
+            Assert.assertTrue((Long) store.getCacheStats().get("filtered") > 990);
+
+            store.close();
+            Assert.assertTrue(snapshot.exists());
+            store = new CuckooFilterBlobStore(mem, 10000, snapshot);
+            store.init();
+            Assert.assertFalse(snapshot.exists()); // only used once
+            Assert.assertEquals(1000L, store.getCacheStats().get("keys"));
+            Assert.assertTrue(store.hasBlob("new1"));
+            Assert.assertTrue(store.hasBlob("existing6"));
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void testSetAndDeleteRacing() throws Exception {
+        AtomicInteger backendHas = new AtomicInteger();
+        MemoryBlobStore mem = new MemoryBlobStore() {
+            @Override
+            public boolean hasBlob(String hash) {
+                backendHas.incrementAndGet();
+                return super.hasBlob(hash);
+            }
+        };
+        CuckooFilterBlobStore store = new CuckooFilterBlobStore(mem, 10000, null);
+        store.init();
+        ExecutorService exec = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 500; i++) {
+                String hash = "race" + i;
+                store.setBlob(hash, new byte[1]);
+                CountDownLatch go = new CountDownLatch(1);
+                Future<?> set = exec.submit(() -> {
+                    go.await();
+                    store.setBlob(hash, new byte[1]);
+                    return null;
+                });
+                Future<?> delete = exec.submit(() -> {
+                    go.await();
+                    store.deleteBlob(hash);
+                    return null;
+                });
+                go.countDown();
+                set.get();
+                delete.get();
+                // never a false negative, whichever won
+                if (mem.getBlob(hash) != null) {
+                    Assert.assertNotNull(store.getBlob(hash));
+                }
+            }
+        } finally {
+            exec.shutdown();
+        }
+        // rewriting a blob doesn't ask the wrapped store if it is there
+        backendHas.set(0);
+        store.setBlob("again", new byte[1]);
+        store.setBlob("again", new byte[1]);
+        Assert.assertEquals(0, backendHas.get());
+    }
+}
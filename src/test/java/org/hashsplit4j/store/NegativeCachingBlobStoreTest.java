@@ -0,0 +1,46 @@
+package org.hashsplit4j.store;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class NegativeCachingBlobStoreTest {
+
+    @Test
+    public void testMissesAreCachedUntilWritten() {
+        final AtomicInteger lookups = new AtomicInteger();
+        MemoryBlobStore mem = new MemoryBlobStore() {
+            @Override
+            public boolean hasBlob(String hash) {
+                lookups.incrementAndGet();
+                return super.hasBlob(hash);
+            }
+        };
+        NegativeCachingBlobStore store = new NegativeCachingBlobStore(mem, 100, 60000);
+        String hash = "0123456789abcdef0123456789abcdef01234567";
+        Assert.assertFalse(store.hasBlob(hash));
+        Assert.assertFalse(store.hasBlob(hash));
+        Assert.assertEquals(-1, store.getBlobLength(hash));
+        Assert.assertEquals(1, lookups.get());
+        Assert.assertNull(store.getBlob(hash));
+
+        store.setBlob(hash, new byte[10]);
+        Assert.assertTrue(store.hasBlob(hash));
+        Assert.assertEquals(10, store.getBlob(hash).length);
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        MemoryBlobStore mem = new MemoryBlobStore();
+        NegativeCachingBlobStore store = new NegativeCachingBlobStore(mem, 100, 20);
+        Assert.assertNull(store.getBlob("a"));
+        mem.setBlob("a", new byte[1]); // not seen by the cache
+        Assert.assertNull(store.getBlob("a"));
+        Thread.sleep(50);
+        Assert.assertNotNull(store.getBlob("a"));
+    }
+}
@@ -0,0 +1,78 @@
+package org.hashsplit4j.store;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class OffHeapCachingBlobStoreTest {
+
+    @Test
+    public void testCacheAndEvict() {
+        MemoryBlobStore wrapped = new MemoryBlobStore();
+        Random rnd = new Random(1);
+        byte[][] blobs = new byte[500][];
+        for (int i = 0; i < blobs.length; i++) {
+            blobs[i] = new byte[100 + rnd.nextInt(20000)];
+            rnd.nextBytes(blobs[i]);
+            wrapped.setBlob("hash" + i, blobs[i]);
+        }
+        long maxBytes = 2 * 1024 * 1024;
+        OffHeapCachingBlobStore store = new OffHeapCachingBlobStore(wrapped, maxBytes, 64 * 1024, 16 * 1024);
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < blobs.length; i++) {
+                Assert.assertArrayEquals(blobs[i], store.getBlob("hash" + i));
+                Assert.assertTrue(store.getAllocatedBytes() <= maxBytes);
+            }
+        }
+        Assert.assertTrue((Long) store.getCacheStats().get("evictions") > 0);
+        Assert.assertTrue((Long) store.getCacheStats().get("hits") > 0);
+        // larger than maxBlobSize, so not cached
+        Assert.assertTrue((Long) store.getCacheStats().get("rejected") > 0);
+
+        // whatever is still cached is intact, and lengths don't need the blob
+        int cached = 0;
+        for (int i = 0; i < blobs.length; i++) {
+            if (store.isCached("hash" + i)) {
+                cached++;
+                Assert.assertEquals(blobs[i].length, store.getBlobLength("hash" + i));
+                Assert.assertTrue(Arrays.equals(blobs[i], store.getBlob("hash" + i)));
+            }
+        }
+        Assert.assertEquals(cached, store.size());
+        Assert.assertTrue(cached > 50);
+        Assert.assertNull(store.getBlob("notthere"));
+        Assert.assertFalse(store.hasBlob("notthere"));
+    }
+
+    @Test
+    public void testMaxEntries() {
+        MemoryBlobStore wrapped = new MemoryBlobStore();
+        for (int i = 0; i < 3000; i++) {
+            wrapped.setBlob("hash" + i, ("blob" + i).getBytes());
+        }
+        OffHeapCachingBlobStore store = new OffHeapCachingBlobStore(wrapped, 8 * 1024 * 1024, 64 * 1024, 1024);
+        store.indexBufferSlots = 64; // so the index is split over many buffers
+        store.setMaxEntries(1000);
+
+        // the budget has room for all of them, but the index is capped
+        for (int i = 0; i < 3000; i++) {
+            Assert.assertEquals("blob" + i, new String(store.getBlob("hash" + i)));
+        }
+        Assert.assertEquals(1000, store.size());
+        Assert.assertTrue((Long) store.getCacheStats().get("evictions") >= 2000);
+        int cached = 0;
+        for (int i = 0; i < 3000; i++) {
+            if (store.isCached("hash" + i)) {
+                cached++;
+                Assert.assertEquals("blob" + i, new String(store.getBlob("hash" + i)));
+            }
+        }
+        Assert.assertEquals(1000, cached);
+    }
+}
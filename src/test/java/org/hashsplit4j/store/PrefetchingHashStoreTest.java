@@ -0,0 +1,75 @@
+package org.hashsplit4j.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class PrefetchingHashStoreTest {
+
+    @Test
+    public void testPrefetchAndCancel() throws Exception {
+        MemoryHashStore hashStore = new MemoryHashStore();
+        List<String> fanoutHashes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            List<String> blobHashes = new ArrayList<>();
+            for (int j = 0; j < 10; j++) {
+                blobHashes.add("blob" + i + "-" + j);
+            }
+            hashStore.setChunkFanout("fanout" + i, blobHashes, 1000);
+            fanoutHashes.add("fanout" + i);
+        }
+        hashStore.setFileFanout("file1", fanoutHashes, 3000);
+        hashStore.setFileFanout("file2", fanoutHashes, 3000);
+
+        final AtomicInteger gets = new AtomicInteger();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        MemoryBlobStore blobStore = new MemoryBlobStore() {
+            @Override
+            public byte[] getBlob(String hash) {
+                if (gets.incrementAndGet() == 17) {
+                    // the first blob of the second file
+                    blocked.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+                return super.getBlob(hash);
+            }
+        };
+        PrefetchingHashStore store = new PrefetchingHashStore(hashStore, blobStore, 1, 10);
+        try {
+            Assert.assertNotNull(store.getFileFanout("file1"));
+            waitForPrefetches(store);
+            Assert.assertEquals(3L, store.getCacheStats().get("chunkFanouts"));
+            Assert.assertEquals(16, gets.get()); // 8 from each of the first 2 fanouts
+
+            store.getFileFanout("file2");
+            Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(store.cancel("file2"));
+            release.countDown();
+            waitForPrefetches(store);
+            Assert.assertEquals(17, gets.get());
+            Assert.assertFalse(store.cancel("file2"));
+        } finally {
+            store.shutdown();
+        }
+    }
+
+    private void waitForPrefetches(PrefetchingHashStore store) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((Integer) store.getCacheStats().get("inProgress") > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.hashsplit4j.store;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.apache.commons.io.FileUtils;
+import org.hashsplit4j.gc.RefCountIndex;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class RefCountingHashStoreTest {
+
+    private File dir;
+    private MemoryHashStore hashStore;
+    private MemoryBlobStore blobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("refcounts").toFile();
+        hashStore = new MemoryHashStore();
+        blobStore = new MemoryBlobStore();
+        blobStore.setBlob("b1", new byte[10]);
+        blobStore.setBlob("b2", new byte[10]);
+        blobStore.setBlob("b3", new byte[10]);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testDeleteFile() throws Exception {
+        RefCountIndex index = new RefCountIndex(dir);
+        index.init();
+        RefCountingHashStore store = new RefCountingHashStore(hashStore, blobStore, index);
+        store.setChunkFanout("c1", Arrays.asList("b1", "b2"), 20);
+        store.setFileFanout("f1", Arrays.asList("c1"), 20);
+        store.setChunkFanout("c2", Arrays.asList("b2", "b3"), 20);
+        store.setFileFanout("f2", Arrays.asList("c2"), 20);
+        store.setFileFanout("f2", Arrays.asList("c2"), 20); // a second owner
+
+        Assert.assertTrue(store.deleteFile("f1"));
+        Assert.assertFalse(hashStore.hasFile("f1"));
+        Assert.assertFalse(hashStore.hasChunk("c1"));
+        Assert.assertFalse(blobStore.hasBlob("b1"));
+        Assert.assertTrue(blobStore.hasBlob("b2")); // still used by c2
+
+        Assert.assertFalse(store.deleteFile("f2"));
+        Assert.assertTrue(hashStore.hasFile("f2"));
+        index.close();
+
+        // counts survive a restart, from the log
+        RefCountIndex index2 = new RefCountIndex(dir);
+        index2.init();
+        Assert.assertEquals(1, index2.get(RefCountIndex.FILES, "f2"));
+        Assert.assertEquals(1, index2.get(RefCountIndex.BLOBS, "b2"));
+        Assert.assertEquals(-1, index2.get(RefCountIndex.BLOBS, "b1"));
+        RefCountingHashStore store2 = new RefCountingHashStore(hashStore, blobStore, index2);
+        Assert.assertTrue(store2.deleteFile("f2"));
+        Assert.assertFalse(hashStore.hasChunk("c2"));
+        Assert.assertFalse(blobStore.hasBlob("b2"));
+        Assert.assertFalse(blobStore.hasBlob("b3"));
+        index2.close();
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        hashStore.setChunkFanout("c1", Arrays.asList("b1", "b2"), 20);
+        hashStore.setFileFanout("f1", Arrays.asList("c1"), 20);
+        hashStore.setFileFanout("f2", Arrays.asList("c1"), 20);
+
+        RefCountIndex index = new RefCountIndex(dir);
+        index.init();
+        RefCountingHashStore store = new RefCountingHashStore(hashStore, blobStore, index);
+        store.rebuild();
+        Assert.assertEquals(2, index.get(RefCountIndex.CHUNKS, "c1"));
+
+        Assert.assertTrue(store.deleteFile("f1"));
+        Assert.assertTrue(hashStore.hasChunk("c1"));
+        Assert.assertTrue(store.deleteFile("f2"));
+        Assert.assertFalse(hashStore.hasChunk("c1"));
+        Assert.assertFalse(blobStore.hasBlob("b1"));
+        index.close();
+    }
+}
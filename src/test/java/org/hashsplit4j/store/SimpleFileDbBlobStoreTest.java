@@ -0,0 +1,238 @@
+package org.hashsplit4j.store;
+
+import com.google.common.hash.Hashing;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.hashsplit4j.api.BlobImpl;
+import org.hashsplit4j.cache.FrequencySketch;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class SimpleFileDbBlobStoreTest {
+
+    @Test
+    public void testSegmentRollingAndEviction() throws Exception {
+        File dir = Files.createTempDirectory("segments").toFile();
+        try {
+            MemoryBlobStore wrapped = new MemoryBlobStore();
+            SimpleFileDbBlobStore store = new SimpleFileDbBlobStore(wrapped);
+            store.setEnableAdd(true);
+            store.setSegmentDir(dir);
+            store.setMaxFileSize(1000);
+            store.setMaxTotalSize(3000);
+            store.setCopyForwardMinHits(2);
+            store.initSegments(2);
+
+            for (int i = 0; i < 60; i++) {
+                String hash = "hash" + i;
+                wrapped.setBlob(hash, new byte[100]);
+                store.getBlob(hash); // miss, so added to the cache
+                waitForCached(store, hash);
+                store.getBlob("hash0"); // keep this one hot
+            }
+
+            Assert.assertTrue((Long) store.getCacheStats().get("evictions") > 0);
+            Assert.assertTrue(store.getTotalSize() < 3000 + 1000 + 200);
+            Assert.assertTrue(store._hashKey("b-hash59"));
+            Assert.assertFalse(store._hashKey("b-hash1")); // evicted
+            Assert.assertTrue(store._hashKey("b-hash0")); // copied forward
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testCopyForwardMoreThanQueueCapacity() throws Exception {
+        File dir = Files.createTempDirectory("copyforward").toFile();
+        try {
+            SimpleFileDbBlobStore store = new SimpleFileDbBlobStore(new MemoryBlobStore());
+            List<BlobImpl> blobs = new ArrayList<>();
+            for (int i = 0; i < 1500; i++) {
+                blobs.add(new BlobImpl(store.getBlobKey("hash" + i), new byte[10]));
+            }
+            SimpleFileDb seg = new SimpleFileDb("seg-000000", new File(dir, "seg-000000.keys"), new File(dir, "seg-000000.vals"));
+            seg.putAll(blobs);
+            seg.close();
+
+            MemoryBlobStore wrapped = new MemoryBlobStore();
+            store = new SimpleFileDbBlobStore(wrapped);
+            store.setEnableAdd(true);
+            store.setSegmentDir(dir);
+            store.setMaxFileSize(15000);
+            store.setMaxTotalSize(1);
+            store.setCopyForwardMinHits(1);
+            store.initSegments(1);
+            for (int i = 0; i < 1500; i++) {
+                Assert.assertNotNull(store.getBlob("hash" + i));
+            }
+
+            // the segment is full, so this rolls and evicts it
+            wrapped.setBlob("new", new byte[10]);
+            store.getBlob("new");
+            waitForCached(store, "new");
+
+            Assert.assertEquals(1L, store.getCacheStats().get("evictions"));
+            Assert.assertEquals(1500L, store.getCacheStats().get("copiedForward"));
+            for (int i = 0; i < 1500; i++) {
+                Assert.assertTrue(store._hashKey(store.getBlobKey("hash" + i)));
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testRouter() throws Exception {
+        File dir = Files.createTempDirectory("router").toFile();
+        try {
+            SimpleFileDb db1 = new SimpleFileDb("db1", new File(dir, "1.keys"), new File(dir, "1.vals"));
+            SimpleFileDb db2 = new SimpleFileDb("db2", new File(dir, "2.keys"), new File(dir, "2.vals"));
+            db1.put("b-a", "a".getBytes());
+            db2.put("b-b", "b".getBytes());
+            db1.init();
+            db2.init();
+
+            SimpleFileDbBlobStore store = new SimpleFileDbBlobStore(new MemoryBlobStore());
+            store.enableRouter(16);
+            store.addDb(db1);
+            store.addDb(db2);
+            Assert.assertEquals(2, store.getRouter().size());
+            Assert.assertSame(db2, store.getRouter().route("b-b"));
+            Assert.assertEquals("b", new String(store.getBlob("b")));
+            Assert.assertNull(store.getRouter().route("b-c"));
+
+            // added keys are routed
+            db1.put("b-c", "c".getBytes());
+            Assert.assertSame(db1, store.getRouter().route("b-c"));
+            Assert.assertEquals(1, store._getLength("b-c"));
+
+            // replaced data is reloaded
+            SimpleFileDb other = new SimpleFileDb("other", new File(dir, "3.keys"), new File(dir, "3.vals"));
+            other.put("b-d", "dd".getBytes());
+            other.close();
+            long stamp = store.getRouter().stamp();
+            Assert.assertTrue(store.getRouter().validate(stamp));
+            db2.replaceData(new File(dir, "3.keys"), new File(dir, "3.vals"));
+            // a miss routed before or during the reload can't be trusted
+            Assert.assertFalse(store.getRouter().validate(stamp));
+            Assert.assertTrue(store.getRouter().validate(store.getRouter().stamp()));
+            Assert.assertNull(store.getRouter().route("b-b"));
+            Assert.assertSame(db2, store.getRouter().route("b-d"));
+            Assert.assertEquals("dd", new String(store.getBlob("d")));
+            Assert.assertTrue(store._hashKey("b-a"));
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testStripes() throws Exception {
+        File dir = Files.createTempDirectory("stripes").toFile();
+        File dir1 = new File(dir, "disk1");
+        File dir2 = new File(dir, "disk2");
+        try {
+            MemoryBlobStore wrapped = new MemoryBlobStore();
+            SimpleFileDbBlobStore store = new SimpleFileDbBlobStore(wrapped);
+            store.setEnableAdd(true);
+            store.initStripes(Arrays.asList(dir1, dir2), 4, 2);
+            Assert.assertEquals(4, store.getNumStripes());
+
+            for (int i = 0; i < 100; i++) {
+                String hash = Hashing.sha1().hashInt(i).toString();
+                wrapped.setBlob(hash, ("blob" + i).getBytes());
+                store.getBlob(hash);
+            }
+            for (int i = 0; i < 100; i++) {
+                waitForCached(store, Hashing.sha1().hashInt(i).toString());
+            }
+            Assert.assertEquals(100, store.size());
+            Assert.assertEquals(2, dir1.list((d, n) -> n.endsWith(".vals")).length);
+            Assert.assertEquals(2, dir2.list((d, n) -> n.endsWith(".vals")).length);
+
+            // the same keys are found after a restart, each in its own stripe
+            SimpleFileDbBlobStore store2 = new SimpleFileDbBlobStore(new MemoryBlobStore());
+            store2.initStripes(Arrays.asList(dir1, dir2), 4, 2);
+            for (int i = 0; i < 100; i++) {
+                String hash = Hashing.sha1().hashInt(i).toString();
+                SimpleFileDb stripe = store2.getStripe(store2.getBlobKey(hash));
+                Assert.assertTrue(stripe.contains(store2.getBlobKey(hash)));
+                Assert.assertTrue(stripe.size() < 100);
+                Assert.assertEquals("blob" + i, new String(store2.getBlob(hash)));
+            }
+        } finally {
+            for (File d : new File[]{dir1, dir2}) {
+                for (File f : d.listFiles()) {
+                    f.delete();
+                }
+                d.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testAdmission() throws Exception {
+        File dir = Files.createTempDirectory("admission").toFile();
+        try {
+            MemoryBlobStore wrapped = new MemoryBlobStore();
+            SimpleFileDbBlobStore store = new SimpleFileDbBlobStore(wrapped);
+            store.setEnableAdd(true);
+            store.enableAdmission(1000, 2);
+            SimpleFileDb db = new SimpleFileDb("db1", new File(dir, "1.keys"), new File(dir, "1.vals"));
+            db.init();
+            store.addDb(db);
+
+            // only read once, eg by a scan, so not added
+            for (int i = 0; i < 10; i++) {
+                wrapped.setBlob("scan" + i, new byte[100]);
+                store.getBlob("scan" + i);
+            }
+            Assert.assertEquals(10L, store.getCacheStats().get("rejected"));
+
+            // added on the second miss
+            wrapped.setBlob("hot", new byte[100]);
+            store.getBlob("hot");
+            store.getBlob("hot");
+            waitForCached(store, "hot");
+            Assert.assertFalse(store._hashKey(store.getBlobKey("scan0")));
+
+            try {
+                store.setMinFrequency(FrequencySketch.MAX_FREQUENCY + 1);
+                Assert.fail("A threshold the sketch can't count to would reject everything");
+            } catch (IllegalArgumentException ex) {
+                Assert.assertEquals(2, store.getMinFrequency());
+            }
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private void waitForCached(SimpleFileDbBlobStore store, String hash) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (!store._hashKey(store.getBlobKey(hash))) {
+            if (System.currentTimeMillis() > until) {
+                Assert.fail("Not cached: " + hash);
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.hashsplit4j.store;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares concurrent random reads from SimpleFileDb, through the shared
+ * channel and memory mapped, against the previous approach of opening the
+ * values file for every read. Not a unit test, run
+ * with main, eg
+ *
+ * java -cp ... org.hashsplit4j.store.SimpleFileDbReadBenchmark [threads]
+ * [items] [readsPerThread]
+ *
+ * @author brad
+ */
+public class SimpleFileDbReadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int items = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int readsPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        File keysFile = File.createTempFile("sfdb-bench", ".keys");
+        File valuesFile = File.createTempFile("sfdb-bench", ".vals");
+        keysFile.delete();
+        valuesFile.delete();
+        try {
+            SimpleFileDb db = new SimpleFileDb("bench", keysFile, valuesFile);
+            Random rnd = new Random(1);
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < items; i++) {
+                byte[] arr = new byte[1000 + rnd.nextInt(8000)];
+                rnd.nextBytes(arr);
+                String key = "b-" + i;
+                db.put(key, arr);
+                keys.add(key);
+            }
+            System.out.println("Loaded " + items + " items, values file " + valuesFile.length() / (1024 * 1024) + "MB, threads=" + threads + " readsPerThread=" + readsPerThread);
+
+            // warm up both paths, including the page cache
+            run(threads, readsPerThread / 10, keys, db, false);
+            run(threads, readsPerThread / 10, keys, db, true);
+
+            SimpleFileDb mappedDb = new SimpleFileDb("bench-mapped", keysFile, valuesFile);
+            mappedDb.init();
+            mappedDb.setMemoryMapped(true);
+            run(threads, readsPerThread / 10, keys, mappedDb, false);
+
+            for (int round = 0; round < 3; round++) {
+                double perOpen = run(threads, readsPerThread, keys, db, true);
+                double shared = run(threads, readsPerThread, keys, db, false);
+                double mapped = run(threads, readsPerThread, keys, mappedDb, false);
+                System.out.printf("round %d: open per read %.0f reads/s, shared channel %.0f reads/s (%.1fx), mapped %.0f reads/s (%.1fx)%n", round, perOpen, shared, shared / perOpen, mapped, mapped / perOpen);
+            }
+            db.close();
+            mappedDb.close();
+        } finally {
+            keysFile.delete();
+            valuesFile.delete();
+        }
+    }
+
+    private static double run(int threads, int readsPerThread, List<String> keys, SimpleFileDb db, boolean openPerRead) throws Exception {
+        File valuesFile = new File(db.getValuesFilePath());
+        Map<String, long[]> positions = new HashMap<>();
+        for (String line : Files.readAllLines(new File(db.getKeysFilePath()).toPath())) {
+            String[] arr = line.split(",");
+            positions.put(arr[0], new long[]{Long.parseLong(arr[1]), Long.parseLong(arr[2])});
+        }
+        ExecutorService ex = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> futures = new ArrayList<>();
+        long startTime = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            futures.add(ex.submit(() -> {
+                Random rnd = new Random(seed);
+                long bytes = 0;
+                for (int i = 0; i < readsPerThread; i++) {
+                    String key = keys.get(rnd.nextInt(keys.size()));
+                    byte[] arr = openPerRead ? readOpenPerRead(valuesFile, positions.get(key)) : db.get(key);
+                    bytes += arr.length;
+                }
+                return bytes;
+            }));
+        }
+        for (Future<Long> f : futures) {
+            f.get();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        ex.shutdown();
+        ex.awaitTermination(1, TimeUnit.MINUTES);
+        return (double) threads * readsPerThread / (elapsed / 1e9);
+    }
+
+    /**
+     * What SimpleFileDb used to do for each read
+     */
+    private static byte[] readOpenPerRead(File valuesFile, long[] item) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(valuesFile, "r");
+        try (FileChannel chan = raf.getChannel()) {
+            ByteBuffer bb = ByteBuffer.allocate((int) (item[1] - item[0]));
+            chan.position(item[0]).read(bb);
+            return bb.array();
+        }
+    }
+}
@@ -1,6 +1,15 @@
 package org.hashsplit4j.store;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import org.hashsplit4j.api.BlobImpl;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -43,9 +52,443 @@ public class SimpleFileDbTest {
         Assert.assertEquals(s2, new String(db2.get("helo2")));
         Assert.assertEquals(s3, new String(db2.get("hlo3")));
 
+        Assert.assertEquals(s3.length(), db2.getLength("hlo3"));
+        Assert.assertEquals(-1, db2.getLength("notthere"));
+
+        Assert.assertEquals(Arrays.asList("hello1", "helo2", "hlo3"), db2.keys(null, null).collect(Collectors.toList()));
+        Assert.assertEquals(Arrays.asList("hello1", "helo2"), db2.keys("hel", null).collect(Collectors.toList()));
+        Assert.assertEquals(Arrays.asList("hlo3"), db2.keys(null, "helo2").collect(Collectors.toList()));
+
+        keysFile.delete();
+        valuesFile.delete();
+
+    }
+
+    @Test
+    public void testMemoryMappedZeroLength() throws Exception {
+        File keysFile = File.createTempFile("dbkeys", null);
+        File valuesFile = File.createTempFile("dbvals", null);
+        keysFile.delete();
+        valuesFile.delete();
+        try {
+            SimpleFileDb db = new SimpleFileDb("db1", keysFile, valuesFile);
+            db.setMemoryMapped(true, 16);
+            // at offset 0 of an empty file
+            db.put("e", new byte[0]);
+            Assert.assertEquals(0, db.getBuffer("e").remaining());
+            Assert.assertEquals(0, db.get("e").length);
+
+            // at the end of a full segment
+            db.put("f", "0123456789abcdef".getBytes());
+            db.put("g", new byte[0]);
+            Assert.assertEquals(0, db.getBuffer("g").remaining());
+            Assert.assertEquals(0, db.get("g").length);
+            Assert.assertEquals(16, db.getBuffer("f").remaining());
+            db.close();
+        } finally {
+            keysFile.delete();
+            valuesFile.delete();
+        }
+    }
+
+    @Test
+    public void testKeysResumeAfterZeroLength() throws Exception {
+        File keysFile = File.createTempFile("dbkeys", null);
+        File valuesFile = File.createTempFile("dbvals", null);
+        keysFile.delete();
+        valuesFile.delete();
+        try {
+            SimpleFileDb db = new SimpleFileDb("db1", keysFile, valuesFile);
+            db.put("a", "aaa".getBytes());
+            db.put("empty", new byte[0]);
+            db.put("b", "bbb".getBytes()); // same start as empty
+            db.put("c", "ccc".getBytes());
+            Assert.assertEquals(Arrays.asList("b", "c"), db.keys(null, "empty").collect(Collectors.toList()));
+            Assert.assertEquals(Arrays.asList("empty", "b", "c"), db.keys(null, "a").collect(Collectors.toList()));
+            Assert.assertEquals(Arrays.asList("c"), db.keys(null, "b").collect(Collectors.toList()));
+            db.close();
+        } finally {
+            keysFile.delete();
+            valuesFile.delete();
+        }
+    }
+
+    @Test
+    public void testMemoryMapped() throws Exception {
+        File keysFile = File.createTempFile("dbkeys", null);
+        File valuesFile = File.createTempFile("dbvals", null);
+        keysFile.delete();
+        valuesFile.delete();
+        try {
+            SimpleFileDb db = new SimpleFileDb("db1", keysFile, valuesFile);
+            db.setMemoryMapped(true, 16); // tiny segments so values cross boundaries
+            db.put("a", "0123456789".getBytes());
+            db.put("b", "abcdefghijklmnopqrstuvwxyz".getBytes());
+            Assert.assertEquals("0123456789", new String(db.get("a")));
+            Assert.assertEquals("abcdefghijklmnopqrstuvwxyz", new String(db.get("b")));
+
+            // appended after the mapping was made, so must be remapped
+            db.put("c", "xyz".getBytes());
+            Assert.assertEquals("xyz", new String(db.get("c")));
+            ByteBuffer bb = db.getBuffer("c");
+            Assert.assertEquals(3, bb.remaining());
+            Assert.assertEquals('x', bb.get());
+
+            // mappings dropped while being read, eg by setMemoryMapped or close
+            AtomicReference<String> error = new AtomicReference<>();
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread reader = new Thread(() -> {
+                while (running.get()) {
+                    try {
+                        if (!"abcdefghijklmnopqrstuvwxyz".equals(new String(db.get("b")))) {
+                            error.set("Wrong value");
+                        }
+                    } catch (Exception ex) {
+                        error.set(ex.toString());
+                    }
+                }
+            });
+            reader.start();
+            for (int i = 0; i < 2000; i++) {
+                db.setMemoryMapped(true, 16);
+            }
+            running.set(false);
+            reader.join();
+            Assert.assertNull(error.get());
+            db.close();
+        } finally {
+            keysFile.delete();
+            valuesFile.delete();
+        }
+    }
+
+    @Test
+    public void testOffHeapIndex() throws Exception {
+        OffHeapSimpleFileDbIndex index = new OffHeapSimpleFileDbIndex(16);
+        for (int i = 0; i < 10000; i++) {
+            index.put("key" + i, i * 10, i * 10 + 5);
+        }
+        index.put("key5", 1, 2); // replace
+        Assert.assertEquals(10000, index.size());
+        Assert.assertEquals(99990, index.get("key9999").getStart());
+        Assert.assertEquals(5, index.get("key9999").length());
+        Assert.assertEquals(1, index.get("key5").getStart());
+        Assert.assertNull(index.get("notthere"));
+
+        File keysFile = File.createTempFile("dbkeys", null);
+        File valuesFile = File.createTempFile("dbvals", null);
         keysFile.delete();
         valuesFile.delete();
+        try {
+            SimpleFileDb db = new SimpleFileDb("db1", keysFile, valuesFile, new OffHeapSimpleFileDbIndex());
+            db.put("hello1", "Hello world".getBytes());
+            SimpleFileDb db2 = new SimpleFileDb("db1", keysFile, valuesFile, new OffHeapSimpleFileDbIndex());
+            db2.init();
+            Assert.assertEquals("Hello world", new String(db2.get("hello1")));
+            Assert.assertTrue(db2.contains("hello1"));
+            Assert.assertFalse(db2.contains("hello2"));
+            db.close();
+            db2.close();
+        } finally {
+            keysFile.delete();
+            valuesFile.delete();
+        }
+    }
 
+    @Test
+    public void testSnapshot() throws Exception {
+        checkSnapshot(false);
+        checkSnapshot(true);
     }
 
+    private void checkSnapshot(boolean offHeap) throws Exception {
+        File keysFile = File.createTempFile("dbkeys", null);
+        File valuesFile = File.createTempFile("dbvals", null);
+        File snapshotFile = new File(keysFile.getPath() + ".snapshot");
+        keysFile.delete();
+        valuesFile.delete();
+        try {
+            SimpleFileDb db = new SimpleFileDb("db1", keysFile, valuesFile, newIndex(offHeap));
+            db.setSnapshotInterval(50);
+            for (int i = 0; i < 120; i++) {
+                db.put("key" + i, ("value" + i).getBytes());
+            }
+            Assert.assertTrue(snapshotFile.exists());
+
+            // 20 keys were added after the last snapshot, so are replayed from the keys file
+            SimpleFileDb db2 = new SimpleFileDb("db1", keysFile, valuesFile, newIndex(offHeap));
+            db2.init();
+            Assert.assertEquals(120, db2.size());
+            Assert.assertEquals("value0", new String(db2.get("key0")));
+            Assert.assertEquals("value119", new String(db2.get("key119")));
+
+            // a corrupt snapshot is ignored, and the whole keys file parsed
+            db.close();
+            try (RandomAccessFile raf = new RandomAccessFile(snapshotFile, "rw")) {
+                raf.seek(raf.length() - 20);
+                raf.write(0xff);
+            }
+            SimpleFileDb db3 = new SimpleFileDb("db1", keysFile, valuesFile, newIndex(offHeap));
+            db3.init();
+            Assert.assertEquals(120, db3.size());
+            Assert.assertEquals("value7", new String(db3.get("key7")));
+            db2.close();
+            db3.close();
+        } finally {
+            keysFile.delete();
+            valuesFile.delete();
+            snapshotFile.delete();
+        }
+    }
+
+    @Test
+    public void testPutAll() throws Exception {
+        File keysFile = File.createTempFile("dbkeys", null);
+        File valuesFile = File.createTempFile("dbvals", null);
+        keysFile.delete();
+        valuesFile.delete();
+        try {
+            SimpleFileDb db = new SimpleFileDb("db1", keysFile, valuesFile);
+            db.setFsyncPolicy(SimpleFileDb.FsyncPolicy.BATCH);
+            db.put("a", "aaa".getBytes());
+            int added = db.putAll(Arrays.asList(
+                    new BlobImpl("a", "ignored".getBytes()),
+                    new BlobImpl("b", "bb".getBytes()),
+                    new BlobImpl("c", "c".getBytes()),
+                    new BlobImpl("b", "ignored".getBytes())));
+            Assert.assertEquals(2, added);
+            Assert.assertEquals("aaa", new String(db.get("a")));
+            Assert.assertEquals("bb", new String(db.get("b")));
+            Assert.assertEquals("c", new String(db.get("c")));
+
+            SimpleFileDb db2 = new SimpleFileDb("db1", keysFile, valuesFile);
+            db2.init();
+            Assert.assertEquals(3, db2.size());
+            Assert.assertEquals("c", new String(db2.get("c")));
+            db.close();
+            db2.close();
+        } finally {
+            keysFile.delete();
+            valuesFile.delete();
+        }
+    }
+
+    @Test
+    public void testBadRecordsBeforeTail() throws Exception {
+        File keysFile = File.createTempFile("dbkeys", null);
+        File valuesFile = File.createTempFile("dbvals", null);
+        keysFile.delete();
+        valuesFile.delete();
+        try {
+            SimpleFileDb db = new SimpleFileDb("db1", keysFile, valuesFile);
+            db.setSnapshotInterval(0);
+            for (int i = 0; i < 10; i++) {
+                db.put("key" + i, ("value" + i).getBytes());
+            }
+            db.close();
+            long keysLength = keysFile.length();
+            long valuesLength = valuesFile.length();
+
+            // one damaged value, and a malformed line, in the middle
+            try (RandomAccessFile raf = new RandomAccessFile(valuesFile, "rw")) {
+                raf.seek(3 * "value0".length());
+                raf.write('X');
+            }
+            String keys = new String(Files.readAllBytes(keysFile.toPath()));
+            int secondLine = keys.indexOf('\n') + 1;
+            keys = keys.substring(0, secondLine) + "garbage\n" + keys.substring(secondLine);
+            Files.write(keysFile.toPath(), keys.getBytes());
+
+            SimpleFileDb db2 = new SimpleFileDb("db1", keysFile, valuesFile);
+            db2.init();
+            Assert.assertEquals(9, db2.size());
+            Assert.assertNull(db2.get("key3"));
+            Assert.assertEquals("value9", new String(db2.get("key9")));
+            // nothing truncated
+            Assert.assertEquals(keysLength + "garbage\n".length(), keysFile.length());
+            Assert.assertEquals(valuesLength, valuesFile.length());
+            db2.close();
+        } finally {
+            keysFile.delete();
+            valuesFile.delete();
+        }
+    }
+
+    @Test
+    public void testTornTailRecovery() throws Exception {
+        File keysFile = File.createTempFile("dbkeys", null);
+        File valuesFile = File.createTempFile("dbvals", null);
+        keysFile.delete();
+        valuesFile.delete();
+        try {
+            SimpleFileDb db = new SimpleFileDb("db1", keysFile, valuesFile);
+            db.setSnapshotInterval(0);
+            for (int i = 0; i < 10; i++) {
+                db.put("key" + i, ("value" + i).getBytes());
+            }
+            db.close();
+            long goodValuesLength = valuesFile.length() - "value9".length();
+
+            // the last value was damaged, and a put didn't complete
+            try (RandomAccessFile raf = new RandomAccessFile(valuesFile, "rw")) {
+                raf.seek(raf.length() - 1);
+                raf.write('X');
+                raf.seek(raf.length());
+                raf.write("valu".getBytes());
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(keysFile, "rw")) {
+                raf.seek(raf.length());
+                raf.write("key10,12".getBytes());
+            }
+
+            SimpleFileDb db2 = new SimpleFileDb("db1", keysFile, valuesFile);
+            db2.init();
+            Assert.assertEquals(9, db2.size());
+            Assert.assertNull(db2.get("key9"));
+            Assert.assertEquals("value8", new String(db2.get("key8")));
+            Assert.assertEquals(goodValuesLength, valuesFile.length());
+            String keys = new String(Files.readAllBytes(keysFile.toPath()));
+            Assert.assertTrue(keys.endsWith("\n"));
+            Assert.assertFalse(keys.contains("key9"));
+
+            // and it can be added to as normal
+            db2.put("key9", "again".getBytes());
+            db2.close();
+            SimpleFileDb db3 = new SimpleFileDb("db1", keysFile, valuesFile);
+            db3.init();
+            Assert.assertEquals(10, db3.size());
+            Assert.assertEquals("again", new String(db3.get("key9")));
+
+            // damage found when reading
+            try (RandomAccessFile raf = new RandomAccessFile(valuesFile, "rw")) {
+                raf.seek(0);
+                raf.write('X');
+            }
+            Assert.assertEquals("Xalue0", new String(db3.get("key0")));
+            db3.setVerifyReads(true);
+            try {
+                db3.get("key0");
+                Assert.fail("Checksum should fail");
+            } catch (IOException ex) {
+                // expected
+            }
+            Assert.assertEquals(1, db3.getCorruptReads());
+            Assert.assertEquals("value1", new String(db3.get("key1")));
+            db3.close();
+        } finally {
+            keysFile.delete();
+            valuesFile.delete();
+        }
+    }
+
+    @Test
+    public void testReplaceData() throws Exception {
+        checkReplaceData(false);
+        checkReplaceData(true);
+    }
+
+    private void checkReplaceData(boolean mapped) throws Exception {
+        File dir = Files.createTempDirectory("replace").toFile();
+        try {
+            SimpleFileDb db = new SimpleFileDb("db1", new File(dir, "keys"), new File(dir, "vals"));
+            if (mapped) {
+                db.setMemoryMapped(true);
+            }
+            for (int i = 0; i < 100; i++) {
+                db.put("old" + i, ("old value " + i).getBytes());
+            }
+            SimpleFileDb newDb = new SimpleFileDb("new", new File(dir, "newkeys"), new File(dir, "newvals"));
+            for (int i = 0; i < 100; i++) {
+                newDb.put("new" + i, ("new value " + i).getBytes());
+            }
+            newDb.close();
+
+            // readers must only ever see correct values, from the old or new data
+            AtomicReference<String> error = new AtomicReference<>();
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread reader = new Thread(() -> {
+                int i = 0;
+                while (running.get()) {
+                    try {
+                        String prefix = (i % 2 == 0) ? "old" : "new";
+                        int n = (i / 2) % 100;
+                        byte[] val = db.get(prefix + n);
+                        if (val != null && !new String(val).equals(prefix + " value " + n)) {
+                            error.set("Wrong value for " + prefix + n + ": " + new String(val));
+                        }
+                    } catch (Exception ex) {
+                        error.set(ex.toString());
+                    }
+                    i++;
+                }
+            });
+            reader.start();
+            Thread.sleep(20);
+            db.replaceData(new File(dir, "newkeys"), new File(dir, "newvals"));
+            Thread.sleep(20);
+            running.set(false);
+            reader.join();
+            Assert.assertNull(error.get());
+
+            Assert.assertTrue(db.isEnabled());
+            Assert.assertNull(db.get("old5"));
+            Assert.assertEquals("new value 5", new String(db.get("new5")));
+            Assert.assertEquals(100, db.size());
+            // moved into place, so not shared with the db
+            Assert.assertFalse(new File(dir, "newkeys").exists());
+            Assert.assertFalse(new File(dir, "newvals").exists());
+
+            // added after the replace, and still there when reloaded
+            db.put("more", "more".getBytes());
+            db.close();
+            SimpleFileDb db2 = new SimpleFileDb("db1", new File(dir, "keys"), new File(dir, "vals"));
+            db2.init();
+            Assert.assertEquals(101, db2.size());
+            Assert.assertEquals("more", new String(db2.get("more")));
+            db2.close();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testReplaceDataWithTornTail() throws Exception {
+        File dir = Files.createTempDirectory("replacetorn").toFile();
+        try {
+            SimpleFileDb newDb = new SimpleFileDb("new", new File(dir, "newkeys"), new File(dir, "newvals"));
+            newDb.put("a", "aaa".getBytes());
+            newDb.close();
+            try (RandomAccessFile raf = new RandomAccessFile(new File(dir, "newkeys"), "rw")) {
+                raf.seek(raf.length());
+                raf.write("b,3,9".getBytes()); // unterminated, and past the end of the values
+            }
+
+            SimpleFileDb db = new SimpleFileDb("db1", new File(dir, "keys"), new File(dir, "vals"));
+            db.init();
+            db.replaceData(new File(dir, "newkeys"), new File(dir, "newvals"));
+            Assert.assertEquals(1, db.size());
+            Assert.assertFalse(db.contains("b"));
+
+            // appended after the good line, not onto the partial one
+            db.put("c", "ccc".getBytes());
+            db.close();
+            SimpleFileDb db2 = new SimpleFileDb("db1", new File(dir, "keys"), new File(dir, "vals"));
+            db2.init();
+            Assert.assertEquals(2, db2.size());
+            Assert.assertEquals("ccc", new String(db2.get("c")));
+            db2.close();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private SimpleFileDbIndex newIndex(boolean offHeap) {
+        return offHeap ? new OffHeapSimpleFileDbIndex() : new HeapSimpleFileDbIndex();
+    }
 }
@@ -0,0 +1,73 @@
+package org.hashsplit4j.store;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class TieredBlobStoreTest {
+
+    @Test
+    public void testPromoteDemoteAndBypass() {
+        MemoryBlobStore origin = new MemoryBlobStore();
+        for (int i = 0; i < 100; i++) {
+            origin.setBlob("hash" + i, new byte[1000]);
+        }
+        origin.setBlob("large", new byte[50000]);
+
+        WeightedCachingBlobStore l1 = new WeightedCachingBlobStore(new NullBlobStore(), 10 * 1000, 100, 0);
+        OffHeapCachingBlobStore l2 = new OffHeapCachingBlobStore(new NullBlobStore(), 1024 * 1024, 64 * 1024, 64 * 1024);
+        TieredBlobStore store = new TieredBlobStore(origin)
+                .addTier("mem", l1, 5000)
+                .addTier("offheap", l2, 0);
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(1000, store.getBlob("hash" + i).length);
+        }
+        // L1 only holds a few, the rest were demoted rather than lost
+        Assert.assertTrue(l1.size() < 20);
+        Assert.assertEquals(100, l1.size() + l2.size());
+        Assert.assertTrue((Long) store.getCacheStats().get("mem.demoted") > 0);
+
+        // found in L2, so promoted to L1 and removed from L2
+        String inL2 = null;
+        for (int i = 0; i < 100 && inL2 == null; i++) {
+            if (l2.isCached("hash" + i)) {
+                inL2 = "hash" + i;
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            store.getBlob(inL2); // popular enough to be admitted to L1
+        }
+        Assert.assertTrue(l1.isCached(inL2));
+        Assert.assertFalse(l2.isCached(inL2));
+        Assert.assertEquals(100, l1.size() + l2.size());
+
+        // too large for L1
+        Assert.assertEquals(50000, store.getBlob("large").length);
+        Assert.assertFalse(l1.isCached("large"));
+        Assert.assertTrue(l2.isCached("large"));
+        Assert.assertEquals(1L, store.getCacheStats().get("mem.bypassed"));
+        Assert.assertEquals(50000, store.getBlobLength("large"));
+        Assert.assertEquals(101L, store.getCacheStats().get("origin.hits"));
+    }
+
+    @Test
+    public void testPromotionDoesntDeleteFromWrappedStore() {
+        MemoryBlobStore backing = new MemoryBlobStore();
+        WeightedCachingBlobStore l1 = new WeightedCachingBlobStore(new NullBlobStore(), 100 * 1000, 100, 0);
+        OffHeapCachingBlobStore l2 = new OffHeapCachingBlobStore(backing, 1024 * 1024, 64 * 1024, 64 * 1024);
+        TieredBlobStore store = new TieredBlobStore(new NullBlobStore())
+                .addTier("mem", l1, 0)
+                .addTier("offheap", l2, 0);
+        l2.setBlob("a", new byte[100]);
+        Assert.assertTrue(l2.isCached("a"));
+
+        Assert.assertEquals(100, store.getBlob("a").length);
+        Assert.assertTrue(l1.isCached("a"));
+        Assert.assertFalse(l2.isCached("a"));
+        Assert.assertTrue(backing.hasBlob("a"));
+    }
+}
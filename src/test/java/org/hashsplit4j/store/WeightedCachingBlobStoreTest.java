@@ -0,0 +1,105 @@
+package org.hashsplit4j.store;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class WeightedCachingBlobStoreTest {
+
+    @Test
+    public void testWeightAndScanResistance() {
+        MemoryBlobStore wrapped = new MemoryBlobStore();
+        for (int i = 0; i < 1000; i++) {
+            wrapped.setBlob("hash" + i, new byte[1000]);
+        }
+        WeightedCachingBlobStore store = new WeightedCachingBlobStore(wrapped, 100 * 1000, 100, 100);
+
+        // a working set, used repeatedly
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                store.getBlob("hash" + i);
+            }
+        }
+        // a scan of everything else, each used once
+        for (int i = 50; i < 1000; i++) {
+            store.getBlob("hash" + i);
+            Assert.assertTrue(store.getWeightedSize() <= 100 * 1000);
+        }
+        int cached = 0;
+        for (int i = 0; i < 50; i++) {
+            if (store.isCached("hash" + i)) {
+                cached++;
+            }
+        }
+        Assert.assertTrue("Working set was pushed out by the scan, cached=" + cached, cached >= 45);
+        Assert.assertTrue((Long) store.getCacheStats().get("rejected") > 0);
+    }
+
+    @Test
+    public void testNegativeCacheAndHasBlob() {
+        AtomicInteger gets = new AtomicInteger();
+        AtomicInteger lengths = new AtomicInteger();
+        MemoryBlobStore wrapped = new MemoryBlobStore() {
+            @Override
+            public byte[] getBlob(String hash) {
+                gets.incrementAndGet();
+                return super.getBlob(hash);
+            }
+
+            @Override
+            public long getBlobLength(String hash) {
+                lengths.incrementAndGet();
+                return super.getBlobLength(hash);
+            }
+        };
+        wrapped.setBlob("a", new byte[10]);
+        WeightedCachingBlobStore store = new WeightedCachingBlobStore(wrapped, 100000);
+
+        // existence and length checks don't load the blob
+        Assert.assertTrue(store.hasBlob("a"));
+        Assert.assertEquals(10, store.getBlobLength("a"));
+        Assert.assertEquals(0, gets.get());
+
+        Assert.assertNull(store.getBlob("missing"));
+        Assert.assertNull(store.getBlob("missing"));
+        Assert.assertFalse(store.hasBlob("missing"));
+        Assert.assertEquals(1, gets.get());
+        Assert.assertEquals(2L, store.getCacheStats().get("negativeHits"));
+
+        // adding it through the store clears the negative entry
+        store.setBlob("missing", new byte[5]);
+        Assert.assertEquals(5, store.getBlob("missing").length);
+    }
+
+    @Test
+    public void testMissRacingWithSetIsNotRemembered() throws Exception {
+        final AtomicReference<WeightedCachingBlobStore> ref = new AtomicReference<>();
+        MemoryBlobStore wrapped = new MemoryBlobStore() {
+            @Override
+            public long getBlobLength(String hash) {
+                long length = super.getBlobLength(hash);
+                if (length < 0) {
+                    // the blob is added after the lookup found it missing
+                    // too big to be cached, so only the negative cache decides
+                    Thread t = new Thread(() -> ref.get().setBlob(hash, new byte[200 * 1000]));
+                    t.start();
+                    try {
+                        t.join();
+                    } catch (InterruptedException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+                return length;
+            }
+        };
+        WeightedCachingBlobStore store = new WeightedCachingBlobStore(wrapped, 100 * 1000, 100, 100);
+        ref.set(store);
+        Assert.assertEquals(-1, store.getBlobLength("a"));
+        Assert.assertTrue(store.hasBlob("a"));
+    }
+}
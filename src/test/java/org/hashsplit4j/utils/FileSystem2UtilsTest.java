@@ -1,6 +1,10 @@
 package org.hashsplit4j.utils;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -85,4 +89,23 @@ public class FileSystem2UtilsTest {
     public void testToFile_3args() {
     }
     
+    @Test
+    public void testKeys() throws Exception {
+        File root = Files.createTempDirectory("fs2keys").toFile();
+        try {
+            String[] hashes = {"36db9daa67c66d0217d8c8511e411dc90b882aff", "36db9daa67c66d0217d8c8511e411dc90b882b00", "a0b1", "ff00aa"};
+            for (String hash : hashes) {
+                File f = FileSystem2Utils.toFileWithPrefix(root, hash, "chunks");
+                f.getParentFile().mkdirs();
+                f.createNewFile();
+            }
+            assertEquals(Arrays.asList(hashes), FileSystem2Utils.keys(root, "chunks", null, null).collect(Collectors.toList()));
+            assertEquals(Arrays.asList("36db9daa67c66d0217d8c8511e411dc90b882b00", "a0b1"), FileSystem2Utils.keys(root, "chunks", null, hashes[0]).limit(2).collect(Collectors.toList()));
+            assertEquals(Arrays.asList("ff00aa"), FileSystem2Utils.keys(root, "chunks", "f", null).collect(Collectors.toList()));
+            assertEquals(4, FileSystem2Utils.keys(root, "chunks", null, null).parallel().count());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
 }
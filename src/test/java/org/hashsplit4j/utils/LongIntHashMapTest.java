@@ -0,0 +1,61 @@
+package org.hashsplit4j.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class LongIntHashMapTest {
+
+    @Test
+    public void testAgainstHashMap() {
+        LongIntHashMap map = new LongIntHashMap(16);
+        Map<Long, Integer> expected = new HashMap<>();
+        Random rnd = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            long key = rnd.nextInt(5000) + 1; // small range so there are lots of removes and collisions
+            if (rnd.nextInt(3) == 0) {
+                map.remove(key);
+                expected.remove(key);
+            } else {
+                map.add(key, 1);
+                expected.merge(key, 1, Integer::sum);
+            }
+        }
+        Assert.assertEquals(expected.size(), map.size());
+        for (long key = 1; key <= 5000; key++) {
+            Integer v = expected.get(key);
+            Assert.assertEquals(v == null ? LongIntHashMap.NOT_FOUND : v, map.get(key));
+        }
+    }
+
+    @Test
+    public void testRemoveValue() {
+        LongIntHashMap map = new LongIntHashMap(16);
+        Random rnd = new Random(2);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            long key = rnd.nextLong();
+            int value = rnd.nextInt(4);
+            map.put(key, value);
+            expected.put(key == 0 ? 1 : key, value);
+        }
+        int toRemove = 0;
+        for (int v : expected.values()) {
+            if (v == 2) {
+                toRemove++;
+            }
+        }
+        Assert.assertEquals(toRemove, map.removeValue(2));
+        Assert.assertEquals(expected.size() - toRemove, map.size());
+        for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+            int v = e.getValue();
+            Assert.assertEquals(v == 2 ? LongIntHashMap.NOT_FOUND : v, map.get(e.getKey()));
+        }
+    }
+}